@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.base;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Sends idempotent setters to a device in the background. If a new value for a method arrives before the previous value has been sent, the previous value is dropped and only the latest value is sent.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CommandCoalescer {
+    private final Device device;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Pending> pending = new HashMap<>();
+    private long submitted;
+    private long dropped;
+
+    /**
+     * Create a new coalescer for a device. The commands are sent one after another by a single background thread that terminates when idle.
+     * @param device The device to send the commands to.
+     */
+    public CommandCoalescer(Device device) {
+        this.device = device;
+        this.executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "miIO-coalescer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue a command that is expected to return ok. If a command with the same method is still waiting to be sent, its parameters are replaced and both callers share the same result.
+     * @param method The method to execute on the device.
+     * @param params The parameters of the command. Must be a JSONArray or JSONObject.
+     * @return The result of the command that was eventually sent. True if a ok was received from the device.
+     *          If the communication failed, the CommandExecutionException is the cause of the ExecutionException thrown by the future.
+     */
+    public Future<Boolean> submit(String method, Object params) {
+        if (method == null) method = "";
+        synchronized (this) {
+            submitted++;
+            Pending p = pending.get(method);
+            if (p != null) {
+                p.params = params;
+                dropped++;
+                return p.task;
+            }
+            p = new Pending(method, params);
+            pending.put(method, p);
+            executor.execute(p.task);
+            return p.task;
+        }
+    }
+
+    /**
+     * @return The number of commands submitted to this coalescer.
+     */
+    public synchronized long getSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * @return The number of commands that have been replaced by a newer value before they were sent.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return The number of distinct methods currently waiting to be sent.
+     */
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    private class Pending implements Callable<Boolean> {
+        private final String method;
+        private final FutureTask<Boolean> task;
+        private Object params;
+
+        private Pending(String method, Object params) {
+            this.method = method;
+            this.params = params;
+            this.task = new FutureTask<>(this);
+        }
+
+        @Override
+        public Boolean call() throws CommandExecutionException {
+            Object toSend;
+            synchronized (CommandCoalescer.this) {
+                pending.remove(method);
+                toSend = params;
+            }
+            return device.sendOk(method, toSend);
+        }
+    }
+}
@@ -18,22 +18,37 @@ package de.sg_o.app.miio.base;
 
 import de.sg_o.app.miio.base.messages.Command;
 import de.sg_o.app.miio.base.messages.Response;
+import de.sg_o.app.miio.capture.PacketObserver;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
-import de.sg_o.app.miio.util.ByteArray;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
 import java.io.Serializable;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Baseclass for all miIO devices. A device may be shared by multiple threads, their commands are sent concurrently and every response is handed to the thread that sent the command.
+ */
 @SuppressWarnings("WeakerAccess")
 public class Device implements Serializable {
-    private static final int PORT = 54321;
+    static final int PORT = 54321;
     private static final long serialVersionUID = -924264471464948810L;
-    private static byte[] rcv = new byte[65507];
+    private static final int MAX_METHOD_ID = 10000;
+    private static final AtomicLongFieldUpdater<Device> METHOD_ID = AtomicLongFieldUpdater.newUpdater(Device.class, "methodID");
 
     private InetAddress ip;
     private Token token;
@@ -41,11 +56,22 @@ public class Device implements Serializable {
     private String[] acceptableModels;
 
     private transient DatagramSocket socket;
-
-    private int deviceID = -1;
-    private int timeStamp = -1;
-
-    private long methodID;
+    private transient DatagramChannel unansweredChannel;
+    private transient volatile RateLimiter rateLimiter;
+    private transient volatile CommandCoalescer coalescer;
+    private transient volatile PacketObserver observer;
+    private transient int timeout;
+    private transient DeviceClock clock;
+    private transient Object discoverLock;
+    private transient ReentrantLock receiveLock;
+    private transient byte[] receiveBuffer;
+    private transient ConcurrentHashMap<Long, Exchange> exchanges;
+    private transient ConcurrentLinkedQueue<Exchange> rawExchanges;
+
+    private volatile int deviceID = -1;
+    private volatile int timeStamp = -1;
+
+    private volatile long methodID;
 
     /**
      * Baseclass for all miIO devices.
@@ -62,12 +88,22 @@ public class Device implements Serializable {
         if (timeout < 1) timeout = 1000;
         if (retries < 0) retries = 0;
         this.retries = retries;
+        init(timeout);
+    }
+
+    private void init(int timeout) {
+        this.timeout = timeout;
+        this.clock = new DeviceClock();
+        this.discoverLock = new Object();
+        this.receiveLock = new ReentrantLock();
+        this.receiveBuffer = new byte[65507];
+        this.exchanges = new ConcurrentHashMap<>();
+        this.rawExchanges = new ConcurrentLinkedQueue<>();
         try {
             socket = new DatagramSocket();
             socket.setSoTimeout(timeout);
         } catch (SocketException ignored) {
         }
-
     }
 
     /**
@@ -77,6 +113,13 @@ public class Device implements Serializable {
         return ip;
     }
 
+    /**
+     * @return The ID of the device. -1 if the device has not been discovered yet.
+     */
+    public int getDeviceID() {
+        return deviceID;
+    }
+
     /**
      * @return The token of the device.
      */
@@ -102,11 +145,56 @@ public class Device implements Serializable {
      * @return The timeout for the communication to fail.
      */
     public int getTimeout() {
-        try {
-            return socket.getSoTimeout();
-        } catch (Exception e) {
-            return 0;
-        }
+        if (socket == null) return 0;
+        return timeout;
+    }
+
+    /**
+     * @return The rate limiter that paces the commands sent to this device. Null if commands are sent without pacing.
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Pace the commands sent to this device. The rate limiter is not serialized with the device.
+     * @param rateLimiter The rate limiter to use. Null to send commands without pacing.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * @return The observer that receives all packets sent to and received from this device. Null if no observer has been set.
+     */
+    public PacketObserver getPacketObserver() {
+        return observer;
+    }
+
+    /**
+     * Observe all packets sent to and received from this device, for example to record them. The observer is not serialized with the device.
+     * @param observer The observer to use. Null to remove the observer.
+     */
+    public void setPacketObserver(PacketObserver observer) {
+        this.observer = observer;
+    }
+
+    private void observe(boolean outgoing, DatagramPacket packet) {
+        PacketObserver o = observer;
+        if (o == null) return;
+        byte[] data = packet.getData();
+        if (packet.getOffset() != 0 || packet.getLength() != data.length) data = Arrays.copyOfRange(data, packet.getOffset(), packet.getOffset() + packet.getLength());
+        o.onPacket(outgoing, new InetSocketAddress(packet.getAddress(), packet.getPort()), data);
+    }
+
+    private void observe(boolean outgoing, InetAddress address, int port, byte[] data) {
+        PacketObserver o = observer;
+        if (o != null) o.onPacket(outgoing, new InetSocketAddress(address, port), data);
+    }
+
+    private void pace(String method) throws CommandExecutionException {
+        RateLimiter limiter = this.rateLimiter;
+        if (limiter != null) limiter.acquire(method);
     }
 
     /**
@@ -125,25 +213,26 @@ public class Device implements Serializable {
         } else {
             packet = new DatagramPacket(helloMsg, helloMsg.length, ip, PORT);
         }
+        byte[] worker;
+        // The receiver lock is held for the whole handshake, so the response can not be taken by a thread waiting for the response of a command.
+        receiveLock.lock();
         try {
             socket.send(packet);
-        } catch (IOException e) {
-            return false;
-        }
-        packet = new DatagramPacket(rcv, rcv.length);
-        try {
+            observe(true, packet);
+            packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+            socket.setSoTimeout(timeout);
             socket.receive(packet);
+            worker = Arrays.copyOf(receiveBuffer, packet.getLength());
+            observe(false, packet.getAddress(), packet.getPort(), worker);
         } catch (IOException e) {
             return false;
+        } finally {
+            receiveLock.unlock();
+            handOver(null);
         }
         if (ip == null){
             ip = packet.getAddress();
         }
-        byte[] worker = new byte[2];
-        System.arraycopy(rcv, 2, worker, 0, 2);
-        int length = (int)ByteArray.fromBytes(worker);
-        worker = new byte[length];
-        System.arraycopy(rcv, 0, worker, 0, length);
         Response response;
         try {
             response = new Response(worker, null);
@@ -160,7 +249,8 @@ public class Device implements Serializable {
         if (!((response.getDeviceID() == -1) || (response.getTimeStamp() == -1))){
             deviceID = response.getDeviceID();
             timeStamp = response.getTimeStamp();
-            methodID = timeStamp & 0b1111111111111; // Possible collision about every 2 hours > acceptable
+            clock.sync(timeStamp);
+            methodID = timeStamp & 0b1111111111111; // Possible collision with a previous session about every 2 hours > acceptable
             if (this.acceptableModels != null){
                 boolean modelOk = false;
                 for (String s: this.acceptableModels) {
@@ -181,6 +271,12 @@ public class Device implements Serializable {
      * @return True if the device has been successfully acquired.
      */
     public boolean discover(){
+        synchronized (discoverLock) {
+            return discoverDevice();
+        }
+    }
+
+    private boolean discoverDevice(){
         boolean helloResponse = false;
         for (int helloRetries = this.retries; helloRetries >= 0; helloRetries--) {
             List<InetAddress> broadcast = listAllBroadcastAddresses();
@@ -205,108 +301,262 @@ public class Device implements Serializable {
      * @throws CommandExecutionException When there has been a error during the communication or the response was invalid.
      */
     public Response send(String method, Object params) throws CommandExecutionException {
-        if (deviceID == -1 || timeStamp == -1 || token == null || ip == null) {
-            if (!discover()) throw new CommandExecutionException(CommandExecutionException.Error.DEVICE_NOT_FOUND);
-        }
-        if (methodID >= 10000) methodID = 1;
+        ensureDiscovered();
         if (ip == null || token == null) throw new CommandExecutionException(CommandExecutionException.Error.IP_OR_TOKEN_UNKNOWN);
         if (socket == null) return null;
-        timeStamp++;
-        Command msg = new Command(this.token,this.deviceID,timeStamp,this.methodID,method,params);
-        methodID++;
-        int retriesLeft = this.retries;
-        while (true) {
-            try {
-                return parseResponse(send(msg.create()));
-            } catch (CommandExecutionException e) {
-                if (retriesLeft > 0){
-                    retriesLeft--;
-                    continue;
+        Exchange exchange = new Exchange();
+        long id = register(exchange);
+        try {
+            Command msg = new Command(this.token, this.deviceID, clock.next(), id, method, params);
+            byte[] binMsg = msg.create();
+            int retriesLeft = this.retries;
+            while (true) {
+                pace(method);
+                try {
+                    exchange(exchange, binMsg);
+                    return parseResponse(exchange, id);
+                } catch (CommandExecutionException e) {
+                    if (retriesLeft > 0){
+                        retriesLeft--;
+                        continue;
+                    }
+                    throw e;
                 }
-                throw e;
             }
+        } finally {
+            exchanges.remove(id, exchange);
         }
     }
 
     /**
      * Send an arbitrary string as payload to the device.
+     * The response is matched by the ID in the payload. If it does not belong to any command sent by another thread, it is returned to the oldest thread waiting for the response to a arbitrary payload.
      * @param payload The string to send.
      * @return The response of the device as an unparsed string.
      * @throws CommandExecutionException When there has been a error during the communication or the response was invalid.
      */
     public String send(String payload) throws CommandExecutionException {
         if (payload == null) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS);
-        if (deviceID == -1 || timeStamp == -1 || token == null || ip == null) {
-            if (!discover()) throw new CommandExecutionException(CommandExecutionException.Error.DEVICE_NOT_FOUND);
-        }
-        if (methodID >= 10000) methodID = 1;
+        ensureDiscovered();
         if (ip == null || token == null) throw new CommandExecutionException(CommandExecutionException.Error.IP_OR_TOKEN_UNKNOWN);
         if (socket == null) return null;
-        timeStamp++;
-        Command msg = new Command(this.token,this.deviceID,timeStamp,this.methodID,"", null);
-        methodID++;
-        int retriesLeft = this.retries;
-        while (true) {
-            try {
-                byte[] resp = send(msg.create(payload));
-                if (!Response.testMessage(resp, this.token)) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
-                if (resp.length > 0x20) {
-                    byte[] pl = new byte[resp.length - 0x20];
-                    System.arraycopy(resp, 0x20, pl, 0, pl.length);
-                    String payloadString = Response.decryptPayload(pl, this.token);
-                    if (payloadString == null) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
-                    return payloadString;
+        Command msg = new Command(this.token, this.deviceID, clock.next(), nextMethodID(), "", null);
+        byte[] binMsg = msg.create(payload);
+        Exchange exchange = new Exchange();
+        rawExchanges.add(exchange);
+        try {
+            int retriesLeft = this.retries;
+            while (true) {
+                pace(null);
+                try {
+                    exchange(exchange, binMsg);
+                    byte[] resp = exchange.raw;
+                    if (resp.length > 0x20) {
+                        byte[] pl = new byte[resp.length - 0x20];
+                        System.arraycopy(resp, 0x20, pl, 0, pl.length);
+                        String payloadString = Response.decryptPayload(pl, this.token);
+                        if (payloadString == null) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
+                        return payloadString;
+                    }
+                    throw new CommandExecutionException(CommandExecutionException.Error.EMPTY_RESPONSE);
+                } catch (CommandExecutionException e) {
+                    if (retriesLeft > 0){
+                        retriesLeft--;
+                        if (!rawExchanges.contains(exchange)) rawExchanges.add(exchange);
+                        continue;
+                    }
+                    throw e;
                 }
-            } catch (CommandExecutionException e) {
-                if (retriesLeft > 0){
-                    retriesLeft--;
-                    continue;
+            }
+        } finally {
+            rawExchanges.remove(exchange);
+        }
+    }
+
+    /**
+     * Send a command to a device without waiting for its response. The command is sent exactly once, a lost packet is not detected. If no IP has been specified, this will try do discover a device on the network.
+     * @param method The method to execute on the device.
+     * @param params The command to execute on the device. Must be a JSONArray or JSONObject.
+     * @throws CommandExecutionException When the device could not be found or the command could not be sent.
+     */
+    public void sendWithoutResponse(String method, Object params) throws CommandExecutionException {
+        ensureDiscovered();
+        if (ip == null || token == null) throw new CommandExecutionException(CommandExecutionException.Error.IP_OR_TOKEN_UNKNOWN);
+        Command msg = new Command(this.token, this.deviceID, clock.next(), nextMethodID(), method, params);
+        pace(method);
+        byte[] binMsg = msg.create();
+        try {
+            // The responses are sent to a separate channel so they never end up as the reply of another command.
+            // They are discarded (truncated to a single byte) before every send, so they do not pile up in the receive buffer.
+            synchronized (this) {
+                if (unansweredChannel == null) {
+                    unansweredChannel = DatagramChannel.open();
+                    unansweredChannel.configureBlocking(false);
                 }
-                throw e;
+                ByteBuffer discard = ByteBuffer.allocate(1);
+                while (unansweredChannel.receive(discard) != null) discard.clear();
+                unansweredChannel.send(ByteBuffer.wrap(binMsg), new InetSocketAddress(ip, PORT));
             }
+            observe(true, new DatagramPacket(binMsg, binMsg.length, ip, PORT));
+        } catch (IOException e) {
+            throw new CommandExecutionException(CommandExecutionException.Error.UNKNOWN, e.toString());
         }
     }
 
-    private byte[] send(byte[] binMsg) throws CommandExecutionException {
+    private boolean isDiscovered() {
+        return !(deviceID == -1 || !clock.isSynced() || token == null || ip == null);
+    }
+
+    private void ensureDiscovered() throws CommandExecutionException {
+        if (isDiscovered()) return;
+        synchronized (discoverLock) {
+            if (isDiscovered()) return;
+            if (!discoverDevice()) throw new CommandExecutionException(CommandExecutionException.Error.DEVICE_NOT_FOUND);
+        }
+    }
+
+    /**
+     * Allocate the next payload ID. The IDs wrap around at 10000, IDs of commands that are still waiting for their response are skipped.
+     * @return The payload ID.
+     */
+    private long nextMethodID() {
+        while (true) {
+            long current = methodID;
+            long id = (current < 1 || current >= MAX_METHOD_ID) ? 1 : current;
+            if (!METHOD_ID.compareAndSet(this, current, id + 1)) continue;
+            if (!exchanges.containsKey(id)) return id;
+        }
+    }
+
+    private long register(Exchange exchange) {
+        while (true) {
+            long id = nextMethodID();
+            if (exchanges.putIfAbsent(id, exchange) == null) return id;
+        }
+    }
+
+    /**
+     * Send a message and wait for its response. One of the waiting threads receives all packets and hands them to the threads they belong to, the other threads sleep until their response arrives or they have to take over receiving.
+     * @param exchange The exchange the response is handed to.
+     * @param binMsg The message to send.
+     * @throws CommandExecutionException When the message could not be sent or the response did not arrive in time.
+     */
+    private void exchange(Exchange exchange, byte[] binMsg) throws CommandExecutionException {
+        exchange.reset();
         DatagramPacket packet = new DatagramPacket(binMsg, binMsg.length, ip, PORT);
         try {
             socket.send(packet);
         } catch (SocketTimeoutException to){
             throw new CommandExecutionException(CommandExecutionException.Error.TIMEOUT);
         } catch (IOException e) {
-            return null;
+            throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
+        }
+        observe(true, packet);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (!exchange.isDone()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new CommandExecutionException(CommandExecutionException.Error.TIMEOUT);
+            // The exchange is marked as waiting before trying the lock, so a receiver that releases the lock in between either is seen here or wakes this exchange.
+            exchange.setWaiting(true);
+            if (receiveLock.tryLock()) {
+                exchange.setWaiting(false);
+                try {
+                    receive(exchange, deadline);
+                } finally {
+                    receiveLock.unlock();
+                    handOver(exchange);
+                }
+            } else {
+                try {
+                    exchange.await(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CommandExecutionException(CommandExecutionException.Error.TIMEOUT);
+                }
+            }
+        }
+    }
+
+    private void receive(Exchange own, long deadline) {
+        while (!own.isDone()) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) return;
+            DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+            try {
+                socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+                socket.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+            byte[] data = Arrays.copyOf(receiveBuffer, packet.getLength());
+            observe(false, packet.getAddress(), packet.getPort(), data);
+            dispatch(data);
         }
-        packet = new DatagramPacket(rcv, rcv.length);
+    }
+
+    /**
+     * Hand a received packet to the thread waiting for it. Packets that belong to no waiting thread, like late responses to retried commands, are dropped.
+     * @param data The received packet.
+     */
+    private void dispatch(byte[] data) {
+        Response response = null;
+        CommandExecutionException error = null;
+        long id;
         try {
-            socket.receive(packet);
-        } catch (SocketTimeoutException to){
-            throw new CommandExecutionException(CommandExecutionException.Error.TIMEOUT);
-        } catch (IOException e) {
-            return null;
+            response = new Response(data, this.token);
+            if (!response.isValid()) return;
+            id = response.getPayloadID();
+            if (response.getTimeStamp() != -1 && exchanges.containsKey(id)) {
+                timeStamp = response.getTimeStamp();
+                clock.sync(timeStamp);
+            }
+        } catch (CommandExecutionException e) {
+            error = e;
+            id = payloadIDOf(data);
+        }
+        Exchange exchange = exchanges.get(id);
+        if (exchange == null) exchange = rawExchanges.poll();
+        if (exchange != null) exchange.complete(data, response, error);
+    }
+
+    private long payloadIDOf(byte[] data) {
+        if (data.length <= 0x20) return -1;
+        String payload = Response.decryptPayload(Arrays.copyOfRange(data, 0x20, data.length), this.token);
+        if (payload == null) return -1;
+        try {
+            return new JSONObject(payload).optLong("id", -1);
+        } catch (JSONException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Wake up one thread that is waiting for its response, so it takes over receiving.
+     * @param own The exchange of the thread that stopped receiving. It is never woken.
+     */
+    private void handOver(Exchange own) {
+        for (Exchange e : exchanges.values()) {
+            if (e != own && e.wake()) return;
+        }
+        for (Exchange e : rawExchanges) {
+            if (e != own && e.wake()) return;
         }
-        byte[] worker = new byte[2];
-        System.arraycopy(rcv, 2, worker, 0, 2);
-        int length = (int)ByteArray.fromBytes(worker);
-        worker = new byte[length];
-        System.arraycopy(rcv, 0, worker, 0, length);
-        return worker;
     }
 
-    private Response parseResponse(byte[] rawData) throws CommandExecutionException {
-        Response response = new Response(rawData, this.token);
-        if (!response.isValid()) {
+    private Response parseResponse(Exchange exchange, long id) throws CommandExecutionException {
+        if (exchange.error != null) throw exchange.error;
+        Response response = exchange.response;
+        if (response == null || !response.isValid()) {
             throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
         }
-        if (response.getPayloadID() != (methodID - 1)){
+        if (response.getPayloadID() != id){
             throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
         }
         if (!((response.getDeviceID() == -1) || (response.getTimeStamp() == -1))){
-            if (response.getParams() == null) {
+            if (!response.hasResult()) {
                 throw new CommandExecutionException(CommandExecutionException.Error.EMPTY_RESPONSE);
             }
-            if (response.getParams().getClass() == String.class){
-                if (response.getParams().equals("unknown_method")) throw new CommandExecutionException((CommandExecutionException.Error.UNKNOWN_METHOD));
-            }
+            if (response.isUnknownMethod()) throw new CommandExecutionException((CommandExecutionException.Error.UNKNOWN_METHOD));
             return response;
         }
         throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
@@ -400,7 +650,36 @@ public class Device implements Serializable {
      * @throws CommandExecutionException When there has been a error during the communication or the response was invalid.
      */
     public boolean sendOk(String method, Object params) throws CommandExecutionException {
-        return sendToArray(method, params).optString(0).toLowerCase().equals("ok");
+        Response resp = send(method, params);
+        if (resp == null || !resp.isArray()) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
+        return resp.isOk();
+    }
+
+    /**
+     * Send an idempotent setter to the device in the background. If a newer value for the same method is queued before this one has been sent, only the newer value is sent.
+     * @param method The method to execute on the device.
+     * @param params The command to execute on the device. Must be a JSONArray or JSONObject.
+     * @return The result of the command that was eventually sent. True if a ok was received from the device.
+     */
+    public Future<Boolean> sendOkCoalesced(String method, Object params) {
+        return getCoalescer().submit(method, params);
+    }
+
+    /**
+     * @return The coalescer that sends the idempotent setters of this device.
+     */
+    public CommandCoalescer getCoalescer() {
+        CommandCoalescer c = coalescer;
+        if (c == null) {
+            synchronized (this) {
+                c = coalescer;
+                if (c == null) {
+                    c = new CommandCoalescer(this);
+                    coalescer = c;
+                }
+            }
+        }
+        return c;
     }
 
     /**
@@ -432,13 +711,23 @@ public class Device implements Serializable {
     public boolean update(String url, String md5) throws CommandExecutionException {
         if (url == null || md5 == null) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS);
         if (md5.length() != 32) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS);
+        return sendOk("miIO.ota", updateParams(url, md5));
+    }
+
+    /**
+     * Create the parameters of the miIO.ota command that updates a device.
+     * @param url The URL to update from
+     * @param md5 The MD5 Checksum for the update
+     * @return The parameters of the command.
+     */
+    public static JSONObject updateParams(String url, String md5) {
         JSONObject params = new JSONObject();
         params.put("mode","normal");
         params.put("install", "1");
         params.put("app_url", url);
         params.put("file_md5", md5);
         params.put("proc", "dnld install");
-        return sendOk("miIO.ota", params);
+        return params;
     }
 
     /**
@@ -506,14 +795,107 @@ public class Device implements Serializable {
         return in.optString("fw_ver");
     }
 
+    /**
+     * @return The clock that generates the stamps of the messages sent to this device.
+     */
+    public DeviceClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Release the sockets of this device. Commands sent after closing the device will fail.
+     */
+    public void close() {
+        if (socket != null) socket.close();
+        synchronized (this) {
+            if (unansweredChannel == null) return;
+            try {
+                unansweredChannel.close();
+            } catch (IOException ignored) {
+            }
+            unansweredChannel = null;
+        }
+    }
+
     private void writeObject(ObjectOutputStream out) throws IOException {
         out.defaultWriteObject();
-        out.writeInt(socket.getSoTimeout());
+        out.writeInt(timeout);
+        // The monotonic time is meaningless in another process, so the stamp is stored together with the wall clock time.
+        out.writeInt(clock.current(System.nanoTime()));
+        out.writeLong(System.currentTimeMillis());
     }
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
-        socket = new DatagramSocket();
-        socket.setSoTimeout(in.readInt());
+        init(in.readInt());
+        if (socket == null) throw new SocketException("Could not create socket");
+        long stamp = timeStamp;
+        long elapsed = 0;
+        try {
+            int current = in.readInt();
+            long written = in.readLong();
+            if (current != -1) {
+                stamp = current & 0xFFFFFFFFL;
+                elapsed = System.currentTimeMillis() - written;
+                if (elapsed < 0) elapsed = 0;
+            }
+        } catch (OptionalDataException | EOFException ignored) {
+            // Written by a version without a clock.
+        }
+        if (stamp != -1) clock.sync((int) (stamp + TimeUnit.MILLISECONDS.toSeconds(elapsed)));
+    }
+
+    /**
+     * The state of a command waiting for its response.
+     */
+    private static class Exchange {
+        private byte[] raw;
+        private Response response;
+        private CommandExecutionException error;
+        private boolean done;
+        private boolean woken;
+        private boolean waiting;
+
+        private synchronized void reset() {
+            raw = null;
+            response = null;
+            error = null;
+            done = false;
+        }
+
+        private synchronized void complete(byte[] raw, Response response, CommandExecutionException error) {
+            if (done) return;
+            this.raw = raw;
+            this.response = response;
+            this.error = error;
+            this.done = true;
+            notifyAll();
+        }
+
+        private synchronized boolean isDone() {
+            return done;
+        }
+
+        private synchronized void setWaiting(boolean waiting) {
+            this.waiting = waiting;
+        }
+
+        private synchronized boolean wake() {
+            if (done || !waiting) return false;
+            woken = true;
+            notifyAll();
+            return true;
+        }
+
+        private synchronized void await(long nanos) throws InterruptedException {
+            long deadline = System.nanoTime() + nanos;
+            while (!done && !woken) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) break;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            woken = false;
+            waiting = false;
+        }
     }
 }
\ No newline at end of file
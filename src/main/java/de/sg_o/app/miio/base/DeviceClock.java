@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.base;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the stamp of a device. The stamp counts seconds on the device, the clock learns the offset between the stamp and the local monotonic time from the hello and from the headers of responses.
+ * New stamps are derived from that offset, so a device that has been idle for a long time can be commanded without a new handshake. Stamps never decrease, unless the device restarted.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DeviceClock {
+    /**
+     * If a device reports a stamp that is this many seconds behind the clock, the device is assumed to have restarted.
+     */
+    public static final long RESTART_THRESHOLD = 60;
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private boolean synced;
+    private long baseStamp;
+    private long baseNanos;
+    private long lastIssued;
+    private long syncs;
+    private long restarts;
+
+    /**
+     * Create a clock that has not been synchronized yet.
+     */
+    public DeviceClock() {
+    }
+
+    /**
+     * Synchronize the clock with a stamp received from the device now.
+     * @param stamp The stamp of the device.
+     */
+    public void sync(int stamp) {
+        sync(stamp, System.nanoTime());
+    }
+
+    /**
+     * Synchronize the clock with a stamp received from the device.
+     * @param stamp The stamp of the device.
+     * @param nanos The value of {@link System#nanoTime()} when the stamp has been received.
+     */
+    public synchronized void sync(int stamp, long nanos) {
+        long s = stamp & 0xFFFFFFFFL;
+        if (synced) {
+            long expected = baseStamp + (nanos - baseNanos) / SECOND;
+            if (s + RESTART_THRESHOLD < expected) {
+                lastIssued = s;
+                restarts++;
+            } else if (s < expected) {
+                // A response might have been delayed, a stamp that is a little too old does not move the clock back.
+                return;
+            }
+        } else {
+            lastIssued = s;
+        }
+        baseStamp = s;
+        baseNanos = nanos;
+        synced = true;
+        syncs++;
+    }
+
+    /**
+     * Get the stamp for a new message.
+     * @return The stamp. -1 if the clock has not been synchronized yet.
+     */
+    public int next() {
+        return next(System.nanoTime());
+    }
+
+    /**
+     * Get the stamp for a new message. Every call returns a larger stamp than the previous call, even if the messages are sent within the same second.
+     * @param nanos The current value of {@link System#nanoTime()}.
+     * @return The stamp. -1 if the clock has not been synchronized yet.
+     */
+    public synchronized int next(long nanos) {
+        if (!synced) return -1;
+        long stamp = baseStamp + (nanos - baseNanos) / SECOND;
+        if (stamp <= lastIssued) stamp = lastIssued + 1;
+        lastIssued = stamp;
+        return (int) stamp;
+    }
+
+    /**
+     * Estimate the current stamp of the device without reserving it for a message.
+     * @param nanos The current value of {@link System#nanoTime()}.
+     * @return The estimated stamp. -1 if the clock has not been synchronized yet.
+     */
+    public synchronized int current(long nanos) {
+        if (!synced) return -1;
+        return (int) (baseStamp + (nanos - baseNanos) / SECOND);
+    }
+
+    /**
+     * @return True if the clock has been synchronized with the device.
+     */
+    public synchronized boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * @return The number of times the clock has been moved to a stamp received from the device.
+     */
+    public synchronized long getSyncs() {
+        return syncs;
+    }
+
+    /**
+     * @return The number of times the device reported a stamp that was far behind the clock.
+     */
+    public synchronized long getRestarts() {
+        return restarts;
+    }
+
+    /**
+     * Forget the synchronization, the next stamp has to be learned from the device again.
+     */
+    public synchronized void reset() {
+        synced = false;
+    }
+}
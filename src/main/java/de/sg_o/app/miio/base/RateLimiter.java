@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.base;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A token bucket that paces the packets sent to a device. Callers wait in priority lanes, a waiting interactive command is always served before a waiting background poll.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RateLimiter {
+    /**
+     * The priority lanes. Lanes with a lower ordinal are served first.
+     */
+    public enum Lane {
+        /**
+         * Commands triggered by a user, like starting or stopping a device.
+         */
+        INTERACTIVE,
+        /**
+         * Status polls and other commands that can wait.
+         */
+        BACKGROUND
+    }
+
+    private static final Lane[] LANES = Lane.values();
+
+    private final double rate;
+    private final int burst;
+    private final long maxWaitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition[] available = new Condition[LANES.length];
+    private final int[] waiting = new int[LANES.length];
+    private final long[] granted = new long[LANES.length];
+    private final long[] rejected = new long[LANES.length];
+    private final long[] waitedNanos = new long[LANES.length];
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Create a new rate limiter.
+     * @param rate The number of packets per second that may be sent on average. Values less than or equal to 0 will be replaced by a default value of 10.
+     * @param burst The number of packets that may be sent at once after a period of inactivity. Values less than 1 will be replaced by 1.
+     * @param maxWait The maximum time in ms a command waits for its turn before it fails. Values less than 0 will let commands wait indefinitely.
+     */
+    public RateLimiter(double rate, int burst, long maxWait) {
+        if (rate <= 0) rate = 10;
+        if (burst < 1) burst = 1;
+        this.rate = rate;
+        this.burst = burst;
+        this.maxWaitNanos = maxWait < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(maxWait);
+        for (int i = 0; i < LANES.length; i++) {
+            available[i] = lock.newCondition();
+        }
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * @return The number of packets per second that may be sent on average.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return The number of packets that may be sent at once.
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * @return The maximum time in ms a command waits for its turn. -1 if commands wait indefinitely.
+     */
+    public long getMaxWait() {
+        return maxWaitNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+    }
+
+    /**
+     * Override the lane a method is sent in.
+     * @param method The method to configure.
+     * @param lane The lane to use for this method. Null to restore the default.
+     */
+    public void setLane(String method, Lane lane) {
+        if (method == null) return;
+        if (lane == null) {
+            lanes.remove(method);
+        } else {
+            lanes.put(method, lane);
+        }
+    }
+
+    /**
+     * Get the lane a method is sent in. Unless configured otherwise getters and info requests are treated as background polls, everything else as interactive.
+     * @param method The method to check.
+     * @return The lane of that method.
+     */
+    public Lane laneOf(String method) {
+        if (method == null) return Lane.INTERACTIVE;
+        Lane lane = lanes.get(method);
+        if (lane != null) return lane;
+        if (method.startsWith("get_") || method.startsWith("miIO.get_") || method.equals("miIO.info")) return Lane.BACKGROUND;
+        return Lane.INTERACTIVE;
+    }
+
+    /**
+     * Wait until a packet for the given method may be sent.
+     * @param method The method that should be sent.
+     * @throws CommandExecutionException When the maximum wait time was exceeded or the thread was interrupted.
+     */
+    public void acquire(String method) throws CommandExecutionException {
+        acquire(laneOf(method));
+    }
+
+    /**
+     * Wait until a packet may be sent in the given lane.
+     * @param lane The lane to wait in.
+     * @throws CommandExecutionException When the maximum wait time was exceeded or the thread was interrupted.
+     */
+    public void acquire(Lane lane) throws CommandExecutionException {
+        if (lane == null) lane = Lane.INTERACTIVE;
+        int index = lane.ordinal();
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            waiting[index]++;
+            try {
+                while (true) {
+                    refill();
+                    if (tokens >= 1.0d && !higherLaneWaiting(index)) {
+                        tokens -= 1.0d;
+                        granted[index]++;
+                        waitedNanos[index] += System.nanoTime() - start;
+                        return;
+                    }
+                    long wait = nanosUntilNextToken();
+                    if (maxWaitNanos >= 0) {
+                        long remaining = maxWaitNanos - (System.nanoTime() - start);
+                        if (remaining <= 0) {
+                            rejected[index]++;
+                            throw new CommandExecutionException(CommandExecutionException.Error.TIMEOUT, "Rate limit exceeded");
+                        }
+                        if (wait > remaining) wait = remaining;
+                    }
+                    available[index].awaitNanos(wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected[index]++;
+                throw new CommandExecutionException(CommandExecutionException.Error.TIMEOUT, "Interrupted while waiting for the rate limit");
+            } finally {
+                waiting[index]--;
+                for (Condition c : available) {
+                    c.signal();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean higherLaneWaiting(int index) {
+        for (int i = 0; i < index; i++) {
+            if (waiting[i] > 0) return true;
+        }
+        return false;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens += (now - lastRefill) * rate / 1000000000.0d;
+        if (tokens > burst) tokens = burst;
+        lastRefill = now;
+    }
+
+    private long nanosUntilNextToken() {
+        if (tokens >= 1.0d) return TimeUnit.MILLISECONDS.toNanos(1);
+        return (long) Math.ceil((1.0d - tokens) * 1000000000.0d / rate);
+    }
+
+    /**
+     * @param lane The lane to check.
+     * @return The number of commands currently waiting in that lane.
+     */
+    public int getQueueDepth(Lane lane) {
+        if (lane == null) return 0;
+        lock.lock();
+        try {
+            return waiting[lane.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of commands currently waiting in all lanes.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            int depth = 0;
+            for (int w : waiting) {
+                depth += w;
+            }
+            return depth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane The lane to check.
+     * @return The number of packets that have been allowed in that lane.
+     */
+    public long getGranted(Lane lane) {
+        if (lane == null) return 0;
+        lock.lock();
+        try {
+            return granted[lane.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane The lane to check.
+     * @return The number of commands in that lane that failed because they waited too long or were interrupted.
+     */
+    public long getRejected(Lane lane) {
+        if (lane == null) return 0;
+        lock.lock();
+        try {
+            return rejected[lane.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane The lane to check.
+     * @return The average time in ms a packet in that lane waited before it was allowed.
+     */
+    public double getAverageWait(Lane lane) {
+        if (lane == null) return 0;
+        lock.lock();
+        try {
+            int index = lane.ordinal();
+            if (granted[index] == 0) return 0;
+            return waitedNanos[index] / 1000000.0d / granted[index];
+        } finally {
+            lock.unlock();
+        }
+    }
+}
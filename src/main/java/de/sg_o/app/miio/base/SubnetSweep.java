@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.base;
+
+import de.sg_o.app.miio.base.messages.Command;
+import de.sg_o.app.miio.base.messages.Response;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovers devices in networks that filter broadcasts by sending a hello to every address of a subnet.
+ * All hellos are sent from one non-blocking socket at a fixed rate, the replies are collected while sending.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SubnetSweep {
+    private static final int MIN_PREFIX = 16;
+    private static final Token NO_TOKEN_F = new Token("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF", 16);
+    private static final Token NO_TOKEN_0 = new Token("00000000000000000000000000000000", 16);
+
+    private final int network;
+    private final int prefix;
+    private int port = Device.PORT;
+    private int rate = 1000;
+    private int passes = 1;
+    private int timeout = 1000;
+    private long sent;
+
+    /**
+     * Create a new sweep.
+     * @param cidr The subnet to sweep in CIDR notation, for example "192.168.0.0/22". Only IPv4 subnets with a prefix of at least 16 bits are supported.
+     * @throws CommandExecutionException When the subnet is invalid.
+     */
+    public SubnetSweep(String cidr) throws CommandExecutionException {
+        if (cidr == null) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS);
+        int slash = cidr.indexOf('/');
+        int prefix = 32;
+        String address = cidr;
+        if (slash >= 0) {
+            address = cidr.substring(0, slash);
+            try {
+                prefix = Integer.parseInt(cidr.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS, cidr);
+            }
+        }
+        InetAddress network;
+        try {
+            network = InetAddress.getByName(address.trim());
+        } catch (UnknownHostException e) {
+            throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS, cidr);
+        }
+        this.prefix = checkPrefix(network, prefix);
+        this.network = toInt(network) & mask(this.prefix);
+    }
+
+    /**
+     * Create a new sweep.
+     * @param network An address within the subnet to sweep. Only IPv4 is supported.
+     * @param prefix The length of the network prefix. At least 16.
+     * @throws CommandExecutionException When the subnet is invalid.
+     */
+    public SubnetSweep(InetAddress network, int prefix) throws CommandExecutionException {
+        this.prefix = checkPrefix(network, prefix);
+        this.network = toInt(network) & mask(this.prefix);
+    }
+
+    private static int checkPrefix(InetAddress network, int prefix) throws CommandExecutionException {
+        if (!(network instanceof Inet4Address)) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS, "Only IPv4 is supported");
+        if (prefix < MIN_PREFIX || prefix > 32) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS, "Invalid prefix " + prefix);
+        return prefix;
+    }
+
+    private static int mask(int prefix) {
+        if (prefix == 0) return 0;
+        return -1 << (32 - prefix);
+    }
+
+    private static int toInt(InetAddress address) {
+        byte[] b = address.getAddress();
+        return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+    }
+
+    private static InetAddress toAddress(int address) {
+        try {
+            return InetAddress.getByAddress(new byte[]{(byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address});
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The addresses that are swept. The network and broadcast addresses are skipped for subnets with more than two addresses.
+     */
+    public List<InetAddress> getAddresses() {
+        int size = 1 << (32 - prefix);
+        int first = 0;
+        int last = size - 1;
+        if (size > 2) {
+            first++;
+            last--;
+        }
+        List<InetAddress> addresses = new ArrayList<>(last - first + 1);
+        for (int i = first; i <= last; i++) {
+            addresses.add(toAddress(network + i));
+        }
+        return addresses;
+    }
+
+    /**
+     * Send a hello to every address of the subnet and collect the replies.
+     * @return The devices that replied, in the order their replies have been received.
+     * @throws IOException When the socket could not be opened or the hellos could not be sent.
+     */
+    public List<Result> sweep() throws IOException {
+        List<InetAddress> addresses = getAddresses();
+        Map<InetAddress, Result> found = new LinkedHashMap<>();
+        ByteBuffer hello = ByteBuffer.wrap(new Command().create());
+        ByteBuffer buf = ByteBuffer.allocate(65507);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        sent = 0;
+        try (DatagramChannel channel = DatagramChannel.open(); Selector selector = Selector.open()) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            for (int pass = 0; pass < passes; pass++) {
+                long start = System.nanoTime();
+                long paced = 0;
+                for (InetAddress address : addresses) {
+                    // Later passes only repeat the hello to addresses that did not reply yet.
+                    if (found.containsKey(address)) continue;
+                    InetSocketAddress target = new InetSocketAddress(address, port);
+                    long wait;
+                    while ((wait = start + paced * intervalNanos - System.nanoTime()) > 0) {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                        drain(channel, selector, buf, found);
+                    }
+                    hello.rewind();
+                    while (channel.send(hello, target) == 0) {
+                        // The send buffer is full, let the replies catch up.
+                        selector.select(1);
+                        drain(channel, selector, buf, found);
+                        hello.rewind();
+                    }
+                    paced++;
+                    sent++;
+                    drain(channel, selector, buf, found);
+                }
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            long remaining;
+            while (found.size() < addresses.size() && (remaining = deadline - System.nanoTime()) > 0) {
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                drain(channel, selector, buf, found);
+            }
+        }
+        return new ArrayList<>(found.values());
+    }
+
+    private static void drain(DatagramChannel channel, Selector selector, ByteBuffer buf, Map<InetAddress, Result> found) throws IOException {
+        selector.selectedKeys().clear();
+        while (true) {
+            buf.clear();
+            SocketAddress source = channel.receive(buf);
+            if (source == null) return;
+            InetAddress address = ((InetSocketAddress) source).getAddress();
+            if (found.containsKey(address)) continue;
+            Response response;
+            try {
+                response = new Response(Arrays.copyOf(buf.array(), buf.position()), null);
+            } catch (CommandExecutionException e) {
+                continue;
+            }
+            if (!response.isValid() || response.getDeviceID() == -1 || response.getTimeStamp() == -1) continue;
+            Token token = response.getToken();
+            if (token.equals(NO_TOKEN_F) || token.equals(NO_TOKEN_0)) token = null;
+            found.put(address, new Result(address, response.getDeviceID(), response.getTimeStamp(), token));
+        }
+    }
+
+    /**
+     * @return The number of hellos sent by the last sweep.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return The port the hellos are sent to.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @param port The port the hellos are sent to. Invalid values are replaced by the miIO port.
+     */
+    public void setPort(int port) {
+        if (port < 1 || port > 65535) port = Device.PORT;
+        this.port = port;
+    }
+
+    /**
+     * @return The number of hellos sent per second.
+     */
+    public int getRate() {
+        return rate;
+    }
+
+    /**
+     * @param rate The number of hellos sent per second. At least 1.
+     */
+    public void setRate(int rate) {
+        if (rate < 1) rate = 1;
+        this.rate = rate;
+    }
+
+    /**
+     * @return The number of times the addresses that did not reply are tried.
+     */
+    public int getPasses() {
+        return passes;
+    }
+
+    /**
+     * @param passes The number of times the addresses that did not reply are tried. At least 1.
+     */
+    public void setPasses(int passes) {
+        if (passes < 1) passes = 1;
+        this.passes = passes;
+    }
+
+    /**
+     * @return The time in ms to wait for replies after the last hello has been sent.
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout The time in ms to wait for replies after the last hello has been sent.
+     */
+    public void setTimeout(int timeout) {
+        if (timeout < 0) timeout = 0;
+        this.timeout = timeout;
+    }
+
+    /**
+     * A device that replied to a hello.
+     */
+    public static class Result {
+        private final InetAddress address;
+        private final int deviceID;
+        private final int timeStamp;
+        private final Token token;
+
+        private Result(InetAddress address, int deviceID, int timeStamp, Token token) {
+            this.address = address;
+            this.deviceID = deviceID;
+            this.timeStamp = timeStamp;
+            this.token = token;
+        }
+
+        /**
+         * @return The address of the device.
+         */
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * @return The ID of the device.
+         */
+        public int getDeviceID() {
+            return deviceID;
+        }
+
+        /**
+         * @return The stamp of the device at the time of the reply.
+         */
+        public int getTimeStamp() {
+            return timeStamp;
+        }
+
+        /**
+         * @return The token of the device. Null if the device is provisioned and does not reveal its token.
+         */
+        public Token getToken() {
+            return token;
+        }
+
+        /**
+         * @return True if the device revealed its token.
+         */
+        public boolean isUnprovisioned() {
+            return token != null;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "address=" + address +
+                    ", deviceID=" + deviceID +
+                    ", timeStamp=" + timeStamp +
+                    ", token=" + token +
+                    '}';
+        }
+    }
+}
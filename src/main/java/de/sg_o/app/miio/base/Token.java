@@ -113,13 +113,25 @@ public class Token implements Serializable {
      * @return The encrypted message. Null if encryption failed.
      */
     public byte[] encrypt(byte[] msg) {
+        if (msg == null) return null;
+        return encrypt(msg, 0, msg.length);
+    }
+
+    /**
+     * Encrypt a part of a buffer with this token.
+     * @param msg The buffer containing the message to encrypt.
+     * @param offset The position of the first byte of the message.
+     * @param length The length of the message.
+     * @return The encrypted message. Null if encryption failed.
+     */
+    public byte[] encrypt(byte[] msg, int offset, int length) {
         if (msg == null) return null;
         try {
             Cipher cipher = Cipher.getInstance(ENCRYPTION_ALGORITHM_IMPLEMENTATION);
             SecretKeySpec key = new SecretKeySpec(getMd5(), ENCRYPTION_ALGORITHM);
             IvParameterSpec iv = new IvParameterSpec(getIv());
             cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-            return cipher.doFinal(msg);
+            return cipher.doFinal(msg, offset, length);
         } catch (Exception e) {
             return null;
         }
@@ -131,13 +143,25 @@ public class Token implements Serializable {
      * @return The encrypted message. Null if decryption failed.
      */
     public byte[] decrypt(byte[] msg) {
+        if (msg == null) return null;
+        return decrypt(msg, 0, msg.length);
+    }
+
+    /**
+     * Decrypt a part of a buffer with this token.
+     * @param msg The buffer containing the message to decrypt.
+     * @param offset The position of the first byte of the message.
+     * @param length The length of the message.
+     * @return The decrypted message. Null if decryption failed.
+     */
+    public byte[] decrypt(byte[] msg, int offset, int length) {
         if (msg == null) return null;
         try {
             Cipher cipher = Cipher.getInstance(ENCRYPTION_ALGORITHM_IMPLEMENTATION);
             SecretKeySpec key = new SecretKeySpec(getMd5(), ENCRYPTION_ALGORITHM);
             IvParameterSpec iv = new IvParameterSpec(getIv());
             cipher.init(Cipher.DECRYPT_MODE, key, iv);
-            return cipher.doFinal(msg);
+            return cipher.doFinal(msg, offset, length);
         } catch (Exception e) {
             return null;
         }
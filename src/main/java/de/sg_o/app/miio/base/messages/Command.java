@@ -20,8 +20,6 @@ import de.sg_o.app.miio.base.Token;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.nio.charset.Charset;
-
 public class Command extends Message {
     private String method;
     private Object params;
@@ -36,21 +34,11 @@ public class Command extends Message {
     public Command(byte[] message, Token token) {
         super(message, token);
         if (super.isValid()){
-            if (message.length > 0x20){
-                byte[] payload = new byte[message.length - 0x20];
-                System.arraycopy(message, 0x20, payload,0, payload.length);
-                payload = super.getToken().decrypt(payload);
-                if (payload != null){
-                    Charset charset = Charset.forName("ISO-8859-1");
-                    int i;
-                    //noinspection StatementWithEmptyBody
-                    for (i = 0; i < payload.length && payload[i] != 0; i++) { }
-                    String pl = new String(payload, 0, i, charset);
-                    JSONObject ob = new JSONObject(pl);
-                    this.method = ob.optString("method", null);
-                    this.params = ob.optJSONObject("params");
-                    if (this.params == null) this.params = ob.optJSONArray("params");
-                }
+            if (super.hasPayload()){
+                JSONObject ob = new JSONObject(super.getPayloadString());
+                this.method = ob.optString("method", null);
+                this.params = ob.optJSONObject("params");
+                if (this.params == null) this.params = ob.optJSONArray("params");
             }
         }
     }
@@ -69,32 +57,11 @@ public class Command extends Message {
         return params;
     }
 
-    private String constructPayload(){
-        JSONObject out = new JSONObject();
-        out.put("id", super.getPayloadID());
-        if (method == null) return null;
-        out.put("method", method);
-        if (params != null) {
-            if (params.getClass() == JSONObject.class) {
-                JSONObject paramsObj = (JSONObject) params;
-                if (paramsObj.length() > 0) {
-                    out.put("params", paramsObj);
-                }
-            }
-            if (params.getClass() == JSONArray.class) {
-                JSONArray paramsObj = (JSONArray) params;
-                out.put("params", paramsObj);
-            }
-        } else {
-            out.put("params", new JSONArray());
-        }
-        return out.toString();
-    }
-
     public byte[] create(){
         if (super.isHello()){
             return super.create(null);
         }
-        return super.create(constructPayload());
+        if (method == null) return super.create(null);
+        return super.createFrom(PayloadWriter.get().command(super.getPayloadID(), method, params));
     }
 }
@@ -20,10 +20,8 @@ import de.sg_o.app.miio.base.Token;
 import org.json.JSONObject;
 import de.sg_o.app.miio.util.ByteArray;
 
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -35,6 +33,7 @@ public abstract class Message {
     static final int HELLO_DEVICE_ID = ByteArray.UNSIGNED_FFFFFFFF;
     static final int HELLO_TIME_STAMP = ByteArray.UNSIGNED_FFFFFFFF;
     static final int NORMAL_UNKNOWN = 0;
+    static final Charset PAYLOAD_CHARSET = StandardCharsets.UTF_8;
 
     private Token token;
     private int unknownHeader;
@@ -42,6 +41,8 @@ public abstract class Message {
     private int timeStamp;
 
     private long payloadID;
+    private byte[] payload;
+    private int payloadLength;
 
     private boolean valid;
 
@@ -84,18 +85,68 @@ public abstract class Message {
             }
 
             if (message.length > 0x20){
-                byte[] payload = new byte[message.length - 0x20];
-                System.arraycopy(message, 0x20, payload,0, payload.length);
-                String pl = decryptPayload(payload, this.token);
-                if (pl != null){
-                    JSONObject ob = new JSONObject(pl);
-                    this.payloadID = ob.optLong("id");
+                byte[] decrypted = this.token.decrypt(message, 0x20, message.length - 0x20);
+                if (decrypted != null){
+                    this.payload = decrypted;
+                    this.payloadLength = ByteArray.indexOfNul(decrypted, 0, decrypted.length);
+                    this.payloadID = scanPayloadID();
                 }
             }
             valid = true;
         }
     }
 
+    private long scanPayloadID() {
+        int[] span = PayloadScanner.find(payload, 0, payloadLength, "id");
+        if (span != null) {
+            if (span[0] < 0) return 0;
+            int start = span[0];
+            int end = span[1];
+            boolean negative = payload[start] == '-';
+            if (negative) start++;
+            if (end > start && end - start <= 18) {
+                long id = 0;
+                int i;
+                for (i = start; i < end; i++) {
+                    int digit = payload[i] - '0';
+                    if (digit < 0 || digit > 9) break;
+                    id = id * 10 + digit;
+                }
+                if (i == end) return negative ? -id : id;
+            }
+        }
+        return new JSONObject(getPayloadString()).optLong("id");
+    }
+
+    /**
+     * @return True if the message contained a payload that could be decrypted.
+     */
+    boolean hasPayload() {
+        return payload != null;
+    }
+
+    /**
+     * @return The decrypted payload. Only the first {@link #getPayloadLength()} bytes belong to the payload.
+     */
+    byte[] getPayloadBytes() {
+        return payload;
+    }
+
+    /**
+     * @return The length of the decrypted payload without the NUL terminator.
+     */
+    int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * @return The decrypted payload as a string. Null if the message did not contain a payload.
+     */
+    String getPayloadString() {
+        if (payload == null) return null;
+        return new String(payload, 0, payloadLength, PAYLOAD_CHARSET);
+    }
+
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     public static boolean testMessage(byte[] message, Token tk) {
         if (message == null) {
@@ -139,16 +190,23 @@ public abstract class Message {
     }
 
     public static String decryptPayload(byte[] payload, Token tk){
+        if (payload == null) return null;
+        return decryptPayload(payload, 0, payload.length, tk);
+    }
+
+    /**
+     * Decrypt a payload that is part of a larger buffer and decode it up to the first NUL byte.
+     * @param message The buffer containing the encrypted payload.
+     * @param offset The position of the first byte of the payload.
+     * @param length The length of the encrypted payload.
+     * @param tk The token to decrypt the payload with.
+     * @return The decoded payload. Null if decryption failed.
+     */
+    static String decryptPayload(byte[] message, int offset, int length, Token tk){
         if (tk == null) return null;
-        payload = tk.decrypt(payload);
-        if (payload != null){
-            Charset charset = Charset.forName("ISO-8859-1");
-            int i;
-            //noinspection StatementWithEmptyBody
-            for (i = 0; i < payload.length && payload[i] != 0; i++) { }
-            return new String(payload, 0, i, charset);
-        }
-        return null;
+        byte[] payload = tk.decrypt(message, offset, length);
+        if (payload == null) return null;
+        return new String(payload, 0, ByteArray.indexOfNul(payload, 0, payload.length), PAYLOAD_CHARSET);
     }
 
     public Token getToken() {
@@ -177,13 +235,9 @@ public abstract class Message {
 
     private byte[] getBytePayload(String payload){
         if (payload == null) return new byte[0];
-        CharsetEncoder enc = Charset.forName("ISO-8859-1").newEncoder();
-        int len = payload.length();
-        byte b[] = new byte[len + 1];
-        ByteBuffer buf = ByteBuffer.wrap(b);
-        enc.encode(CharBuffer.wrap(payload), buf, true);
-        b[len] = 0;
-        return b;
+        byte[] encoded = payload.getBytes(PAYLOAD_CHARSET);
+        // The copy is one byte longer than the encoded payload, the last byte stays 0 to terminate the payload.
+        return Arrays.copyOf(encoded, encoded.length + 1);
     }
 
     private byte[] getPayload(String payload){
@@ -196,6 +250,21 @@ public abstract class Message {
         if (pl != null) {
             payload = getPayload(pl);
         }
+        return assemble(payload);
+    }
+
+    /**
+     * Create the message from a payload that has been written by a payload writer.
+     * @param writer The writer containing the NUL terminated payload.
+     * @return The message or null if the message could not be created.
+     */
+    byte[] createFrom(PayloadWriter writer) {
+        if (!valid) return null;
+        return assemble(this.token.encrypt(writer.buffer(), 0, writer.length()));
+    }
+
+    private byte[] assemble(byte[] payload) {
+        if (payload == null) payload = new byte[0];
         byte[] msg = new byte[32 + payload.length];
         short length = (short)msg.length;
         System.arraycopy(ByteArray.toBytes(HEADER,2),0,msg,0,2);
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.base.messages;
+
+/**
+ * Locates the values of top level keys in a JSON payload without parsing it into a tree.
+ * The scanner only checks the structure as far as it is needed to skip values. Callers fall back to a full parse if a payload can not be scanned.
+ */
+final class PayloadScanner {
+    /**
+     * The type of a scanned value, derived from its first byte.
+     */
+    enum Type {
+        OBJECT,
+        ARRAY,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL
+    }
+
+    private PayloadScanner() {
+    }
+
+    /**
+     * Find the values of top level keys of a JSON object.
+     * @param b The buffer containing the payload.
+     * @param start The position of the first byte of the payload.
+     * @param end The position after the last byte of the payload.
+     * @param keys The keys to find. Keys containing escape sequences in the payload are not matched.
+     * @return Two positions for every key: The start of its value and the position after its value. -1 if the key is not present. Null if the payload is not a valid JSON object.
+     */
+    static int[] find(byte[] b, int start, int end, String... keys) {
+        int[] spans = new int[keys.length * 2];
+        for (int i = 0; i < spans.length; i++) {
+            spans[i] = -1;
+        }
+        int i = skipWhitespace(b, start, end);
+        if (i >= end || b[i] != '{') return null;
+        i = skipWhitespace(b, i + 1, end);
+        if (i < end && b[i] == '}') return spans;
+        while (i < end) {
+            if (b[i] != '"') return null;
+            int keyStart = i + 1;
+            int keyEnd = skipString(b, i, end);
+            if (keyEnd < 0) return null;
+            i = skipWhitespace(b, keyEnd, end);
+            if (i >= end || b[i] != ':') return null;
+            int valueStart = skipWhitespace(b, i + 1, end);
+            int valueEnd = skipValue(b, valueStart, end);
+            if (valueEnd < 0) return null;
+            for (int k = 0; k < keys.length; k++) {
+                if (spans[k * 2] < 0 && matches(b, keyStart, keyEnd - 1, keys[k])) {
+                    spans[k * 2] = valueStart;
+                    spans[k * 2 + 1] = valueEnd;
+                }
+            }
+            i = skipWhitespace(b, valueEnd, end);
+            if (i >= end) return null;
+            if (b[i] == '}') return spans;
+            if (b[i] != ',') return null;
+            i = skipWhitespace(b, i + 1, end);
+        }
+        return null;
+    }
+
+    /**
+     * Find the first element of a JSON array.
+     * @param b The buffer containing the array.
+     * @param start The position of the opening bracket.
+     * @param end The position after the closing bracket.
+     * @return The start and the end of the first element. Null if the array is empty or invalid.
+     */
+    static int[] first(byte[] b, int start, int end) {
+        if (start >= end || b[start] != '[') return null;
+        int valueStart = skipWhitespace(b, start + 1, end);
+        if (valueStart >= end || b[valueStart] == ']') return null;
+        int valueEnd = skipValue(b, valueStart, end);
+        if (valueEnd < 0) return null;
+        return new int[]{valueStart, valueEnd};
+    }
+
+    /**
+     * @param b The buffer containing the value.
+     * @param start The position of the first byte of the value.
+     * @return The type of the value. Null if the value is invalid.
+     */
+    static Type type(byte[] b, int start) {
+        switch (b[start]) {
+            case '{':
+                return Type.OBJECT;
+            case '[':
+                return Type.ARRAY;
+            case '"':
+                return Type.STRING;
+            case 't':
+            case 'f':
+                return Type.BOOLEAN;
+            case 'n':
+                return Type.NULL;
+            default:
+                return Type.NUMBER;
+        }
+    }
+
+    /**
+     * Check whether a string value does not contain escape sequences, so its bytes can be used directly.
+     * @param b The buffer containing the string.
+     * @param start The position of the opening quote.
+     * @param end The position after the closing quote.
+     * @return True if the string is free of escape sequences.
+     */
+    static boolean isPlainString(byte[] b, int start, int end) {
+        for (int i = start + 1; i < end - 1; i++) {
+            if (b[i] == '\\') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compare a plain string value with a ASCII string, ignoring the case.
+     * @param b The buffer containing the string.
+     * @param start The position of the opening quote.
+     * @param end The position after the closing quote.
+     * @param value The value to compare to.
+     * @return True if both are equal.
+     */
+    static boolean equalsIgnoreCase(byte[] b, int start, int end, String value) {
+        if (end - start - 2 != value.length()) return false;
+        for (int i = 0; i < value.length(); i++) {
+            int c = b[start + 1 + i];
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            int v = value.charAt(i);
+            if (v >= 'A' && v <= 'Z') v += 'a' - 'A';
+            if (c != v) return false;
+        }
+        return true;
+    }
+
+    private static boolean matches(byte[] b, int start, int end, String key) {
+        if (end - start != key.length()) return false;
+        for (int i = 0; i < key.length(); i++) {
+            if (b[start + i] != key.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(byte[] b, int i, int end) {
+        while (i < end && (b[i] == ' ' || b[i] == '\t' || b[i] == '\n' || b[i] == '\r')) i++;
+        return i;
+    }
+
+    private static int skipString(byte[] b, int i, int end) {
+        for (i = i + 1; i < end; i++) {
+            if (b[i] == '\\') {
+                i++;
+            } else if (b[i] == '"') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipValue(byte[] b, int i, int end) {
+        if (i >= end) return -1;
+        byte c = b[i];
+        if (c == '"') return skipString(b, i, end);
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            for (; i < end; i++) {
+                c = b[i];
+                if (c == '"') {
+                    i = skipString(b, i, end);
+                    if (i < 0) return -1;
+                    i--;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                    if (depth == 0) return i + 1;
+                }
+            }
+            return -1;
+        }
+        int start = i;
+        while (i < end) {
+            c = b[i];
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\n' || c == '\r') break;
+            i++;
+        }
+        return i > start ? i : -1;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.base.messages;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes the JSON payload of a message directly into a reusable byte buffer, without building a JSON tree or a intermediate string.
+ * Strings are encoded as UTF-8, control characters are escaped. The payload is terminated by a NUL byte, like the payloads the devices send.
+ */
+final class PayloadWriter {
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final int MAX_RETAINED = 65536;
+    private static final int MAX_TEMPLATES = 256;
+    private static final ConcurrentHashMap<String, byte[]> TEMPLATES = new ConcurrentHashMap<>();
+    private static final ThreadLocal<PayloadWriter> WRITER = new ThreadLocal<PayloadWriter>() {
+        @Override
+        protected PayloadWriter initialValue() {
+            return new PayloadWriter();
+        }
+    };
+
+    private byte[] buf = new byte[512];
+    private int length;
+
+    private PayloadWriter() {
+    }
+
+    /**
+     * Get the writer of the current thread. The writer is reset before it is returned.
+     * @return A empty writer.
+     */
+    static PayloadWriter get() {
+        PayloadWriter w = WRITER.get();
+        if (w.buf.length > MAX_RETAINED) w.buf = new byte[512];
+        w.length = 0;
+        return w;
+    }
+
+    /**
+     * @return The internal buffer. Only the first {@link #length()} bytes are valid.
+     */
+    byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * @return The number of bytes written.
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Write the payload of a command.
+     * @param id The payload ID.
+     * @param method The method to execute.
+     * @param params The parameters. A JSONArray, a JSONObject or null for a empty array. Empty JSONObjects are omitted.
+     * @return This writer.
+     */
+    PayloadWriter command(long id, String method, Object params) {
+        raw("{\"id\":");
+        number(id);
+        if (params == null || (params instanceof JSONArray && ((JSONArray) params).length() == 0)) {
+            bytes(template(method));
+            return this;
+        }
+        raw(",\"method\":");
+        string(method);
+        if (params instanceof JSONArray) {
+            raw(",\"params\":");
+            array((JSONArray) params);
+        } else if (params instanceof JSONObject && ((JSONObject) params).length() > 0) {
+            raw(",\"params\":");
+            object((JSONObject) params);
+        }
+        put('}');
+        put(0);
+        return this;
+    }
+
+    /**
+     * Get the part of a command payload without parameters that follows the ID. The templates of the first methods are cached, so frequent polls only need to write their ID.
+     * @param method The method to execute.
+     * @return The encoded method, a empty parameter array and the terminating NUL byte.
+     */
+    private static byte[] template(String method) {
+        byte[] template = TEMPLATES.get(method);
+        if (template != null) return template;
+        PayloadWriter w = new PayloadWriter();
+        w.raw(",\"method\":");
+        w.string(method);
+        w.raw(",\"params\":[]}");
+        w.put(0);
+        template = Arrays.copyOf(w.buf, w.length);
+        if (TEMPLATES.size() < MAX_TEMPLATES) TEMPLATES.put(method, template);
+        return template;
+    }
+
+    /**
+     * Write the payload of a response.
+     * @param id The payload ID.
+     * @param result The result. A JSONArray, a JSONObject, a String, a Number or a Boolean.
+     * @return This writer.
+     */
+    PayloadWriter response(long id, Object result) {
+        put('{');
+        if (result instanceof JSONArray || result instanceof JSONObject || result instanceof String || result instanceof Number || result instanceof Boolean) {
+            raw("\"result\":");
+            value(result);
+            put(',');
+        }
+        raw("\"id\":");
+        number(id);
+        put('}');
+        put(0);
+        return this;
+    }
+
+    private void value(Object value) {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            raw("null");
+        } else if (value instanceof String) {
+            string((String) value);
+        } else if (value instanceof JSONObject) {
+            object((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            array((JSONArray) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            number(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            raw(JSONObject.numberToString((Number) value));
+        } else if (value instanceof Boolean) {
+            raw(value.toString());
+        } else {
+            Object wrapped = JSONObject.wrap(value);
+            if (wrapped instanceof JSONObject || wrapped instanceof JSONArray) {
+                value(wrapped);
+            } else {
+                string(value.toString());
+            }
+        }
+    }
+
+    private void object(JSONObject object) {
+        put('{');
+        boolean first = true;
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (!first) put(',');
+            first = false;
+            string(key);
+            put(':');
+            value(object.opt(key));
+        }
+        put('}');
+    }
+
+    private void array(JSONArray array) {
+        put('[');
+        int size = array.length();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) put(',');
+            value(array.opt(i));
+        }
+        put(']');
+    }
+
+    private void number(long value) {
+        if (value == Long.MIN_VALUE) {
+            raw(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) digits++;
+        ensure(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buf[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void string(String s) {
+        int size = s.length();
+        ensure(size + 2);
+        buf[length++] = '"';
+        char previous = 0;
+        for (int i = 0; i < size; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    put('\\');
+                    put(c);
+                    break;
+                case '/':
+                    if (previous == '<') put('\\');
+                    put(c);
+                    break;
+                case '\b':
+                    raw("\\b");
+                    break;
+                case '\t':
+                    raw("\\t");
+                    break;
+                case '\n':
+                    raw("\\n");
+                    break;
+                case '\f':
+                    raw("\\f");
+                    break;
+                case '\r':
+                    raw("\\r");
+                    break;
+                default:
+                    if (c < ' ' || c == 0x7F || (c >= 0x80 && c < 0xA0) || Character.isSurrogate(c) && !validSurrogate(s, i)) {
+                        ensure(6);
+                        buf[length++] = '\\';
+                        buf[length++] = 'u';
+                        buf[length++] = HEX[(c >> 12) & 0xF];
+                        buf[length++] = HEX[(c >> 8) & 0xF];
+                        buf[length++] = HEX[(c >> 4) & 0xF];
+                        buf[length++] = HEX[c & 0xF];
+                    } else if (c < 0x80) {
+                        put(c);
+                    } else if (c < 0x800) {
+                        ensure(2);
+                        buf[length++] = (byte) (0xC0 | (c >> 6));
+                        buf[length++] = (byte) (0x80 | (c & 0x3F));
+                    } else if (Character.isHighSurrogate(c)) {
+                        int cp = Character.toCodePoint(c, s.charAt(++i));
+                        ensure(4);
+                        buf[length++] = (byte) (0xF0 | (cp >> 18));
+                        buf[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                        buf[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                        buf[length++] = (byte) (0x80 | (cp & 0x3F));
+                    } else {
+                        ensure(3);
+                        buf[length++] = (byte) (0xE0 | (c >> 12));
+                        buf[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                        buf[length++] = (byte) (0x80 | (c & 0x3F));
+                    }
+                    break;
+            }
+            previous = c;
+        }
+        put('"');
+    }
+
+    private static boolean validSurrogate(String s, int i) {
+        return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1));
+    }
+
+    private void raw(String s) {
+        int size = s.length();
+        ensure(size);
+        for (int i = 0; i < size; i++) {
+            buf[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void bytes(byte[] b) {
+        ensure(b.length);
+        System.arraycopy(b, 0, buf, length, b.length);
+        length += b.length;
+    }
+
+    private void put(int b) {
+        ensure(1);
+        buf[length++] = (byte) b;
+    }
+
+    private void ensure(int additional) {
+        int required = length + additional;
+        if (required <= buf.length) return;
+        int size = buf.length * 2;
+        if (size < required) size = required;
+        buf = Arrays.copyOf(buf, size);
+    }
+}
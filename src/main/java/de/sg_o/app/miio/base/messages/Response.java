@@ -21,38 +21,39 @@ import de.sg_o.app.miio.base.Token;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.nio.charset.Charset;
-
 public class Response extends Message{
     private Object params;
+    private boolean parsed = true;
+    private int resultStart = -1;
+    private int resultEnd = -1;
 
     public Response(Token token, int deviceID, int timeStamp, long payloadID, Object params) {
         super(token, Message.NORMAL_UNKNOWN, deviceID, timeStamp, payloadID);
         this.params = params;
     }
 
+    /**
+     * Read a response. Only the structure of the payload is checked, the result is parsed when it is requested for the first time.
+     * @param message The received message.
+     * @param token The token to decrypt the message with.
+     * @throws CommandExecutionException When the device responded with a error or the response did not contain a result.
+     */
     public Response(byte[] message, Token token) throws CommandExecutionException {
         super(message, token);
         if (super.isValid()){
-            if (message.length > 0x20){
-                byte[] payload = new byte[message.length - 0x20];
-                System.arraycopy(message, 0x20, payload,0, payload.length);
-                payload = super.getToken().decrypt(payload);
-                if (payload != null){
-                    Charset charset = Charset.forName("ISO-8859-1");
-                    int i;
-                    //noinspection StatementWithEmptyBody
-                    for (i = 0; i < payload.length && payload[i] != 0; i++) { }
-                    String pl = new String(payload, 0, i, charset);
-                    JSONObject ob = new JSONObject(pl);
-                    this.params = ob.optJSONObject("result");
-                    if (this.params == null) this.params = ob.optJSONArray("result");
-                    if (this.params == null) this.params = ob.optString("result", null);
-                    if (this.params == null) {
-                        JSONObject error = ob.optJSONObject("error");
-                        if (error == null) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
-                        throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE, error.toString());
-                    }
+            if (super.hasPayload()){
+                byte[] pl = super.getPayloadBytes();
+                int[] spans = PayloadScanner.find(pl, 0, super.getPayloadLength(), "result", "error");
+                if (spans == null) {
+                    parseTree();
+                } else if (spans[0] >= 0 && PayloadScanner.type(pl, spans[0]) != PayloadScanner.Type.NULL) {
+                    this.resultStart = spans[0];
+                    this.resultEnd = spans[1];
+                    this.parsed = false;
+                } else {
+                    if (spans[2] < 0 || PayloadScanner.type(pl, spans[2]) != PayloadScanner.Type.OBJECT) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
+                    JSONObject error = new JSONObject(span(spans[2], spans[3]));
+                    throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE, error.toString());
                 }
             }
         }
@@ -63,39 +64,115 @@ public class Response extends Message{
         params = null;
     }
 
+    private void parseTree() throws CommandExecutionException {
+        JSONObject ob = new JSONObject(super.getPayloadString());
+        this.params = ob.optJSONObject("result");
+        if (this.params == null) this.params = ob.optJSONArray("result");
+        if (this.params == null) this.params = ob.optString("result", null);
+        if (this.params == null) {
+            JSONObject error = ob.optJSONObject("error");
+            if (error == null) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
+            throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE, error.toString());
+        }
+    }
+
+    private String span(int start, int end) {
+        return new String(super.getPayloadBytes(), start, end - start, PAYLOAD_CHARSET);
+    }
+
+    /**
+     * @return The result of the response. A JSONObject, a JSONArray or a String for all other values. Null if the response did not contain a result.
+     */
     public Object getParams() {
+        if (!parsed) {
+            byte[] pl = super.getPayloadBytes();
+            switch (PayloadScanner.type(pl, resultStart)) {
+                case OBJECT:
+                    params = new JSONObject(span(resultStart, resultEnd));
+                    break;
+                case ARRAY:
+                    params = new JSONArray(span(resultStart, resultEnd));
+                    break;
+                case STRING:
+                    if (PayloadScanner.isPlainString(pl, resultStart, resultEnd)) {
+                        params = span(resultStart + 1, resultEnd - 1);
+                    } else {
+                        params = new JSONArray("[" + span(resultStart, resultEnd) + "]").getString(0);
+                    }
+                    break;
+                default:
+                    params = JSONObject.stringToValue(span(resultStart, resultEnd)).toString();
+                    break;
+            }
+            parsed = true;
+        }
         return params;
     }
 
-    private String constructPayload(){
-        JSONObject out = new JSONObject();
-        out.put("id", super.getPayloadID());
-        if (params != null) {
-            if (params.getClass() == JSONObject.class) {
-                JSONObject paramsObj = (JSONObject) params;
-                out.put("result", paramsObj);
-            }
-            if (params.getClass() == JSONArray.class) {
-                JSONArray paramsObj = (JSONArray) params;
-                    out.put("result", paramsObj);
-            }
-            if (params.getClass() == String.class) {
-                String paramsObj = (String) params;
-                out.put("result", paramsObj);
-            }
+    /**
+     * @return True if the response contains a result.
+     */
+    public boolean hasResult() {
+        if (!parsed) return true;
+        return params != null;
+    }
+
+    /**
+     * @return True if the result is a JSONArray.
+     */
+    public boolean isArray() {
+        if (!parsed) return PayloadScanner.type(super.getPayloadBytes(), resultStart) == PayloadScanner.Type.ARRAY;
+        return params != null && params.getClass() == JSONArray.class;
+    }
+
+    /**
+     * Check whether the device acknowledged a command. The result is only parsed if the first element contains escape sequences.
+     * @return True if the result is a array whose first element is "ok", ignoring the case.
+     */
+    public boolean isOk() {
+        if (!parsed) {
+            byte[] pl = super.getPayloadBytes();
+            if (PayloadScanner.type(pl, resultStart) != PayloadScanner.Type.ARRAY) return false;
+            int[] first = PayloadScanner.first(pl, resultStart, resultEnd);
+            if (first == null || PayloadScanner.type(pl, first[0]) != PayloadScanner.Type.STRING) return false;
+            if (PayloadScanner.isPlainString(pl, first[0], first[1])) return PayloadScanner.equalsIgnoreCase(pl, first[0], first[1], "ok");
         }
-        return out.toString();
+        if (!isArray()) return false;
+        return ((JSONArray) getParams()).optString(0).toLowerCase().equals("ok");
+    }
+
+    /**
+     * @return True if the device did not know the method of the command.
+     */
+    public boolean isUnknownMethod() {
+        if (!parsed) {
+            byte[] pl = super.getPayloadBytes();
+            if (PayloadScanner.type(pl, resultStart) != PayloadScanner.Type.STRING) return false;
+            if (PayloadScanner.isPlainString(pl, resultStart, resultEnd)) return span(resultStart + 1, resultEnd - 1).equals("unknown_method");
+        }
+        Object result = getParams();
+        return result != null && result.getClass() == String.class && result.equals("unknown_method");
+    }
+
+    /**
+     * @return The result as it was received, without parsing it. Null if the response did not contain a result.
+     */
+    public String getRawResult() {
+        if (resultStart >= 0) return span(resultStart, resultEnd);
+        if (params == null) return null;
+        if (params.getClass() == String.class) return JSONObject.quote((String) params);
+        return params.toString();
     }
 
     @Override
     public boolean isHello() {
-        return super.isHello() || params == null;
+        return super.isHello() || !hasResult();
     }
 
     public byte[] create(){
         if (isHello()){
             return super.create(null);
         }
-        return super.create(constructPayload());
+        return super.createFrom(PayloadWriter.get().response(super.getPayloadID(), getParams()));
     }
 }
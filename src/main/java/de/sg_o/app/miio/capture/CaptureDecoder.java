@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.capture;
+
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.base.messages.Message;
+import de.sg_o.app.miio.util.ByteArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes capture files with known tokens. The file is memory mapped in windows, the packets of each window are decoded in parallel on a fork join pool and handed to the listener in their original order.
+ * The token of a packet is chosen by the device ID in its header.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CaptureDecoder {
+    private static final int DEFAULT_WINDOW = 64 * 1024 * 1024;
+    private static final int MAX_RECORD = 1 + 10 + 16 + 2 + 10 + 65535;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE - MAX_RECORD;
+    private static final int THRESHOLD = 256;
+    private static final int HELLO = 0xFFFFFFFF;
+
+    private final ForkJoinPool pool;
+    private final Map<Integer, Token> tokens = new ConcurrentHashMap<>();
+    private final int window;
+
+    /**
+     * Create a new decoder that maps the capture in windows of 64 MiB.
+     * @param pool The pool to decode the packets on. If null a new pool with one thread per processor is used.
+     */
+    public CaptureDecoder(ForkJoinPool pool) {
+        this(pool, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Create a new decoder.
+     * @param pool The pool to decode the packets on. If null a new pool with one thread per processor is used.
+     * @param window The number of bytes of the capture that are mapped and decoded at once. Values smaller than the largest possible packet record are replaced by that size.
+     */
+    public CaptureDecoder(ForkJoinPool pool, int window) {
+        if (pool == null) pool = new ForkJoinPool();
+        if (window < MAX_RECORD * 2) window = MAX_RECORD * 2;
+        if (window > MAX_WINDOW) window = MAX_WINDOW;
+        this.pool = pool;
+        this.window = window;
+    }
+
+    /**
+     * Add the token of a device.
+     * @param deviceID The ID of the device.
+     * @param token The token of the device. Null to remove the token.
+     */
+    public void addToken(int deviceID, Token token) {
+        if (token == null) {
+            tokens.remove(deviceID);
+        } else {
+            tokens.put(deviceID, token);
+        }
+    }
+
+    /**
+     * Decode all packets of a capture file.
+     * @param file The capture file.
+     * @param listener The listener to hand the decoded packets to. It is called on the calling thread.
+     * @return The number of packets decoded.
+     * @throws IOException When the file could not be read or is not a valid capture.
+     */
+    public long decode(File file, DecodeListener listener) throws IOException {
+        long count = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            int header = CaptureWriter.MAGIC.length + 1;
+            if (size < header) throw new IOException("Not a capture file");
+            MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, header);
+            byte[] magic = new byte[CaptureWriter.MAGIC.length];
+            head.get(magic);
+            if (!Arrays.equals(magic, CaptureWriter.MAGIC) || (head.get() & 0xFF) != CaptureWriter.VERSION) throw new IOException("Not a capture file");
+
+            long position = header;
+            long time = 0;
+            while (position < size) {
+                long length = Math.min(size - position, window);
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean last = position + length == size;
+                // Only records that are guaranteed to be complete are indexed, unless this is the last window.
+                int limit = last ? (int) length : (int) length - MAX_RECORD;
+                Index index = new Index();
+                int offset = 0;
+                while (offset < limit) {
+                    offset = index.add(buf, offset, (int) length);
+                    if (offset < 0) throw new IOException("Truncated capture");
+                }
+                CapturedPacket[] packets = new CapturedPacket[index.size];
+                DecodedPacket[] decoded = new DecodedPacket[index.size];
+                long[] times = new long[index.size];
+                for (int i = 0; i < index.size; i++) {
+                    time += index.deltas[i];
+                    times[i] = time;
+                }
+                pool.invoke(new Decode(buf, index, times, packets, decoded, 0, index.size));
+                for (DecodedPacket p : decoded) {
+                    if (listener != null) listener.onPacket(p);
+                }
+                count += index.size;
+                position += offset;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Decode a single packet.
+     * @param packet The packet to decode.
+     * @return The decoded packet.
+     */
+    public DecodedPacket decode(CapturedPacket packet) {
+        byte[] data = packet.getData();
+        if (data.length < 0x20) return new DecodedPacket(packet, DecodedPacket.Status.INVALID, -1, 0, null);
+        ByteBuffer header = ByteBuffer.wrap(data);
+        int unknown = header.getInt(4);
+        int deviceID = header.getInt(8);
+        int timeStamp = header.getInt(12);
+        if (unknown == HELLO || data.length == 0x20) {
+            DecodedPacket.Status status = (header.getShort(2) & 0xFFFF) == data.length ? DecodedPacket.Status.HELLO : DecodedPacket.Status.INVALID;
+            return new DecodedPacket(packet, status, deviceID, timeStamp, null);
+        }
+        Token token = tokens.get(deviceID);
+        if (token == null) return new DecodedPacket(packet, DecodedPacket.Status.UNKNOWN_DEVICE, deviceID, timeStamp, null);
+        // The check overwrites the checksum, the captured packet has to stay unchanged.
+        if (!Message.testMessage(Arrays.copyOf(data, data.length), token)) return new DecodedPacket(packet, DecodedPacket.Status.INVALID, deviceID, timeStamp, null);
+        byte[] plain = token.decrypt(data, 0x20, data.length - 0x20);
+        if (plain == null) return new DecodedPacket(packet, DecodedPacket.Status.UNDECODABLE, deviceID, timeStamp, null);
+        int end = ByteArray.indexOfNul(plain, 0, plain.length);
+        if (end < 0) end = plain.length;
+        try {
+            JSONObject payload = new JSONObject(new String(plain, 0, end, StandardCharsets.UTF_8));
+            return new DecodedPacket(packet, DecodedPacket.Status.OK, deviceID, timeStamp, payload);
+        } catch (JSONException e) {
+            return new DecodedPacket(packet, DecodedPacket.Status.UNDECODABLE, deviceID, timeStamp, null);
+        }
+    }
+
+    /**
+     * The positions of the records within a mapped window.
+     */
+    private static class Index {
+        private int size;
+        private int[] flags = new int[1024];
+        private long[] deltas = new long[1024];
+        private int[] addresses = new int[1024];
+        private int[] data = new int[1024];
+        private int[] lengths = new int[1024];
+
+        /**
+         * Index the record at a offset.
+         * @return The offset of the next record. -1 if the record is truncated.
+         */
+        private int add(ByteBuffer buf, int offset, int end) {
+            if (size == flags.length) {
+                int capacity = size * 2;
+                flags = Arrays.copyOf(flags, capacity);
+                deltas = Arrays.copyOf(deltas, capacity);
+                addresses = Arrays.copyOf(addresses, capacity);
+                data = Arrays.copyOf(data, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            int f = buf.get(offset++) & 0xFF;
+            long delta = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (offset >= end || shift >= 64) return -1;
+                int b = buf.get(offset++) & 0xFF;
+                delta |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+            int address = offset;
+            offset += ((f & CaptureWriter.FLAG_IPV6) != 0 ? 16 : 4) + 2;
+            long length = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (offset >= end || shift >= 64) return -1;
+                int b = buf.get(offset++) & 0xFF;
+                length |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+            if (length > 65535 || offset + length > end) return -1;
+            flags[size] = f;
+            deltas[size] = delta;
+            addresses[size] = address;
+            data[size] = offset;
+            lengths[size] = (int) length;
+            size++;
+            return offset + (int) length;
+        }
+    }
+
+    private class Decode extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final ByteBuffer buf;
+        private final Index index;
+        private final long[] times;
+        private final CapturedPacket[] packets;
+        private final DecodedPacket[] decoded;
+        private final int from;
+        private final int to;
+
+        private Decode(ByteBuffer buf, Index index, long[] times, CapturedPacket[] packets, DecodedPacket[] decoded, int from, int to) {
+            this.buf = buf;
+            this.index = index;
+            this.times = times;
+            this.packets = packets;
+            this.decoded = decoded;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Decode(buf, index, times, packets, decoded, from, mid), new Decode(buf, index, times, packets, decoded, mid, to));
+                return;
+            }
+            ByteBuffer local = buf.duplicate();
+            for (int i = from; i < to; i++) {
+                byte[] address = new byte[(index.flags[i] & CaptureWriter.FLAG_IPV6) != 0 ? 16 : 4];
+                local.position(index.addresses[i]);
+                local.get(address);
+                int port = local.getShort() & 0xFFFF;
+                byte[] data = new byte[index.lengths[i]];
+                local.position(index.data[i]);
+                local.get(data);
+                InetSocketAddress remote;
+                try {
+                    remote = new InetSocketAddress(InetAddress.getByAddress(address), port);
+                } catch (IOException e) {
+                    remote = null;
+                }
+                packets[i] = new CapturedPacket(times[i], (index.flags[i] & CaptureWriter.FLAG_OUTGOING) != 0, remote, data);
+                decoded[i] = decode(packets[i]);
+            }
+        }
+    }
+}
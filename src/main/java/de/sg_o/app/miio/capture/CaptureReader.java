@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.capture;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the packets of a capture file written by a {@link CaptureWriter}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CaptureReader implements Closeable {
+    private final DataInputStream in;
+    private long time;
+
+    /**
+     * Create a new reader.
+     * @param in The stream to read the capture from. The stream is buffered by the reader.
+     * @throws IOException When the stream does not contain a capture.
+     */
+    public CaptureReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        byte[] magic = new byte[CaptureWriter.MAGIC.length];
+        this.in.readFully(magic);
+        if (!Arrays.equals(magic, CaptureWriter.MAGIC)) throw new IOException("Not a capture file");
+        int version = this.in.readUnsignedByte();
+        if (version != CaptureWriter.VERSION) throw new IOException("Unsupported capture version " + version);
+    }
+
+    /**
+     * Create a new reader that reads from a file.
+     * @param file The capture file.
+     * @throws IOException When the file could not be opened or does not contain a capture.
+     */
+    public CaptureReader(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    /**
+     * Read all packets of a capture file.
+     * @param file The capture file.
+     * @return The packets in the order they have been captured.
+     * @throws IOException When the file could not be read.
+     */
+    public static List<CapturedPacket> readAll(File file) throws IOException {
+        List<CapturedPacket> packets = new ArrayList<>();
+        try (CaptureReader reader = new CaptureReader(file)) {
+            CapturedPacket p;
+            while ((p = reader.next()) != null) {
+                packets.add(p);
+            }
+        }
+        return packets;
+    }
+
+    /**
+     * Read the next packet.
+     * @return The packet. Null if the end of the capture has been reached.
+     * @throws IOException When the capture could not be read or has been truncated.
+     */
+    public CapturedPacket next() throws IOException {
+        int flags = in.read();
+        if (flags < 0) return null;
+        time += readVarLong();
+        byte[] address = new byte[(flags & CaptureWriter.FLAG_IPV6) != 0 ? 16 : 4];
+        in.readFully(address);
+        int port = in.readUnsignedShort();
+        long length = readVarLong();
+        if (length > 65535) throw new IOException("Invalid packet length " + length);
+        byte[] data = new byte[(int) length];
+        in.readFully(data);
+        return new CapturedPacket(time, (flags & CaptureWriter.FLAG_OUTGOING) != 0, new InetSocketAddress(InetAddress.getByAddress(address), port), data);
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Invalid variable length integer");
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
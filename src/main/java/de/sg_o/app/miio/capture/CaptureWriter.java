@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.capture;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records packets into a capture file. Attach the writer to a device or server as its packet observer.
+ * <p>
+ * The file starts with the magic bytes "miIOcap" and a version byte. Every packet is stored as a flag byte, the time since the previous packet in microseconds, the remote address and port, the length and the encrypted packet.
+ * Times and lengths are written as variable length integers, seven bits per byte with the highest bit set on all but the last byte.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CaptureWriter implements PacketObserver, Closeable {
+    static final byte[] MAGIC = {'m', 'i', 'I', 'O', 'c', 'a', 'p'};
+    static final int VERSION = 1;
+    static final int FLAG_OUTGOING = 1;
+    static final int FLAG_IPV6 = 2;
+
+    private final DataOutputStream out;
+    private final long start;
+    private long last;
+    private long packets;
+    private IOException error;
+
+    /**
+     * Create a new writer.
+     * @param out The stream to write the capture to. The stream is buffered by the writer.
+     * @throws IOException When the header could not be written.
+     */
+    public CaptureWriter(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.write(MAGIC);
+        this.out.writeByte(VERSION);
+        this.start = System.nanoTime();
+    }
+
+    /**
+     * Create a new writer that writes to a file.
+     * @param file The file to write the capture to. An existing file is overwritten.
+     * @throws IOException When the file could not be created.
+     */
+    public CaptureWriter(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    @Override
+    public synchronized void onPacket(boolean outgoing, InetSocketAddress remote, byte[] packet) {
+        if (error != null || packet == null || remote == null || remote.getAddress() == null) return;
+        long time = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        if (time < last) time = last;
+        byte[] address = remote.getAddress().getAddress();
+        try {
+            int flags = outgoing ? FLAG_OUTGOING : 0;
+            if (address.length == 16) flags |= FLAG_IPV6;
+            out.writeByte(flags);
+            writeVarLong(time - last);
+            out.write(address);
+            out.writeShort(remote.getPort());
+            writeVarLong(packet.length);
+            out.write(packet);
+            last = time;
+            packets++;
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * @return The number of packets written.
+     */
+    public synchronized long getPackets() {
+        return packets;
+    }
+
+    /**
+     * @return The error that stopped the recording. Null if no error occurred.
+     */
+    public synchronized IOException getError() {
+        return error;
+    }
+
+    /**
+     * Write all buffered packets.
+     * @throws IOException When the packets could not be written.
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Write all buffered packets and close the stream. Packets observed afterwards are ignored.
+     * @throws IOException When the stream could not be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (error == null) error = new IOException("Closed");
+        out.close();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.capture;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A packet read from a capture file.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CapturedPacket {
+    private final long time;
+    private final boolean outgoing;
+    private final InetSocketAddress remote;
+    private final byte[] data;
+
+    /**
+     * Create a new captured packet.
+     * @param time The time the packet has been captured at in microseconds since the capture started.
+     * @param outgoing True if the packet has been sent by the recording side.
+     * @param remote The address the packet has been sent to or received from.
+     * @param data The encrypted packet.
+     */
+    public CapturedPacket(long time, boolean outgoing, InetSocketAddress remote, byte[] data) {
+        this.time = time;
+        this.outgoing = outgoing;
+        this.remote = remote;
+        this.data = data;
+    }
+
+    /**
+     * @return The time the packet has been captured at in microseconds since the capture started.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return True if the packet has been sent by the recording side, false if it has been received.
+     */
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    /**
+     * @return The address the packet has been sent to or received from.
+     */
+    public InetSocketAddress getRemote() {
+        return remote;
+    }
+
+    /**
+     * @return The encrypted packet.
+     */
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.capture;
+
+import org.json.JSONObject;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A packet of a capture that has been decrypted and parsed.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DecodedPacket {
+    /**
+     * The result of decoding a packet.
+     */
+    public enum Status {
+        /**
+         * The packet has been decrypted and its payload has been parsed.
+         */
+        OK,
+        /**
+         * The packet is a hello or the response to a hello, it has no payload.
+         */
+        HELLO,
+        /**
+         * No token is known for the device ID of the packet.
+         */
+        UNKNOWN_DEVICE,
+        /**
+         * The packet is not a valid miIO packet or its checksum does not match the token.
+         */
+        INVALID,
+        /**
+         * The checksum matched, but the payload could not be decrypted or parsed.
+         */
+        UNDECODABLE
+    }
+
+    private final CapturedPacket packet;
+    private final Status status;
+    private final int deviceID;
+    private final int timeStamp;
+    private final JSONObject payload;
+
+    DecodedPacket(CapturedPacket packet, Status status, int deviceID, int timeStamp, JSONObject payload) {
+        this.packet = packet;
+        this.status = status;
+        this.deviceID = deviceID;
+        this.timeStamp = timeStamp;
+        this.payload = payload;
+    }
+
+    /**
+     * @return The time the packet has been captured at in microseconds since the capture started.
+     */
+    public long getTime() {
+        return packet.getTime();
+    }
+
+    /**
+     * @return True if the packet has been sent by the recording side, false if it has been received.
+     */
+    public boolean isOutgoing() {
+        return packet.isOutgoing();
+    }
+
+    /**
+     * @return The address the packet has been sent to or received from.
+     */
+    public InetSocketAddress getRemote() {
+        return packet.getRemote();
+    }
+
+    /**
+     * @return The encrypted packet.
+     */
+    public byte[] getData() {
+        return packet.getData();
+    }
+
+    /**
+     * @return The result of decoding the packet.
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return The device ID from the header of the packet. -1 if the packet was too short.
+     */
+    public int getDeviceID() {
+        return deviceID;
+    }
+
+    /**
+     * @return The stamp from the header of the packet.
+     */
+    public int getTimeStamp() {
+        return timeStamp;
+    }
+
+    /**
+     * @return The parsed payload. Null unless the status is OK.
+     */
+    public JSONObject getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return The payload ID. -1 if the packet could not be decoded.
+     */
+    public long getPayloadID() {
+        if (payload == null) return -1;
+        return payload.optLong("id", -1);
+    }
+
+    /**
+     * @return True if the packet is a command.
+     */
+    public boolean isCommand() {
+        return payload != null && payload.has("method");
+    }
+
+    /**
+     * @return The method of a command. Null if the packet is no command.
+     */
+    public String getMethod() {
+        if (payload == null) return null;
+        return payload.optString("method", null);
+    }
+
+    /**
+     * @return The parameters of a command. Null if the packet is no command or has no parameters.
+     */
+    public Object getParams() {
+        if (payload == null) return null;
+        return payload.opt("params");
+    }
+
+    /**
+     * @return The result of a response. Null if the packet is no response or the device responded with a error.
+     */
+    public Object getResult() {
+        if (payload == null) return null;
+        return payload.opt("result");
+    }
+
+    /**
+     * @return The error of a response. Null if the packet is no response or the device did not respond with a error.
+     */
+    public JSONObject getError() {
+        if (payload == null) return null;
+        return payload.optJSONObject("error");
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.capture;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Receives every packet a device or server sends or receives, as it is transmitted on the network.
+ * The observer is called on the thread that transmits the packet, so it should return quickly.
+ */
+public interface PacketObserver {
+    /**
+     * Called for every packet.
+     * @param outgoing True if the packet has been sent, false if it has been received.
+     * @param remote The address the packet has been sent to or received from.
+     * @param packet The encrypted packet. The array must not be modified and may be reused after this method returned.
+     */
+    void onPacket(boolean outgoing, InetSocketAddress remote, byte[] packet);
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.capture;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends recorded packets to a server or a device again. The packets are sent with their original timing, scaled by a speed factor, or as fast as possible.
+ * Packets are sent unmodified, so the target has to use the same token and device ID as the recorded one.
+ */
+@SuppressWarnings("WeakerAccess")
+public class Replayer {
+    private final List<CapturedPacket> packets;
+
+    /**
+     * Create a new replayer.
+     * @param packets The packets to replay, in the order they have been captured.
+     */
+    public Replayer(List<CapturedPacket> packets) {
+        if (packets == null) packets = new ArrayList<>();
+        this.packets = packets;
+    }
+
+    /**
+     * @return The packets of this replayer.
+     */
+    public List<CapturedPacket> getPackets() {
+        return packets;
+    }
+
+    /**
+     * Send the recorded packets of one direction to a target and count the responses.
+     * To replay the requests recorded by a device, select the outgoing packets. To replay the requests recorded by a server, select the incoming packets.
+     * @param target The address to send the packets to.
+     * @param outgoing True to send the packets that have been sent by the recording side, false to send the packets it received.
+     * @param speed The speed factor. 1 replays the packets with their original timing, 2 twice as fast. Values less than or equal to 0 send the packets as fast as possible.
+     * @param drainTimeout The time in ms to wait for responses after the last packet has been sent.
+     * @return The result of the replay.
+     * @throws IOException When the packets could not be sent.
+     */
+    public Result replay(InetSocketAddress target, boolean outgoing, double speed, long drainTimeout) throws IOException {
+        if (target == null) throw new IOException("No target");
+        ByteBuffer buf = ByteBuffer.allocate(65507);
+        long sent = 0;
+        long received = 0;
+        long start = System.nanoTime();
+        try (DatagramChannel channel = DatagramChannel.open(); Selector selector = Selector.open()) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            long first = -1;
+            for (CapturedPacket p : packets) {
+                if (p.isOutgoing() != outgoing) continue;
+                if (first < 0) first = p.getTime();
+                if (speed > 0) {
+                    long due = start + (long) (TimeUnit.MICROSECONDS.toNanos(p.getTime() - first) / speed);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                        received += drain(channel, selector, buf);
+                    }
+                }
+                channel.send(ByteBuffer.wrap(p.getData()), target);
+                sent++;
+                received += drain(channel, selector, buf);
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeout);
+            long remaining;
+            while (received < sent && (remaining = deadline - System.nanoTime()) > 0) {
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                received += drain(channel, selector, buf);
+            }
+        }
+        return new Result(sent, received, System.nanoTime() - start);
+    }
+
+    private static long drain(DatagramChannel channel, Selector selector, ByteBuffer buf) throws IOException {
+        selector.selectedKeys().clear();
+        long received = 0;
+        while (true) {
+            buf.clear();
+            if (channel.receive(buf) == null) return received;
+            received++;
+        }
+    }
+
+    /**
+     * The result of a replay.
+     */
+    public static class Result {
+        private final long sent;
+        private final long received;
+        private final long nanos;
+
+        private Result(long sent, long received, long nanos) {
+            this.sent = sent;
+            this.received = received;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return The number of packets sent.
+         */
+        public long getSent() {
+            return sent;
+        }
+
+        /**
+         * @return The number of packets received from the target.
+         */
+        public long getReceived() {
+            return received;
+        }
+
+        /**
+         * @return The time the replay took in ms.
+         */
+        public double getDuration() {
+            return nanos / 1000000.0d;
+        }
+
+        /**
+         * @return The number of responses per second.
+         */
+        public double getThroughput() {
+            if (nanos <= 0) return 0;
+            return received * 1000000000.0d / nanos;
+        }
+    }
+}
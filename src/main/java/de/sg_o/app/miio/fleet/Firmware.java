@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.fleet;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+
+/**
+ * Describes a firmware image to install on devices.
+ */
+@SuppressWarnings("WeakerAccess")
+public class Firmware {
+    private final String url;
+    private final String md5;
+    private final String version;
+
+    /**
+     * Create a new firmware descriptor.
+     * @param url The URL the devices download the firmware from.
+     * @param md5 The MD5 checksum of the firmware as 32 hexadecimal characters.
+     * @param version The version the devices report after a successful update. If null the version is not verified.
+     * @throws CommandExecutionException When the URL or the checksum are invalid.
+     */
+    public Firmware(String url, String md5, String version) throws CommandExecutionException {
+        if (url == null || md5 == null) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS);
+        if (md5.length() != 32) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS);
+        this.url = url;
+        this.md5 = md5;
+        this.version = version;
+    }
+
+    /**
+     * @return The URL the devices download the firmware from.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return The MD5 checksum of the firmware.
+     */
+    public String getMd5() {
+        return md5;
+    }
+
+    /**
+     * @return The version the devices report after a successful update. Null if the version is not verified.
+     */
+    public String getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.fleet;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.base.Device;
+import de.sg_o.app.miio.base.messages.Response;
+
+import java.io.Closeable;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Polls many devices periodically on a few threads. The polls are timed by a shared timer wheel and executed by a bounded pool of workers.
+ * Each poll is rescheduled when it has finished, so a slow device is never polled twice at the same time. The intervals are randomized by a jitter to avoid bursts of polls,
+ * devices that fail repeatedly are polled less often until they respond again.
+ */
+@SuppressWarnings("WeakerAccess")
+public class FleetScheduler implements Closeable {
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    private final TimerWheel wheel;
+    private final ThreadPoolExecutor workers;
+    private final Random random = new Random();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    private volatile double jitter = 0.1;
+    private volatile long maxBackoff = 300000;
+    private volatile boolean closed;
+
+    /**
+     * Create a new scheduler with a tick of 10 ms and 512 buckets.
+     * @param threads The number of worker threads. Values less than 1 will be replaced by 1.
+     * @param queueSize The number of polls that may wait for a free worker. Values less than 1 will be replaced by 1024.
+     */
+    public FleetScheduler(int threads, int queueSize) {
+        this(threads, queueSize, 10, 512);
+    }
+
+    /**
+     * Create a new scheduler.
+     * @param threads The number of worker threads. Values less than 1 will be replaced by 1.
+     * @param queueSize The number of polls that may wait for a free worker. If the queue is full a poll is skipped and rescheduled. Values less than 1 will be replaced by 1024.
+     * @param tick The resolution of the timer in ms. Values less than 1 will be replaced by 1.
+     * @param wheelSize The number of buckets of the timer wheel. Values less than 1 will be replaced by 512.
+     */
+    public FleetScheduler(int threads, int queueSize, long tick, int wheelSize) {
+        if (threads < 1) threads = 1;
+        if (queueSize < 1) queueSize = 1024;
+        this.wheel = new TimerWheel(tick, wheelSize, null);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "miIO-fleet");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return The fraction by which the intervals are randomized.
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Set the fraction by which the intervals are randomized. A jitter of 0.1 spreads a interval of 1000 ms between 900 ms and 1100 ms.
+     * @param jitter The jitter. Values less than 0 will be replaced by 0, values greater than 1 will be replaced by 1.
+     */
+    public void setJitter(double jitter) {
+        if (jitter < 0 || Double.isNaN(jitter)) jitter = 0;
+        if (jitter > 1) jitter = 1;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @return The maximum interval in ms of a device that failed repeatedly.
+     */
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * Set the maximum interval of a device that failed repeatedly. The interval of a poll doubles with every consecutive failure until this value is reached.
+     * @param maxBackoff The maximum interval in ms. Values less than 0 will be replaced by 0, which disables the backoff.
+     */
+    public void setMaxBackoff(long maxBackoff) {
+        if (maxBackoff < 0) maxBackoff = 0;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Poll a device periodically. The first poll runs after a random part of the interval.
+     * @param device The device to poll.
+     * @param method The method to execute on the device.
+     * @param params The parameters of the command. Must be a JSONArray, a JSONObject or null.
+     * @param interval The time between two polls in ms. Values less than 1 will be replaced by 1.
+     * @param listener The listener to receive the results. May be null.
+     * @return The poll. Null if the device or the method was null or the scheduler has been closed.
+     */
+    public Poll schedule(Device device, String method, Object params, long interval, PollListener listener) {
+        if (device == null || method == null || closed) return null;
+        if (interval < 1) interval = 1;
+        Poll poll = new Poll(device, method, params, interval, listener, false);
+        poll.arm(nextRandom(interval));
+        return poll;
+    }
+
+    /**
+     * Execute a command once on one of the workers.
+     * @param device The device to send the command to.
+     * @param method The method to execute on the device.
+     * @param params The parameters of the command. Must be a JSONArray, a JSONObject or null.
+     * @param listener The listener to receive the result. May be null.
+     * @return The poll, which can be cancelled until it has been executed. Null if the device or the method was null or the scheduler has been closed.
+     */
+    public Poll submit(Device device, String method, Object params, PollListener listener) {
+        if (device == null || method == null || closed) return null;
+        Poll poll = new Poll(device, method, params, 1, listener, true);
+        poll.arm(0);
+        return poll;
+    }
+
+    /**
+     * @return The number of polls that have been executed.
+     */
+    public long getExecuted() {
+        return executed.get();
+    }
+
+    /**
+     * @return The number of polls that failed.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return The number of polls that have been skipped because all workers were busy and the queue was full.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @return The number of polls waiting for a free worker.
+     */
+    public int getQueueDepth() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * @return True if the scheduler has been closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop all polls. Polls that are currently executed will finish, but will not be rescheduled.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        wheel.stop();
+        workers.shutdown();
+    }
+
+    private long nextRandom(long bound) {
+        synchronized (random) {
+            return (long) (random.nextDouble() * bound);
+        }
+    }
+
+    private long delayOf(long interval, int failures) {
+        long delay = interval;
+        long max = maxBackoff;
+        if (failures > 0 && max > interval) {
+            int shift = Math.min(failures, MAX_BACKOFF_SHIFT);
+            delay = interval << shift;
+            if (delay > max || delay < interval) delay = max;
+        }
+        double j = jitter;
+        if (j > 0) {
+            double spread;
+            synchronized (random) {
+                spread = (random.nextDouble() * 2 - 1) * j;
+            }
+            delay += (long) (delay * spread);
+        }
+        return delay;
+    }
+
+    /**
+     * A device that is polled periodically by a fleet scheduler.
+     */
+    public class Poll implements Runnable {
+        private final Device device;
+        private final String method;
+        private final Object params;
+        private final PollListener listener;
+        private final boolean once;
+
+        private volatile long interval;
+        private volatile boolean cancelled;
+        private volatile int consecutiveFailures;
+        private TimerWheel.Timeout timeout;
+
+        private Poll(Device device, String method, Object params, long interval, PollListener listener, boolean once) {
+            this.device = device;
+            this.method = method;
+            this.params = params;
+            this.interval = interval;
+            this.listener = listener;
+            this.once = once;
+        }
+
+        /**
+         * @return The device that is polled.
+         */
+        public Device getDevice() {
+            return device;
+        }
+
+        /**
+         * @return The method that is executed.
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * @return The time between two polls in ms if the device responds.
+         */
+        public long getInterval() {
+            return interval;
+        }
+
+        /**
+         * Change the time between two polls. The new interval is used from the next time the poll is rescheduled.
+         * @param interval The time between two polls in ms. Values less than 1 will be replaced by 1.
+         */
+        public void setInterval(long interval) {
+            if (interval < 1) interval = 1;
+            this.interval = interval;
+        }
+
+        /**
+         * @return The number of polls that failed since the device responded the last time.
+         */
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /**
+         * @return True if the poll has been cancelled.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Stop polling the device. A poll that is currently executed will finish, but will not be rescheduled.
+         */
+        public void cancel() {
+            TimerWheel.Timeout t;
+            synchronized (this) {
+                cancelled = true;
+                t = timeout;
+                timeout = null;
+            }
+            if (t != null) t.cancel();
+        }
+
+        private synchronized void arm(long delay) {
+            if (cancelled || closed) return;
+            timeout = wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            }, delay);
+        }
+
+        private void dispatch() {
+            if (cancelled || closed) return;
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                skipped.incrementAndGet();
+                arm(delayOf(interval, consecutiveFailures));
+            }
+        }
+
+        @Override
+        public void run() {
+            if (cancelled || closed) return;
+            executed.incrementAndGet();
+            try {
+                Response response = device.send(method, params);
+                if (response == null) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
+                consecutiveFailures = 0;
+                if (listener != null) listener.onResponse(this, response);
+            } catch (CommandExecutionException e) {
+                failed.incrementAndGet();
+                consecutiveFailures++;
+                if (listener != null) listener.onFailure(this, e);
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                consecutiveFailures++;
+                if (listener != null) listener.onFailure(this, new CommandExecutionException(CommandExecutionException.Error.UNKNOWN, e.toString()));
+            }
+            if (once) {
+                cancel();
+                return;
+            }
+            arm(delayOf(interval, consecutiveFailures));
+        }
+    }
+}
@@ -0,0 +1,595 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.fleet;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.base.Device;
+import de.sg_o.app.miio.base.messages.Response;
+import org.json.JSONArray;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Installs a firmware on many devices. At most a fixed number of devices is updated at the same time.
+ * The first devices are canaries, the other devices are only updated after all canaries have been updated successfully.
+ * The progress of every update is polled on a shared fleet scheduler. The poll interval doubles while the progress of a device does not change, for example while it reboots.
+ * A failed canary halts the rollout and the remaining devices are skipped. Afterwards the rollout is halted if the share of failed updates exceeds a threshold,
+ * once enough updates have finished for the share to be meaningful.
+ */
+@SuppressWarnings("WeakerAccess")
+public class OtaRollout {
+    private static final int STALL_POLLS = 3;
+    private static final int MAX_INTERVAL_FACTOR = 8;
+
+    /**
+     * The state of a rollout.
+     */
+    public enum State {
+        /**
+         * The rollout has not been started.
+         */
+        IDLE,
+        /**
+         * The canaries are being updated.
+         */
+        CANARY,
+        /**
+         * The remaining devices are being updated.
+         */
+        RUNNING,
+        /**
+         * The rollout has been halted. Updates that were already running are still being monitored.
+         */
+        HALTED,
+        /**
+         * All devices have been updated.
+         */
+        COMPLETED
+    }
+
+    /**
+     * The state of the update of a single device.
+     */
+    public enum Status {
+        /**
+         * The update has not been started.
+         */
+        PENDING,
+        /**
+         * The update has been started and is being monitored.
+         */
+        UPDATING,
+        /**
+         * The device reported a complete update.
+         */
+        SUCCEEDED,
+        /**
+         * The update failed, timed out or the device reported the wrong version afterwards.
+         */
+        FAILED,
+        /**
+         * The update has not been started because the rollout has been halted.
+         */
+        SKIPPED
+    }
+
+    private final FleetScheduler scheduler;
+    private final Firmware firmware;
+    private final List<Target> targets;
+    private final Deque<Target> pending = new ArrayDeque<>();
+
+    private int concurrency = 4;
+    private int canaries = 1;
+    private double maxFailureRate = 0.1;
+    private int minSampleSize = 5;
+    private long pollInterval = 5000;
+    private long timeout = 1800000;
+    private volatile RolloutListener listener;
+
+    private State state = State.IDLE;
+    private boolean finished;
+    private int canariesLeft;
+    private int updating;
+    private int succeeded;
+    private int failed;
+    private int skipped;
+
+    /**
+     * Create a new rollout.
+     * @param scheduler The scheduler to send the commands and to poll the progress on.
+     * @param devices The devices to update. The first devices are used as canaries.
+     * @param firmware The firmware to install.
+     * @throws CommandExecutionException When the scheduler or the firmware are null.
+     */
+    public OtaRollout(FleetScheduler scheduler, Collection<? extends Device> devices, Firmware firmware) throws CommandExecutionException {
+        if (scheduler == null || firmware == null) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS);
+        this.scheduler = scheduler;
+        this.firmware = firmware;
+        List<Target> list = new ArrayList<>();
+        if (devices != null) {
+            for (Device d : devices) {
+                if (d != null) list.add(new Target(d));
+            }
+        }
+        this.targets = Collections.unmodifiableList(list);
+        this.pending.addAll(list);
+    }
+
+    /**
+     * Start the rollout.
+     * @return False if the rollout has already been started.
+     */
+    public boolean start() {
+        List<Target> started;
+        boolean done;
+        synchronized (this) {
+            if (state != State.IDLE) return false;
+            canariesLeft = Math.min(canaries, targets.size());
+            for (int i = 0; i < canariesLeft; i++) {
+                targets.get(i).canary = true;
+            }
+            state = canariesLeft > 0 ? State.CANARY : State.RUNNING;
+            started = fill();
+            done = checkFinished();
+        }
+        for (Target t : started) {
+            install(t);
+        }
+        if (done) finish();
+        return true;
+    }
+
+    /**
+     * Stop starting new updates. Updates that are already running are still monitored, the remaining devices are skipped.
+     */
+    public void halt() {
+        boolean done;
+        synchronized (this) {
+            if (state == State.HALTED || state == State.COMPLETED) return;
+            haltLocked();
+            done = checkFinished();
+        }
+        if (done) finish();
+    }
+
+    /**
+     * Wait for the rollout to finish.
+     * @param timeout The maximum time to wait in ms.
+     * @return True if the rollout has finished.
+     * @throws InterruptedException When the thread has been interrupted while waiting.
+     */
+    public synchronized boolean await(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (!finished) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    private void haltLocked() {
+        state = State.HALTED;
+        for (Target t : pending) {
+            t.status = Status.SKIPPED;
+            skipped++;
+        }
+        pending.clear();
+    }
+
+    private List<Target> fill() {
+        List<Target> started = new ArrayList<>();
+        if (state != State.CANARY && state != State.RUNNING) return started;
+        while (updating < concurrency && !pending.isEmpty()) {
+            Target t = pending.peekFirst();
+            if (state == State.CANARY && !t.canary) break;
+            pending.pollFirst();
+            t.status = Status.UPDATING;
+            t.started = System.nanoTime();
+            updating++;
+            started.add(t);
+        }
+        return started;
+    }
+
+    private boolean checkFinished() {
+        if (finished || updating > 0 || !pending.isEmpty()) return false;
+        if (state != State.HALTED) state = State.COMPLETED;
+        finished = true;
+        notifyAll();
+        return true;
+    }
+
+    private void finish() {
+        RolloutListener l = listener;
+        if (l != null) l.onFinished(this);
+    }
+
+    private void install(final Target t) {
+        FleetScheduler.Poll p = scheduler.submit(t.device, "miIO.ota", Device.updateParams(firmware.getUrl(), firmware.getMd5()), new PollListener() {
+            @Override
+            public void onResponse(FleetScheduler.Poll poll, Response response) {
+                if (response.isArray() && response.isOk()) {
+                    monitor(t);
+                } else {
+                    complete(t, Status.FAILED, new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE));
+                }
+            }
+
+            @Override
+            public void onFailure(FleetScheduler.Poll poll, CommandExecutionException e) {
+                complete(t, Status.FAILED, e);
+            }
+        });
+        if (p == null) complete(t, Status.FAILED, new CommandExecutionException(CommandExecutionException.Error.UNKNOWN, "Scheduler closed"));
+    }
+
+    private void monitor(final Target t) {
+        FleetScheduler.Poll p = scheduler.schedule(t.device, "miIO.get_ota_progress", null, getPollInterval(), new PollListener() {
+            @Override
+            public void onResponse(FleetScheduler.Poll poll, Response response) {
+                progress(t, poll, response);
+            }
+
+            @Override
+            public void onFailure(FleetScheduler.Poll poll, CommandExecutionException e) {
+                // The device is not reachable while it installs the update, only give up after the timeout.
+                if (isTimedOut(t)) complete(t, Status.FAILED, e);
+            }
+        });
+        if (p == null) {
+            complete(t, Status.FAILED, new CommandExecutionException(CommandExecutionException.Error.UNKNOWN, "Scheduler closed"));
+            return;
+        }
+        boolean cancel;
+        synchronized (this) {
+            cancel = t.status != Status.UPDATING;
+            if (!cancel) t.poll = p;
+        }
+        if (cancel) p.cancel();
+    }
+
+    private void progress(Target t, FleetScheduler.Poll poll, Response response) {
+        Object params = response.getParams();
+        int progress = -1;
+        if (params instanceof JSONArray) progress = ((JSONArray) params).optInt(0, -1);
+        long interval = getPollInterval();
+        if (progress > t.progress && progress <= 100) {
+            t.progress = progress;
+            t.stalledPolls = 0;
+            poll.setInterval(interval);
+            RolloutListener l = listener;
+            if (l != null) l.onProgress(this, t);
+        } else {
+            t.stalledPolls++;
+            poll.setInterval(Math.min(poll.getInterval() * 2, interval * MAX_INTERVAL_FACTOR));
+        }
+        if (t.progress >= 100) {
+            String version = firmware.getVersion();
+            if (version == null) {
+                complete(t, Status.SUCCEEDED, null);
+                return;
+            }
+            try {
+                String reported = t.device.firmware();
+                if (version.equals(reported)) {
+                    complete(t, Status.SUCCEEDED, null);
+                } else {
+                    complete(t, Status.FAILED, new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE, "Firmware " + reported + " instead of " + version));
+                }
+                return;
+            } catch (CommandExecutionException ignored) {
+                // The device is probably still restarting.
+            }
+        } else if (t.stalledPolls > 0 && t.stalledPolls % STALL_POLLS == 0) {
+            try {
+                if ("failed".equals(t.device.updateStatus())) {
+                    complete(t, Status.FAILED, new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE, "Update failed at " + t.progress + "%"));
+                    return;
+                }
+            } catch (CommandExecutionException ignored) {
+            }
+        }
+        if (isTimedOut(t)) complete(t, Status.FAILED, new CommandExecutionException(CommandExecutionException.Error.TIMEOUT));
+    }
+
+    private boolean isTimedOut(Target t) {
+        return System.nanoTime() - t.started > TimeUnit.MILLISECONDS.toNanos(getTimeout());
+    }
+
+    private void complete(Target t, Status status, CommandExecutionException error) {
+        List<Target> started;
+        FleetScheduler.Poll poll;
+        boolean done;
+        synchronized (this) {
+            if (t.status != Status.UPDATING) return;
+            t.status = status;
+            t.error = error;
+            poll = t.poll;
+            t.poll = null;
+            updating--;
+            if (status == Status.SUCCEEDED) {
+                succeeded++;
+            } else {
+                failed++;
+            }
+            if (t.canary) canariesLeft--;
+            if (state == State.CANARY || state == State.RUNNING) {
+                if (state == State.CANARY && status != Status.SUCCEEDED) {
+                    haltLocked();
+                } else if (failed > 0 && succeeded + failed >= minSampleSize && failed > maxFailureRate * (succeeded + failed)) {
+                    haltLocked();
+                } else if (state == State.CANARY && canariesLeft == 0) {
+                    state = State.RUNNING;
+                }
+            }
+            started = fill();
+            done = checkFinished();
+        }
+        if (poll != null) poll.cancel();
+        RolloutListener l = listener;
+        if (l != null) l.onProgress(this, t);
+        for (Target s : started) {
+            install(s);
+        }
+        if (done) finish();
+    }
+
+    /**
+     * @return The devices of this rollout, in the order they are updated.
+     */
+    public List<Target> getTargets() {
+        return targets;
+    }
+
+    /**
+     * @return The firmware that is installed.
+     */
+    public Firmware getFirmware() {
+        return firmware;
+    }
+
+    /**
+     * @return The state of the rollout.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return The number of devices that have been updated successfully.
+     */
+    public synchronized int getSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * @return The number of devices whose update failed.
+     */
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return The number of devices that have been skipped because the rollout has been halted.
+     */
+    public synchronized int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return The number of devices that are currently being updated.
+     */
+    public synchronized int getUpdating() {
+        return updating;
+    }
+
+    /**
+     * @return The number of devices whose update has not been started yet.
+     */
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * @return The progress of the whole rollout from 0 to 100. Devices that are finished, failed or skipped count as complete.
+     */
+    public double getProgress() {
+        if (targets.isEmpty()) return 100;
+        long sum = 0;
+        for (Target t : targets) {
+            Status s = t.status;
+            sum += (s == Status.PENDING || s == Status.UPDATING) ? t.progress : 100;
+        }
+        return (double) sum / targets.size();
+    }
+
+    /**
+     * @return True if all updates have finished or the rollout has been halted and no update is running anymore.
+     */
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return The maximum number of devices that are updated at the same time.
+     */
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @param concurrency The maximum number of devices that are updated at the same time. Values less than 1 will be replaced by 1.
+     */
+    public synchronized void setConcurrency(int concurrency) {
+        if (concurrency < 1) concurrency = 1;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @return The number of devices that are updated before all others.
+     */
+    public synchronized int getCanaries() {
+        return canaries;
+    }
+
+    /**
+     * @param canaries The number of devices that are updated before all others. Only used if set before the rollout is started. Values less than 0 will be replaced by 0.
+     */
+    public synchronized void setCanaries(int canaries) {
+        if (canaries < 0) canaries = 0;
+        this.canaries = canaries;
+    }
+
+    /**
+     * @return The share of failed updates at which the rollout is halted.
+     */
+    public synchronized double getMaxFailureRate() {
+        return maxFailureRate;
+    }
+
+    /**
+     * Set the share of failed updates at which the rollout is halted. The share is calculated over all finished updates, including the canaries.
+     * It is only evaluated once at least the minimum sample size of updates has finished.
+     * @param maxFailureRate The share of failed updates that is tolerated, from 0 to 1. With 0 the first failure halts the rollout.
+     */
+    public synchronized void setMaxFailureRate(double maxFailureRate) {
+        if (maxFailureRate < 0 || Double.isNaN(maxFailureRate)) maxFailureRate = 0;
+        if (maxFailureRate > 1) maxFailureRate = 1;
+        this.maxFailureRate = maxFailureRate;
+    }
+
+    /**
+     * @return The number of updates that have to finish before the share of failed updates is evaluated.
+     */
+    public synchronized int getMinSampleSize() {
+        return minSampleSize;
+    }
+
+    /**
+     * Set the number of updates that have to finish before the share of failed updates is evaluated, so a single early failure does not halt a large rollout.
+     * Failed canaries halt the rollout regardless of this setting.
+     * @param minSampleSize The number of finished updates. Values less than 1 will be replaced by 1.
+     */
+    public synchronized void setMinSampleSize(int minSampleSize) {
+        if (minSampleSize < 1) minSampleSize = 1;
+        this.minSampleSize = minSampleSize;
+    }
+
+    /**
+     * @return The time between two progress polls in ms while the progress changes.
+     */
+    public synchronized long getPollInterval() {
+        return pollInterval;
+    }
+
+    /**
+     * @param pollInterval The time between two progress polls in ms while the progress changes. Values less than 1 will be replaced by 1.
+     */
+    public synchronized void setPollInterval(long pollInterval) {
+        if (pollInterval < 1) pollInterval = 1;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * @return The maximum time in ms a single update may take.
+     */
+    public synchronized long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout The maximum time in ms a single update may take. Values less than 1 will be replaced by 1.
+     */
+    public synchronized void setTimeout(long timeout) {
+        if (timeout < 1) timeout = 1;
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return The listener informed about the progress.
+     */
+    public RolloutListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @param listener The listener to inform about the progress. Null to remove the listener.
+     */
+    public void setListener(RolloutListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * The update of a single device.
+     */
+    public static class Target {
+        private final Device device;
+        private volatile Status status = Status.PENDING;
+        private volatile int progress;
+        private volatile CommandExecutionException error;
+        private volatile long started;
+        private volatile int stalledPolls;
+        private volatile boolean canary;
+        private FleetScheduler.Poll poll;
+
+        private Target(Device device) {
+            this.device = device;
+        }
+
+        /**
+         * @return The device.
+         */
+        public Device getDevice() {
+            return device;
+        }
+
+        /**
+         * @return The state of the update.
+         */
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return The last progress reported by the device from 0 to 100.
+         */
+        public int getProgress() {
+            return progress;
+        }
+
+        /**
+         * @return The reason the update failed. Null if it did not fail.
+         */
+        public CommandExecutionException getError() {
+            return error;
+        }
+
+        /**
+         * @return True if the device is one of the canaries.
+         */
+        public boolean isCanary() {
+            return canary;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.fleet;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.base.messages.Response;
+
+/**
+ * Receives the results of the polls of a fleet scheduler. The methods are called on the worker threads of the scheduler.
+ */
+public interface PollListener {
+    /**
+     * Called when a device responded to a poll.
+     * @param poll The poll that has been executed.
+     * @param response The response of the device.
+     */
+    void onResponse(FleetScheduler.Poll poll, Response response);
+
+    /**
+     * Called when a poll failed.
+     * @param poll The poll that has been executed. The number of consecutive failures already includes this failure.
+     * @param e The error that occurred.
+     */
+    void onFailure(FleetScheduler.Poll poll, CommandExecutionException e);
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.fleet;
+
+/**
+ * Receives the progress of a firmware rollout. The methods are called on the worker threads of the scheduler.
+ */
+public interface RolloutListener {
+    /**
+     * Called whenever the state or the progress of a device changed.
+     * @param rollout The rollout.
+     * @param target The device whose update progressed.
+     */
+    void onProgress(OtaRollout rollout, OtaRollout.Target target);
+
+    /**
+     * Called once when all devices have been updated or the rollout has been halted and no update is running anymore.
+     * @param rollout The rollout.
+     */
+    void onFinished(OtaRollout rollout);
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.fleet;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel. Timeouts are sorted into buckets by their deadline, a single thread advances the wheel one bucket per tick and runs all expired tasks.
+ * Scheduling and cancelling are constant time, so a wheel can handle a very large number of timeouts. Deadlines are rounded up to the next tick.
+ * The tasks run on the thread of the wheel and should only hand off work to other threads.
+ */
+@SuppressWarnings("WeakerAccess")
+public class TimerWheel {
+    private final long tickNanos;
+    private final int mask;
+    private final ArrayList<ArrayList<Timeout>> wheel;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startTime;
+
+    private volatile boolean stopped;
+    private long tick;
+
+    /**
+     * Create and start a new timer wheel.
+     * @param tick The duration of one tick in ms. Values less than 1 will be replaced by 1.
+     * @param wheelSize The number of buckets of the wheel. Values will be rounded up to the next power of two, values less than 1 will be replaced by 512.
+     * @param threadFactory The factory to create the thread of the wheel with. If null a daemon thread will be used.
+     */
+    public TimerWheel(long tick, int wheelSize, ThreadFactory threadFactory) {
+        if (tick < 1) tick = 1;
+        if (wheelSize < 1) wheelSize = 512;
+        if (wheelSize > (1 << 30)) wheelSize = 1 << 30;
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) size <<= 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+        this.mask = size - 1;
+        this.wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            wheel.add(new ArrayList<Timeout>());
+        }
+        Runnable loop = new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        };
+        if (threadFactory == null) {
+            this.worker = new Thread(loop, "miIO-timer-wheel");
+            this.worker.setDaemon(true);
+        } else {
+            this.worker = threadFactory.newThread(loop);
+        }
+        this.startTime = System.nanoTime();
+        this.worker.start();
+    }
+
+    /**
+     * @return The duration of one tick in ms.
+     */
+    public long getTick() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    /**
+     * @return The number of buckets of the wheel.
+     */
+    public int getWheelSize() {
+        return mask + 1;
+    }
+
+    /**
+     * Run a task once after a delay.
+     * @param task The task to run.
+     * @param delay The delay in ms. Values less than 0 will be replaced by 0.
+     * @return The timeout of the task. Null if the task was null or the wheel has been stopped.
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        if (task == null || stopped) return null;
+        if (delay < 0) delay = 0;
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delay));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stop the wheel. Timeouts that have not expired yet will never run.
+     */
+    public void stop() {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    /**
+     * @return True if the wheel has been stopped.
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    private void loop() {
+        while (!stopped) {
+            long deadline = tickNanos * (tick + 1);
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            transfer();
+            expire(wheel.get((int) (tick & mask)), deadline);
+            tick++;
+        }
+        added.clear();
+        for (ArrayList<Timeout> bucket : wheel) {
+            bucket.clear();
+        }
+    }
+
+    private void transfer() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.isCancelled()) continue;
+            long ticks = (timeout.deadline + tickNanos - 1) / tickNanos - 1;
+            if (ticks < tick) ticks = tick;
+            timeout.rounds = (ticks - tick) / (mask + 1);
+            wheel.get((int) (ticks & mask)).add(timeout);
+        }
+    }
+
+    private void expire(ArrayList<Timeout> bucket, long deadline) {
+        int kept = 0;
+        int size = bucket.size();
+        for (int i = 0; i < size; i++) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.isCancelled()) continue;
+            if (timeout.rounds > 0 || timeout.deadline > deadline) {
+                timeout.rounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            timeout.expire();
+        }
+        for (int i = size - 1; i >= kept; i--) {
+            bucket.remove(i);
+        }
+    }
+
+    /**
+     * A task that has been scheduled on a timer wheel.
+     */
+    public static class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile int state = WAITING;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task. The task will not run if it has not expired yet.
+         * @return True if the task has been cancelled, false if it already expired.
+         */
+        public boolean cancel() {
+            synchronized (this) {
+                if (state != WAITING) return state == CANCELLED;
+                state = CANCELLED;
+                return true;
+            }
+        }
+
+        /**
+         * @return True if the task has been cancelled.
+         */
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        /**
+         * @return True if the task has been run.
+         */
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            synchronized (this) {
+                if (state != WAITING) return;
+                state = EXPIRED;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.server;
+
+import de.sg_o.app.miio.util.ByteArray;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small HTTP server that serves files to devices, for example firmware images for {@link de.sg_o.app.miio.base.Device#update(String, String)} and soundpacks for {@link de.sg_o.app.miio.vacuum.Vacuum#installSoundpack(String, String, int)}.
+ * All connections are handled by one thread. The files are sent with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, so their content is not copied through the heap. Single byte ranges are supported to resume downloads.
+ * The MD5 checksum of a file is calculated once when it is published and cached as long as the file does not change.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ContentServer implements Closeable {
+    private static final int MAX_HEADER = 8192;
+    // Limits the bytes sent to one connection at once, so a single fast download does not delay the others.
+    private static final long MAX_TRANSFER = 1024 * 1024;
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private final InetSocketAddress bindAddress;
+    private final ConcurrentHashMap<String, Content> contents = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Digest> digests = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong digestsCalculated = new AtomicLong();
+
+    private volatile boolean running;
+    private volatile int connections;
+    private volatile String host;
+    private ServerSocketChannel server;
+    private Selector selector;
+    private Thread thread;
+
+    /**
+     * Create a new content server.
+     * @param bindAddress The address to listen on. If null the server listens on a free port of all interfaces.
+     */
+    public ContentServer(InetSocketAddress bindAddress) {
+        if (bindAddress == null) bindAddress = new InetSocketAddress(0);
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * Start listening for connections.
+     * @throws IOException When the server socket could not be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (running) return;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.configureBlocking(false);
+            server.socket().setReuseAddress(true);
+            server.socket().bind(bindAddress);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "miIO-content");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serve() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                break;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) continue;
+                try {
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        ((Connection) key.attachment()).read(key);
+                    } else if (key.isWritable()) {
+                        ((Connection) key.attachment()).write(key);
+                    }
+                } catch (IOException e) {
+                    close(key);
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) close(key);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+            connections++;
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+        if (key.attachment() instanceof Connection) connections--;
+    }
+
+    /**
+     * Publish a file. Publishing a file again returns the existing content.
+     * @param file The file to serve.
+     * @return The content, containing the URL and the MD5 checksum to pass to the device.
+     * @throws IOException When the server is not running or the file could not be read.
+     */
+    public Content publish(File file) throws IOException {
+        if (!running) throw new IOException("Server not running");
+        if (file == null || !file.isFile()) throw new IOException("Not a file: " + file);
+        file = file.getCanonicalFile();
+        String md5 = digest(file);
+        String path = "/" + md5 + "/" + URLEncoder.encode(file.getName(), "UTF-8").replace("+", "%20");
+        Content existing = contents.get(path);
+        if (existing != null) return existing;
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        Content content = new Content(file, path, getBaseUrl() + path, md5, channel.size(), channel);
+        existing = contents.putIfAbsent(path, content);
+        if (existing != null) {
+            channel.close();
+            return existing;
+        }
+        return content;
+    }
+
+    /**
+     * Stop serving a file. Downloads that are already running are aborted.
+     * @param content The content to remove.
+     * @return True if the content was published.
+     */
+    public boolean unpublish(Content content) {
+        if (content == null || !contents.remove(content.path, content)) return false;
+        try {
+            content.channel.close();
+        } catch (IOException ignored) {
+        }
+        return true;
+    }
+
+    private String digest(File file) throws IOException {
+        String key = file.getPath();
+        long length = file.length();
+        long modified = file.lastModified();
+        Digest cached = digests.get(key);
+        if (cached != null && cached.length == length && cached.modified == modified) return cached.md5;
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            while (channel.read(buf) >= 0) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+        }
+        String md5 = ByteArray.bytesToHex(md.digest()).toLowerCase(Locale.ROOT);
+        digests.put(key, new Digest(length, modified, md5));
+        digestsCalculated.incrementAndGet();
+        return md5;
+    }
+
+    /**
+     * @return The URL the published files are available under, without a trailing slash.
+     * @throws IOException When the server is not running.
+     */
+    public String getBaseUrl() throws IOException {
+        InetSocketAddress local = getLocalAddress();
+        if (local == null) throw new IOException("Server not running");
+        String h = host;
+        if (h == null) {
+            InetAddress address = local.getAddress();
+            if (address.isAnyLocalAddress()) address = findSiteLocalAddress();
+            h = address.getHostAddress();
+            if (h.indexOf(':') >= 0) h = "[" + h + "]";
+        }
+        return "http://" + h + ":" + local.getPort();
+    }
+
+    private static InetAddress findSiteLocalAddress() throws IOException {
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        if (interfaces != null) {
+            for (NetworkInterface i : Collections.list(interfaces)) {
+                if (!i.isUp() || i.isLoopback()) continue;
+                for (InetAddress a : Collections.list(i.getInetAddresses())) {
+                    if (a instanceof Inet4Address && a.isSiteLocalAddress()) return a;
+                }
+            }
+        }
+        return InetAddress.getByName("127.0.0.1");
+    }
+
+    /**
+     * @return The host name or address used in the URLs. Null if it is chosen automatically.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Set the host name or address the devices reach this server under. Only affects files that are published afterwards.
+     * @param host The host name or address. If null the address the server is bound to is used, or the first site local address if it is bound to all interfaces.
+     */
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    /**
+     * @return The address the server is listening on. Null if it is not running.
+     */
+    public synchronized InetSocketAddress getLocalAddress() {
+        if (!running) return null;
+        return (InetSocketAddress) server.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * @return The number of requests received.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return The number of file bytes sent.
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return The number of times a MD5 checksum has been calculated.
+     */
+    public long getDigestsCalculated() {
+        return digestsCalculated.get();
+    }
+
+    /**
+     * @return The number of open connections.
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * @return True if the server is running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stop the server, close all connections and remove all published files.
+     */
+    @Override
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            t = thread;
+            selector.wakeup();
+        }
+        try {
+            t.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+        for (Content c : contents.values()) {
+            unpublish(c);
+        }
+    }
+
+    private class Connection {
+        private final ByteBuffer request = ByteBuffer.allocate(MAX_HEADER);
+        private ByteBuffer header;
+        private Content content;
+        private long position;
+        private long end;
+
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            if (channel.read(request) < 0) {
+                close(key);
+                return;
+            }
+            int headerEnd = indexOf(request.array(), request.position(), HEADER_END);
+            if (headerEnd < 0) {
+                if (!request.hasRemaining()) respond(key, 431, "Request Header Fields Too Large", null);
+                return;
+            }
+            requests.incrementAndGet();
+            handle(key, new String(request.array(), 0, headerEnd, StandardCharsets.ISO_8859_1));
+        }
+
+        private void handle(SelectionKey key, String text) throws IOException {
+            String[] lines = text.split("\r\n");
+            String[] start = lines[0].split(" ");
+            if (start.length < 2) {
+                respond(key, 400, "Bad Request", null);
+                return;
+            }
+            boolean head = start[0].equals("HEAD");
+            if (!head && !start[0].equals("GET")) {
+                respond(key, 405, "Method Not Allowed", "Allow: GET, HEAD\r\n");
+                return;
+            }
+            String path = start[1];
+            int query = path.indexOf('?');
+            if (query >= 0) path = path.substring(0, query);
+            Content c = contents.get(path);
+            if (c == null) {
+                respond(key, 404, "Not Found", null);
+                return;
+            }
+            String range = null;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    range = lines[i].substring(colon + 1).trim();
+                }
+            }
+            long length = c.length;
+            long first = 0;
+            long last = length - 1;
+            boolean partial = false;
+            // Only a single range is supported, requests for multiple ranges are answered with the whole file.
+            if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+                String spec = range.substring(6).trim();
+                int dash = spec.indexOf('-');
+                try {
+                    if (dash == 0) {
+                        long suffix = Long.parseLong(spec.substring(1).trim());
+                        first = Math.max(0, length - suffix);
+                        if (suffix == 0) first = length;
+                    } else if (dash > 0) {
+                        first = Long.parseLong(spec.substring(0, dash).trim());
+                        String to = spec.substring(dash + 1).trim();
+                        if (!to.isEmpty()) last = Math.min(last, Long.parseLong(to));
+                    } else {
+                        throw new NumberFormatException(spec);
+                    }
+                } catch (NumberFormatException e) {
+                    respond(key, 400, "Bad Request", null);
+                    return;
+                }
+                if (first >= length || first > last) {
+                    respond(key, 416, "Range Not Satisfiable", "Content-Range: bytes */" + length + "\r\n");
+                    return;
+                }
+                partial = true;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append("HTTP/1.1 ").append(partial ? "206 Partial Content" : "200 OK").append("\r\n");
+            sb.append("Content-Type: application/octet-stream\r\n");
+            sb.append("Content-Length: ").append(last - first + 1).append("\r\n");
+            if (partial) sb.append("Content-Range: bytes ").append(first).append('-').append(last).append('/').append(length).append("\r\n");
+            sb.append("Accept-Ranges: bytes\r\n");
+            sb.append("ETag: \"").append(c.md5).append("\"\r\n");
+            sb.append("Connection: close\r\n\r\n");
+            header = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+            if (!head) {
+                content = c;
+                position = first;
+                end = last + 1;
+            }
+            key.interestOps(SelectionKey.OP_WRITE);
+            write(key);
+        }
+
+        private void respond(SelectionKey key, int status, String reason, String headers) throws IOException {
+            String response = "HTTP/1.1 " + status + " " + reason + "\r\n" +
+                    (headers == null ? "" : headers) +
+                    "Content-Length: 0\r\n" +
+                    "Connection: close\r\n\r\n";
+            header = ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1));
+            key.interestOps(SelectionKey.OP_WRITE);
+            write(key);
+        }
+
+        private void write(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) return;
+            }
+            if (content != null && position < end) {
+                long sent = content.channel.transferTo(position, Math.min(end - position, MAX_TRANSFER), channel);
+                position += sent;
+                bytesSent.addAndGet(sent);
+                if (position < end) return;
+            }
+            close(key);
+        }
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static class Digest {
+        private final long length;
+        private final long modified;
+        private final String md5;
+
+        private Digest(long length, long modified, String md5) {
+            this.length = length;
+            this.modified = modified;
+            this.md5 = md5;
+        }
+    }
+
+    /**
+     * A file published by a content server.
+     */
+    public static class Content {
+        private final File file;
+        private final String path;
+        private final String url;
+        private final String md5;
+        private final long length;
+        private final FileChannel channel;
+
+        private Content(File file, String path, String url, String md5, long length, FileChannel channel) {
+            this.file = file;
+            this.path = path;
+            this.url = url;
+            this.md5 = md5;
+            this.length = length;
+            this.channel = channel;
+        }
+
+        /**
+         * @return The file that is served.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return The URL to pass to the device.
+         */
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return The MD5 checksum of the file as 32 lower case hexadecimal characters.
+         */
+        public String getMd5() {
+            return md5;
+        }
+
+        /**
+         * @return The length of the file in bytes.
+         */
+        public long getLength() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.server;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.base.Device;
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.base.messages.Response;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local gateway for a single device. Clients send their commands to the gateway like they would to the device, the gateway forwards them over one shared session to the device.
+ * Identical read commands that arrive while the same read is already sent to the device are answered with the result of that single upstream command.
+ * Commands that failed upstream are not answered, so the clients retry them like a lost packet.
+ */
+@SuppressWarnings("WeakerAccess")
+public class Gateway implements OnServerAsyncEventListener, Closeable {
+    private final Device upstream;
+    private final Server server;
+    private final ThreadPoolExecutor workers;
+    private final Map<String, Flight> flights = new HashMap<>();
+    private final Set<String> sharedMethods = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong upstreamCalls = new AtomicLong();
+    private final AtomicLong sharedCalls = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Create a new gateway. The device is discovered if it has not been discovered yet, the gateway uses the same device ID.
+     * @param upstream The device to forward the commands to.
+     * @param token The token the clients use to talk to the gateway. If null a random token is generated.
+     * @param bindAddresses The addresses to listen on. If null or empty the gateway listens on port 54321 of all interfaces.
+     * @param threads The maximum number of commands sent to the device at the same time. Values less than 1 will be replaced by 4.
+     * @throws SocketException When the listening sockets could not be created.
+     * @throws CommandExecutionException When the device could not be discovered.
+     */
+    public Gateway(Device upstream, Token token, InetSocketAddress[] bindAddresses, int threads) throws SocketException, CommandExecutionException {
+        if (upstream == null) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS);
+        if (upstream.getDeviceID() == -1 && !upstream.discover()) throw new CommandExecutionException(CommandExecutionException.Error.DEVICE_NOT_FOUND);
+        if (threads < 1) threads = 4;
+        this.upstream = upstream;
+        this.server = new Server(token, upstream.getDeviceID(), null, null, null, null, null, 0, null, bindAddresses);
+        this.server.unregisterMethodHandler("miIO.info");
+        this.server.registerOnServerAsyncEventListener(this);
+        this.workers = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "miIO-gateway");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return The device the commands are forwarded to.
+     */
+    public Device getUpstream() {
+        return upstream;
+    }
+
+    /**
+     * @return The server the clients talk to.
+     */
+    public Server getServer() {
+        return server;
+    }
+
+    /**
+     * Start accepting commands from clients.
+     * @return A future that completes once the gateway is accepting commands. It yields false if the gateway has been closed before.
+     */
+    public Future<Boolean> start() {
+        return server.startAsync();
+    }
+
+    /**
+     * Share the result of additional methods between identical concurrent commands.
+     * Unless configured otherwise only getters and info requests are shared, as their result does not depend on which client sent them.
+     * @param methods The methods to share.
+     */
+    public void addSharedMethods(String... methods) {
+        if (methods == null) return;
+        for (String m : methods) {
+            if (m != null) sharedMethods.add(m);
+        }
+    }
+
+    /**
+     * Check whether identical concurrent commands with this method are sent to the device only once.
+     * @param method The method to check.
+     * @return True if the result of the method is shared.
+     */
+    public boolean isShared(String method) {
+        if (method == null) return false;
+        if (sharedMethods.contains(method)) return true;
+        return method.startsWith("get_") || method.startsWith("miIO.get_") || method.equals("miIO.info");
+    }
+
+    /**
+     * @return The number of commands that have been sent to the device.
+     */
+    public long getUpstreamCalls() {
+        return upstreamCalls.get();
+    }
+
+    /**
+     * @return The number of commands that have been answered with the result of a identical command from another client.
+     */
+    public long getSharedCalls() {
+        return sharedCalls.get();
+    }
+
+    /**
+     * Stop accepting commands. Commands that are currently sent to the device will not be answered.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        server.terminate();
+        workers.shutdown();
+    }
+
+    @Override
+    public boolean onCommandListener(String method, Object params, PendingResponse response) {
+        if (closed) return false;
+        Flight flight;
+        if (isShared(method)) {
+            String key = method + '\u0000' + params;
+            synchronized (flights) {
+                flight = flights.get(key);
+                if (flight != null) {
+                    flight.waiters.add(response);
+                    sharedCalls.incrementAndGet();
+                    return true;
+                }
+                flight = new Flight(key, method, params, response);
+                flights.put(key, flight);
+            }
+        } else {
+            flight = new Flight(null, method, params, response);
+        }
+        try {
+            workers.execute(flight);
+        } catch (RejectedExecutionException e) {
+            flight.finish(null, false);
+        }
+        return true;
+    }
+
+    /**
+     * A command that is sent to the device, together with all clients waiting for its result.
+     */
+    private class Flight implements Runnable {
+        private final String key;
+        private final String method;
+        private final Object params;
+        private final List<PendingResponse> waiters = new ArrayList<>(2);
+
+        private Flight(String key, String method, Object params, PendingResponse first) {
+            this.key = key;
+            this.method = method;
+            this.params = params;
+            this.waiters.add(first);
+        }
+
+        @Override
+        public void run() {
+            Object result = null;
+            boolean unknown = false;
+            upstreamCalls.incrementAndGet();
+            try {
+                Response response = upstream.send(method, params);
+                if (response != null) result = result(response);
+            } catch (CommandExecutionException e) {
+                unknown = e.getError() == CommandExecutionException.Error.UNKNOWN_METHOD;
+            } catch (RuntimeException ignored) {
+                // A malformed response is not answered, like a failed command.
+            } finally {
+                finish(result, unknown);
+            }
+        }
+
+        private Object result(Response response) {
+            Object result = response.getParams();
+            // Numbers and booleans are returned as strings by the response, the raw result keeps their type.
+            String raw = response.getRawResult();
+            if (result instanceof String && raw != null && !raw.startsWith("\"")) return JSONObject.stringToValue(raw);
+            return result;
+        }
+
+        private void finish(Object result, boolean unknown) {
+            List<PendingResponse> done;
+            synchronized (flights) {
+                if (key != null) flights.remove(key);
+                done = new ArrayList<>(waiters);
+            }
+            for (PendingResponse p : done) {
+                if (result != null) {
+                    p.complete(result);
+                } else if (unknown) {
+                    p.complete(null);
+                } else {
+                    p.drop();
+                }
+            }
+        }
+    }
+}
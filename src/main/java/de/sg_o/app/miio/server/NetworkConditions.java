@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.server;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Simulated network conditions for the emulator server. Requests and responses can be lost, duplicated, delayed and reordered.
+ * All random decisions are taken from a single seeded random number generator on the server thread, so a test with the same seed and the same requests sees the same faults.
+ */
+@SuppressWarnings("WeakerAccess")
+public class NetworkConditions {
+    /**
+     * The distribution of the delay added to each response.
+     */
+    public enum Distribution {
+        /**
+         * Every response is delayed by the minimum delay.
+         */
+        FIXED,
+        /**
+         * The delay is uniformly distributed between the minimum and the maximum delay.
+         */
+        UNIFORM,
+        /**
+         * The minimum delay plus an exponentially distributed delay with the given mean, capped at the maximum delay.
+         */
+        EXPONENTIAL
+    }
+
+    private final Random random;
+    private final Map<String, Long> slowdowns = new ConcurrentHashMap<>();
+    private volatile double requestLoss;
+    private volatile double responseLoss;
+    private volatile double duplication;
+    private volatile double reordering;
+    private volatile long reorderDelay = 50;
+    private volatile Distribution distribution = Distribution.FIXED;
+    private volatile long minDelay;
+    private volatile long maxDelay;
+    private volatile long meanDelay;
+
+    private long requestsLost;
+    private long responsesLost;
+    private long duplicated;
+    private long reordered;
+
+    /**
+     * Create new network conditions without any faults.
+     * @param seed The seed of the random number generator.
+     */
+    public NetworkConditions(long seed) {
+        this.random = new Random(seed);
+    }
+
+    private static double probability(double p) {
+        if (p < 0 || Double.isNaN(p)) return 0;
+        if (p > 1) return 1;
+        return p;
+    }
+
+    /**
+     * @return The probability a request is lost before it reaches the server.
+     */
+    public double getRequestLoss() {
+        return requestLoss;
+    }
+
+    /**
+     * @param requestLoss The probability a request is lost before it reaches the server. Between 0 and 1.
+     */
+    public void setRequestLoss(double requestLoss) {
+        this.requestLoss = probability(requestLoss);
+    }
+
+    /**
+     * @return The probability a response is lost after the command has been executed.
+     */
+    public double getResponseLoss() {
+        return responseLoss;
+    }
+
+    /**
+     * @param responseLoss The probability a response is lost after the command has been executed. Between 0 and 1.
+     */
+    public void setResponseLoss(double responseLoss) {
+        this.responseLoss = probability(responseLoss);
+    }
+
+    /**
+     * @return The probability a response is sent twice.
+     */
+    public double getDuplication() {
+        return duplication;
+    }
+
+    /**
+     * @param duplication The probability a response is sent twice. Between 0 and 1.
+     */
+    public void setDuplication(double duplication) {
+        this.duplication = probability(duplication);
+    }
+
+    /**
+     * @return The probability a response is held back, so responses sent after it overtake it.
+     */
+    public double getReordering() {
+        return reordering;
+    }
+
+    /**
+     * @return The additional time in ms a reordered response is held back.
+     */
+    public long getReorderDelay() {
+        return reorderDelay;
+    }
+
+    /**
+     * @param reordering The probability a response is held back, so responses sent after it overtake it. Between 0 and 1.
+     * @param reorderDelay The additional time in ms a reordered response is held back. Values less than 1 will be replaced by 1.
+     */
+    public void setReordering(double reordering, long reorderDelay) {
+        if (reorderDelay < 1) reorderDelay = 1;
+        this.reordering = probability(reordering);
+        this.reorderDelay = reorderDelay;
+    }
+
+    /**
+     * @return The distribution of the delay added to each response.
+     */
+    public Distribution getDistribution() {
+        return distribution;
+    }
+
+    /**
+     * Configure the delay added to each response.
+     * @param distribution The distribution of the delay. Null will be replaced by FIXED.
+     * @param minDelay The minimum delay in ms. Values less than 0 will be replaced by 0.
+     * @param meanDelay The mean of the exponentially distributed part of the delay in ms. Only used by EXPONENTIAL.
+     * @param maxDelay The maximum delay in ms. Values less than the minimum delay will be replaced by the minimum delay.
+     */
+    public void setDelay(Distribution distribution, long minDelay, long meanDelay, long maxDelay) {
+        if (distribution == null) distribution = Distribution.FIXED;
+        if (minDelay < 0) minDelay = 0;
+        if (meanDelay < 0) meanDelay = 0;
+        if (maxDelay < minDelay) maxDelay = minDelay;
+        this.distribution = distribution;
+        this.minDelay = minDelay;
+        this.meanDelay = meanDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @return The minimum delay in ms.
+     */
+    public long getMinDelay() {
+        return minDelay;
+    }
+
+    /**
+     * @return The mean of the exponentially distributed part of the delay in ms.
+     */
+    public long getMeanDelay() {
+        return meanDelay;
+    }
+
+    /**
+     * @return The maximum delay in ms.
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Slow down the responses to a single method.
+     * @param method The method to slow down.
+     * @param delay The time in ms added to the delay of every response to this method. Values less than 1 remove the slowdown.
+     */
+    public void setSlowdown(String method, long delay) {
+        if (method == null) return;
+        if (delay < 1) {
+            slowdowns.remove(method);
+        } else {
+            slowdowns.put(method, delay);
+        }
+    }
+
+    /**
+     * @param method The method to check.
+     * @return The time in ms added to the delay of every response to this method.
+     */
+    public long getSlowdown(String method) {
+        if (method == null) return 0;
+        Long delay = slowdowns.get(method);
+        return delay == null ? 0 : delay;
+    }
+
+    /**
+     * @return The number of requests that have been lost.
+     */
+    public synchronized long getRequestsLost() {
+        return requestsLost;
+    }
+
+    /**
+     * @return The number of responses that have been lost.
+     */
+    public synchronized long getResponsesLost() {
+        return responsesLost;
+    }
+
+    /**
+     * @return The number of responses that have been sent twice.
+     */
+    public synchronized long getDuplicated() {
+        return duplicated;
+    }
+
+    /**
+     * @return The number of responses that have been held back.
+     */
+    public synchronized long getReordered() {
+        return reordered;
+    }
+
+    synchronized boolean loseRequest() {
+        if (requestLoss <= 0 || random.nextDouble() >= requestLoss) return false;
+        requestsLost++;
+        return true;
+    }
+
+    synchronized boolean loseResponse() {
+        if (responseLoss <= 0 || random.nextDouble() >= responseLoss) return false;
+        responsesLost++;
+        return true;
+    }
+
+    synchronized boolean duplicate() {
+        if (duplication <= 0 || random.nextDouble() >= duplication) return false;
+        duplicated++;
+        return true;
+    }
+
+    /**
+     * Calculate the time a response is delayed.
+     * @param method The method of the request.
+     * @return The delay in ms.
+     */
+    synchronized long delay(String method) {
+        long delay;
+        switch (distribution) {
+            case UNIFORM:
+                delay = minDelay + (long) (random.nextDouble() * (maxDelay - minDelay));
+                break;
+            case EXPONENTIAL:
+                delay = minDelay + (long) (-Math.log(1.0d - random.nextDouble()) * meanDelay);
+                if (delay > maxDelay) delay = maxDelay;
+                break;
+            default:
+                delay = minDelay;
+                break;
+        }
+        if (reordering > 0 && random.nextDouble() < reordering) {
+            reordered++;
+            delay += reorderDelay;
+        }
+        return delay + getSlowdown(method);
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.server;
+
+/**
+ * A listener that answers commands asynchronously. The server keeps serving other requests until the response is completed.
+ */
+public interface OnServerAsyncEventListener {
+    /**
+     * Handle a command.
+     * @param method The method of the command.
+     * @param params The parameters of the command.
+     * @param response The response to complete once the result is known. It may be completed from any thread.
+     * @return True if this listener handles the method and will complete the response, false to let the next listener handle the method.
+     */
+    boolean onCommandListener(String method, Object params, PendingResponse response);
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.server;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * The response to a command that is handled asynchronously. Only the first call to {@link #complete(Object)} or {@link #drop()} has an effect.
+ */
+@SuppressWarnings("WeakerAccess")
+public class PendingResponse {
+    private final Server server;
+    private final DatagramChannel channel;
+    private final InetSocketAddress client;
+    private final String method;
+    private final int deviceId;
+    private final long payloadId;
+    private final int timeStamp;
+    private Object result;
+    private boolean done;
+    private boolean dropped;
+
+    PendingResponse(Server server, DatagramChannel channel, InetSocketAddress client, String method, int deviceId, long payloadId, int timeStamp) {
+        this.server = server;
+        this.channel = channel;
+        this.client = client;
+        this.method = method;
+        this.deviceId = deviceId;
+        this.payloadId = payloadId;
+        this.timeStamp = timeStamp;
+    }
+
+    /**
+     * Send the result of the command to the client.
+     * @param result The result of the command. Must be a JSONArray, JSONObject or String. Null is answered with "unknown_method".
+     * @return True if the response has not been completed or dropped before.
+     */
+    public boolean complete(Object result) {
+        synchronized (this) {
+            if (done) return false;
+            this.result = result;
+            done = true;
+        }
+        server.completed(this);
+        return true;
+    }
+
+    /**
+     * Do not answer the command at all, like a device that lost the request.
+     * @return True if the response has not been completed or dropped before.
+     */
+    public boolean drop() {
+        synchronized (this) {
+            if (done) return false;
+            done = true;
+            dropped = true;
+        }
+        server.completed(this);
+        return true;
+    }
+
+    /**
+     * @return True if the response has been completed or dropped.
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return The address of the client that sent the command.
+     */
+    public InetSocketAddress getClient() {
+        return client;
+    }
+
+    /**
+     * @return The method of the command.
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return The payload ID of the command.
+     */
+    public long getPayloadId() {
+        return payloadId;
+    }
+
+    synchronized Object getResult() {
+        return result;
+    }
+
+    synchronized boolean isDropped() {
+        return dropped;
+    }
+
+    DatagramChannel getChannel() {
+        return channel;
+    }
+
+    int getDeviceId() {
+        return deviceId;
+    }
+
+    int getTimeStamp() {
+        return timeStamp;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.server;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the last encoded responses sent to each client, so retransmitted requests can be answered without executing them again.
+ * Both the number of clients and the number of responses per client are bounded, the least recently used entries are evicted first.
+ */
+@SuppressWarnings("WeakerAccess")
+class ResponseCache {
+    private static final int MAX_CLIENTS = 64;
+
+    private final Map<InetSocketAddress, Map<Key, byte[]>> clients;
+    private final Set<Key> pending = new HashSet<>();
+    private int size;
+    private long hits;
+    private long misses;
+
+    /**
+     * Create a new response cache.
+     * @param size The number of responses to remember per client. Values less than 1 disable the cache.
+     */
+    ResponseCache(int size) {
+        this.clients = new LinkedHashMap<InetSocketAddress, Map<Key, byte[]>>(16, 0.75f, true) {
+            private static final long serialVersionUID = -3214640513718211524L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Map<Key, byte[]>> eldest) {
+                return size() > MAX_CLIENTS;
+            }
+        };
+        setSize(size);
+    }
+
+    synchronized int getSize() {
+        return size;
+    }
+
+    synchronized void setSize(int size) {
+        if (size < 0) size = 0;
+        this.size = size;
+        clients.clear();
+    }
+
+    /**
+     * Get the response previously sent for a request.
+     * @param client The client that sent the request.
+     * @param deviceId The device ID of the request.
+     * @param payloadId The payload ID of the request.
+     * @param timeStamp The time stamp of the request.
+     * @return The encoded response or null if the request has not been answered yet.
+     */
+    synchronized byte[] get(InetSocketAddress client, int deviceId, long payloadId, int timeStamp) {
+        if (size < 1) return null;
+        Map<Key, byte[]> responses = clients.get(client);
+        byte[] resp = responses == null ? null : responses.get(new Key(null, deviceId, payloadId, timeStamp));
+        if (resp == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return resp;
+    }
+
+    /**
+     * Remember the response sent for a request.
+     * @param client The client that sent the request.
+     * @param deviceId The device ID of the request.
+     * @param payloadId The payload ID of the request.
+     * @param timeStamp The time stamp of the request.
+     * @param response The encoded response. The array must not be modified afterwards.
+     */
+    synchronized void put(InetSocketAddress client, int deviceId, long payloadId, int timeStamp, byte[] response) {
+        if (size < 1 || response == null) return;
+        Map<Key, byte[]> responses = clients.get(client);
+        if (responses == null) {
+            final int max = size;
+            responses = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+                private static final long serialVersionUID = 6104185207467371209L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+                    return size() > max;
+                }
+            };
+            clients.put(client, responses);
+        }
+        responses.put(new Key(null, deviceId, payloadId, timeStamp), response);
+    }
+
+    /**
+     * Mark a request as being answered asynchronously. Retransmits of a pending request are not executed again.
+     * @param client The client that sent the request.
+     * @param deviceId The device ID of the request.
+     * @param payloadId The payload ID of the request.
+     * @param timeStamp The time stamp of the request.
+     * @return False if the request is already pending.
+     */
+    synchronized boolean begin(InetSocketAddress client, int deviceId, long payloadId, int timeStamp) {
+        return pending.add(new Key(client, deviceId, payloadId, timeStamp));
+    }
+
+    /**
+     * Remove the pending mark of a request.
+     * @param client The client that sent the request.
+     * @param deviceId The device ID of the request.
+     * @param payloadId The payload ID of the request.
+     * @param timeStamp The time stamp of the request.
+     */
+    synchronized void end(InetSocketAddress client, int deviceId, long payloadId, int timeStamp) {
+        pending.remove(new Key(client, deviceId, payloadId, timeStamp));
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    private static final class Key {
+        private final InetSocketAddress client;
+        private final int deviceId;
+        private final long payloadId;
+        private final int timeStamp;
+
+        private Key(InetSocketAddress client, int deviceId, long payloadId, int timeStamp) {
+            this.client = client;
+            this.deviceId = deviceId;
+            this.payloadId = payloadId;
+            this.timeStamp = timeStamp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            if (client == null ? key.client != null : !client.equals(key.client)) return false;
+            return deviceId == key.deviceId && payloadId == key.payloadId && timeStamp == key.timeStamp;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = client == null ? 0 : client.hashCode();
+            result = 31 * result + deviceId;
+            result = 31 * result + (int) (payloadId ^ (payloadId >>> 32));
+            result = 31 * result + timeStamp;
+            return result;
+        }
+    }
+}
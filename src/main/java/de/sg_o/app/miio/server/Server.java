@@ -19,24 +19,66 @@ package de.sg_o.app.miio.server;
 import de.sg_o.app.miio.base.Token;
 import de.sg_o.app.miio.base.messages.Command;
 import de.sg_o.app.miio.base.messages.Response;
+import de.sg_o.app.miio.capture.PacketObserver;
 import org.json.JSONObject;
-import de.sg_o.app.miio.util.ByteArray;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 public class Server extends Thread{
     private List<OnServerEventListener> listener = new ArrayList<>();
-    private DatagramSocket socket;
-    private boolean running;
-    private byte[] buf = new byte[65507];
+    private final Map<String, OnServerEventListener> handlers = new ConcurrentHashMap<>();
+    private final List<OnServerAsyncEventListener> asyncListener = new CopyOnWriteArrayList<>();
+    private final Map<String, OnServerAsyncEventListener> asyncHandlers = new ConcurrentHashMap<>();
+    private final Queue<PendingResponse> completed = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Delayed> delayed = new PriorityQueue<>();
+    private volatile NetworkConditions conditions;
+    private volatile PacketObserver observer;
+    private long delayedCount;
+    private static final int DEFAULT_PORT = 54321;
+    private static final int MAX_BATCH = 64;
+    private static final Callable<Boolean> DONE = new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+            return true;
+        }
+    };
+
+    private final Selector selector;
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final ByteBuffer buf = ByteBuffer.allocate(65507);
+    private final FutureTask<Boolean> started = new FutureTask<>(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+            return running;
+        }
+    });
+    private final FutureTask<Boolean> stopped = new FutureTask<>(DONE);
+    private volatile boolean running;
+    private volatile boolean stopRequested;
+    private final ResponseCache responseCache = new ResponseCache(16);
 
     private Token tk;
     private int deviceId;
@@ -62,6 +104,25 @@ public class Server extends Thread{
      * @throws SocketException When something went wrong during the creation of the listening socket.
      */
     public Server(Token tk, int deviceId, String model, String firmware, String hardware, JSONObject network, String macAddress, long lifeTime, JSONObject accessPoint) throws SocketException {
+        this(tk, deviceId, model, firmware, hardware, network, macAddress, lifeTime, accessPoint, null);
+    }
+
+    /**
+     * Create a simple de.sg_o.app.miio.server listening on a set of addresses.
+     * @param tk The token to encrypt the communication with.
+     * @param deviceId The devices ID used during communication.
+     * @param model The devices model identification.
+     * @param firmware The devices firmware version.
+     * @param hardware The devices hardware version.
+     * @param network The network the device is connected to.
+     * @param macAddress The devices mac address.
+     * @param lifeTime The total time the device has been running for
+     * @param accessPoint The access point the device is connected to.
+     * @param bindAddresses The addresses to listen on. If null or empty the server listens on port 54321 of all interfaces.
+     * @throws SocketException When something went wrong during the creation of the listening sockets.
+     */
+    public Server(Token tk, int deviceId, String model, String firmware, String hardware, JSONObject network, String macAddress, long lifeTime, JSONObject accessPoint, InetSocketAddress[] bindAddresses) throws SocketException {
+        super("miIO-server");
         if (tk == null) { //if no token was provided generate a new random one
             Random rd = new Random();
             byte[] invalidTokenBytes = {-1,-1,-1,-1,-1,-1,-1,-1,-1,-1,-1,-1,-1,-1,-1,-1};
@@ -98,75 +159,378 @@ public class Server extends Thread{
             accessPoint.put("ssid", "WLAN Router");
         }
         this.accessPoint = accessPoint;
-        this.socket = new DatagramSocket(54321);
-        this.socket.setSoTimeout(1000);
+        this.handlers.put("miIO.info", new OnServerEventListener() {
+            @Override
+            public Object onCommandListener(String method, Object params) {
+                return generateInfo();
+            }
+        });
+        if (bindAddresses == null || bindAddresses.length == 0) bindAddresses = new InetSocketAddress[]{new InetSocketAddress(DEFAULT_PORT)};
+        Selector sel = null;
+        try {
+            sel = Selector.open();
+            for (InetSocketAddress address : bindAddresses) {
+                if (address == null) continue;
+                DatagramChannel channel = DatagramChannel.open();
+                channels.add(channel);
+                channel.bind(address);
+                channel.configureBlocking(false);
+                channel.register(sel, SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            closeChannels(sel);
+            if (e instanceof SocketException) throw (SocketException) e;
+            SocketException se = new SocketException(e.getMessage());
+            se.initCause(e);
+            throw se;
+        }
+        this.selector = sel;
     }
 
     /**
      * Register a listener that handles device specific commands.
+     * Listeners are asked one after another for every method that has no handler registered with {@link #registerMethodHandler(OnServerEventListener, String...)}, the first result that is not null is returned.
      * @param listener The listener to add.
      */
     public void registerOnServerEventListener(OnServerEventListener listener){
         this.listener.add(listener);
     }
 
+    /**
+     * Register a handler for a set of methods. The handler is looked up directly by the method name, independent of the number of registered handlers.
+     * A handler registered for a method replaces any previous handler for that method, including a asynchronous one. If the handler returns null, the listeners registered with {@link #registerOnServerEventListener(OnServerEventListener)} are asked instead.
+     * @param handler The handler to add.
+     * @param methods The methods this handler is responsible for.
+     */
+    public void registerMethodHandler(OnServerEventListener handler, String... methods){
+        if (handler == null || methods == null) return;
+        for (String m : methods) {
+            if (m == null) continue;
+            this.handlers.put(m, handler);
+            this.asyncHandlers.remove(m);
+        }
+    }
+
+    /**
+     * Register a listener that handles device specific commands asynchronously.
+     * Asynchronous listeners are asked after all handlers and synchronous listeners did not handle the method.
+     * @param listener The listener to add.
+     */
+    public void registerOnServerAsyncEventListener(OnServerAsyncEventListener listener){
+        if (listener == null) return;
+        this.asyncListener.add(listener);
+    }
+
+    /**
+     * Register a handler that answers a set of methods asynchronously. The handler is looked up directly by the method name.
+     * A handler registered for a method replaces any previous handler for that method, including a synchronous one. Handlers are asked before all listeners.
+     * @param handler The handler to add.
+     * @param methods The methods this handler is responsible for.
+     */
+    public void registerAsyncMethodHandler(OnServerAsyncEventListener handler, String... methods){
+        if (handler == null || methods == null) return;
+        for (String m : methods) {
+            if (m == null) continue;
+            this.asyncHandlers.put(m, handler);
+            this.handlers.remove(m);
+        }
+    }
+
+    /**
+     * Remove the handler of a method.
+     * @param method The method to remove the handler for.
+     * @return True if a handler was registered for this method.
+     */
+    public boolean unregisterMethodHandler(String method){
+        if (method == null) return false;
+        boolean removed = this.handlers.remove(method) != null;
+        return this.asyncHandlers.remove(method) != null || removed;
+    }
+
+    /**
+     * @return The observer that receives all packets the server sends and receives. Null if no observer has been set.
+     */
+    public PacketObserver getPacketObserver() {
+        return observer;
+    }
+
+    /**
+     * Observe all packets the server sends and receives, for example to record them. Requests dropped by the network conditions are not observed.
+     * @param observer The observer to use. Null to remove the observer.
+     */
+    public void setPacketObserver(PacketObserver observer) {
+        this.observer = observer;
+    }
+
+    /**
+     * @return The number of responses remembered per client to answer retransmitted requests.
+     */
+    public int getResponseCacheSize() {
+        return responseCache.getSize();
+    }
+
+    /**
+     * Set the number of responses remembered per client. A request with the same device ID, payload ID and time stamp as a remembered one is answered with the remembered response without executing the command again.
+     * Changing the size clears the cache.
+     * @param size The number of responses to remember per client. Values less than 1 disable the cache.
+     */
+    public void setResponseCacheSize(int size) {
+        responseCache.setSize(size);
+    }
+
+    /**
+     * @return The number of retransmitted requests that have been answered from the response cache.
+     */
+    public long getResponseCacheHits() {
+        return responseCache.getHits();
+    }
+
+    /**
+     * @return The addresses the server is listening on.
+     */
+    public List<InetSocketAddress> getLocalAddresses() {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (DatagramChannel channel : channels) {
+            try {
+                SocketAddress address = channel.getLocalAddress();
+                if (address instanceof InetSocketAddress) addresses.add((InetSocketAddress) address);
+            } catch (IOException ignored) {
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * @return True if the server is processing requests.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Start the server in its own thread.
+     * @return A future that completes as soon as the server is processing requests. Its result is false if the server has been stopped before it was started.
+     */
+    public synchronized Future<Boolean> startAsync() {
+        if (getState() == State.NEW && !stopRequested) start();
+        return started;
+    }
+
+    /**
+     * Request the server to stop. The server thread is woken up immediately.
+     * @return A future that completes as soon as all sockets of the server are closed.
+     */
+    public synchronized Future<Boolean> stopAsync() {
+        stopRequested = true;
+        if (getState() == State.NEW) {
+            closeChannels(selector);
+            started.run();
+            stopped.run();
+        } else {
+            selector.wakeup();
+        }
+        return stopped;
+    }
+
+    /**
+     * @return The simulated network conditions. Null if the network is perfect.
+     */
+    public NetworkConditions getNetworkConditions() {
+        return conditions;
+    }
+
+    /**
+     * Simulate a unreliable network. Requests and responses pass through the conditions before they are processed or sent.
+     * @param conditions The network conditions to simulate. Null for a perfect network.
+     */
+    public void setNetworkConditions(NetworkConditions conditions) {
+        this.conditions = conditions;
+    }
+
     /**
      * Terminate the de.sg_o.app.miio.server.
      */
     public void terminate() {
-        this.running = false;
-        while (!socket.isClosed()){
+        Future<Boolean> f = stopAsync();
+        boolean interrupted = false;
+        while (true) {
             try {
-                Thread.sleep(100);
-            } catch (InterruptedException ignored) {
+                f.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                break;
             }
         }
+        if (interrupted) Thread.currentThread().interrupt();
     }
 
     /**
      * Start the de.sg_o.app.miio.server.
      */
     public void run() {
-        this.running = true;
+        try {
+            running = !stopRequested;
+            started.run();
+            while (!stopRequested) {
+                try {
+                    selector.select(nextDelayedTimeout());
+                } catch (IOException e) {
+                    break;
+                }
+                sendDelayed();
+                sendCompleted();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid() || !key.isReadable()) continue;
+                    receiveBatch((DatagramChannel) key.channel());
+                }
+            }
+        } finally {
+            running = false;
+            closeChannels(selector);
+            started.run();
+            stopped.run();
+        }
+    }
 
-        while (this.running) {
-            DatagramPacket packet = new DatagramPacket(this.buf, this.buf.length);
+    private void receiveBatch(DatagramChannel channel) {
+        for (int i = 0; i < MAX_BATCH && !stopRequested; i++) {
+            SocketAddress address;
+            buf.clear();
             try {
-                this.socket.receive(packet);
-            } catch (IOException ignored) {
-                continue;
+                address = channel.receive(buf);
+            } catch (IOException e) {
+                return;
             }
+            if (address == null) return;
+            buf.flip();
+            byte[] packet = new byte[buf.remaining()];
+            buf.get(packet);
+            NetworkConditions nc = conditions;
+            if (nc != null && nc.loseRequest()) continue;
+            PacketObserver o = observer;
+            if (o != null) o.onPacket(false, (InetSocketAddress) address, packet);
+            try {
+                handle(channel, (InetSocketAddress) address, packet);
+            } catch (RuntimeException ignored) {
+            }
+        }
+    }
+
+    private void handle(DatagramChannel channel, InetSocketAddress client, byte[] packet) {
+        Command msg = new Command(packet, tk);
+        if (!msg.isValid()) return;
+        int timeStamp = (int)(System.currentTimeMillis() / 1000L);
+        if (msg.isHello()){
+            transmit(channel, client, new Response(this.tk, this.deviceId, timeStamp).create(), null);
+            return;
+        }
+        if (msg.getDeviceID() != this.deviceId) return;
+        byte[] respMsg = responseCache.get(client, msg.getDeviceID(), msg.getPayloadID(), msg.getTimeStamp());
+        if (respMsg != null) {
+            transmit(channel, client, respMsg, msg.getMethod());
+            return;
+        }
+        // Handlers registered for the method are asked before the listeners, so they are not shadowed by a generic listener.
+        if (msg.getMethod() != null && asyncHandlers.containsKey(msg.getMethod()) && executeAsync(channel, client, msg, true)) return;
+        Object data = executeCommand(msg.getMethod(),msg.getParams());
+        if (data == null){
+            if (executeAsync(channel, client, msg, false)) return;
+            data = "unknown_method";
+        }
+        transmit(channel, client, encode(client, msg.getDeviceID(), msg.getPayloadID(), msg.getTimeStamp(), data), msg.getMethod());
+    }
 
-            byte[] worker = new byte[2];
-            System.arraycopy(this.buf, 2, worker, 0, 2);
-            int length = (int)ByteArray.fromBytes(worker);
-            worker = new byte[length];
-            System.arraycopy(this.buf, 0, worker, 0, length);
-            Command msg = new Command(worker, tk);
-            InetAddress address = packet.getAddress();
-            int port = packet.getPort();
-            int timeStamp = (int)(System.currentTimeMillis() / 1000L);
-            Response resp;
-            if (msg.isHello()){
-                resp = new Response(this.tk, this.deviceId, timeStamp);
+    private void transmit(DatagramChannel channel, InetSocketAddress client, byte[] respMsg, String method) {
+        if (respMsg == null) return;
+        NetworkConditions nc = conditions;
+        if (nc == null) {
+            send(channel, client, respMsg);
+            return;
+        }
+        if (nc.loseResponse()) return;
+        int copies = nc.duplicate() ? 2 : 1;
+        for (int i = 0; i < copies; i++) {
+            long delay = nc.delay(method);
+            if (delay <= 0) {
+                send(channel, client, respMsg);
             } else {
-                if (msg.getDeviceID() != this.deviceId) continue;
-                Object data = executeCommand(msg.getMethod(),msg.getParams());
-                if (data == null){
-                    data = "unknown_method";
-                }
-                resp = new Response(this.tk, this.deviceId, timeStamp, msg.getPayloadID(), data);
+                delayed.add(new Delayed(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay), delayedCount++, channel, client, respMsg));
+            }
+        }
+    }
+
+    private void send(DatagramChannel channel, InetSocketAddress client, byte[] respMsg) {
+        try {
+            channel.send(ByteBuffer.wrap(respMsg), client);
+        } catch (IOException ignored) {
+            return;
+        }
+        PacketObserver o = observer;
+        if (o != null) o.onPacket(true, client, respMsg);
+    }
+
+    private long nextDelayedTimeout() {
+        Delayed next = delayed.peek();
+        if (next == null) return 0;
+        long timeout = TimeUnit.NANOSECONDS.toMillis(next.due - System.nanoTime());
+        return timeout < 1 ? 1 : timeout;
+    }
+
+    private void sendDelayed() {
+        long now = System.nanoTime();
+        Delayed next;
+        while ((next = delayed.peek()) != null && next.due - now <= 0) {
+            delayed.poll();
+            send(next.channel, next.client, next.packet);
+        }
+    }
+
+    private byte[] encode(InetSocketAddress client, int requestDeviceId, long payloadId, int requestTimeStamp, Object data) {
+        int timeStamp = (int)(System.currentTimeMillis() / 1000L);
+        byte[] respMsg = new Response(this.tk, this.deviceId, timeStamp, payloadId, data).create();
+        responseCache.put(client, requestDeviceId, payloadId, requestTimeStamp, respMsg);
+        return respMsg;
+    }
+
+    void completed(PendingResponse response) {
+        completed.add(response);
+        selector.wakeup();
+    }
+
+    private void sendCompleted() {
+        PendingResponse response;
+        while ((response = completed.poll()) != null) {
+            responseCache.end(response.getClient(), response.getDeviceId(), response.getPayloadId(), response.getTimeStamp());
+            if (response.isDropped()) continue;
+            Object data = response.getResult();
+            if (data == null) data = "unknown_method";
+            try {
+                byte[] respMsg = encode(response.getClient(), response.getDeviceId(), response.getPayloadId(), response.getTimeStamp(), data);
+                transmit(response.getChannel(), response.getClient(), respMsg, response.getMethod());
+            } catch (RuntimeException ignored) {
             }
-            byte[] respMsg = resp.create();
-            System.arraycopy(respMsg,0,this.buf,0,respMsg.length);
-            packet = new DatagramPacket(buf, respMsg.length, address, port);
+        }
+    }
 
+    private void closeChannels(Selector sel) {
+        // Closing the selector first deregisters the channels, so closing them releases the ports immediately.
+        if (sel != null) {
+            try {
+                sel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        for (DatagramChannel channel : channels) {
             try {
-                this.socket.send(packet);
+                channel.close();
             } catch (IOException ignored) {
             }
         }
-        this.socket.close();
     }
 
     /**
@@ -257,22 +621,41 @@ public class Server extends Thread{
 
     private Object executeCommand(String method, Object params){
         if (method == null) return null;
-        switch (method) {
-            case "miIO.info":
-                return generateInfo();
-            default:
-                if (!listener.isEmpty()){
-                    Object ret = null;
-                    for (OnServerEventListener lis : listener) {
-                        ret = lis.onCommandListener(method, params);
-                        if (ret != null) break;
-                    }
-                    return ret;
-
-                } else {
-                    return null;
-                }
+        OnServerEventListener handler = handlers.get(method);
+        if (handler != null) {
+            Object ret = handler.onCommandListener(method, params);
+            if (ret != null) return ret;
+        }
+        for (OnServerEventListener lis : listener) {
+            Object ret = lis.onCommandListener(method, params);
+            if (ret != null) return ret;
+        }
+        return null;
+    }
+
+    private boolean executeAsync(DatagramChannel channel, InetSocketAddress client, Command msg, boolean handler) {
+        // Retransmits of a request that is still being answered asynchronously are ignored.
+        if (!responseCache.begin(client, msg.getDeviceID(), msg.getPayloadID(), msg.getTimeStamp())) return true;
+        PendingResponse pending = new PendingResponse(this, channel, client, msg.getMethod(), msg.getDeviceID(), msg.getPayloadID(), msg.getTimeStamp());
+        boolean async = false;
+        try {
+            async = executeAsyncCommand(msg.getMethod(), msg.getParams(), pending, handler);
+        } finally {
+            if (!async) responseCache.end(client, msg.getDeviceID(), msg.getPayloadID(), msg.getTimeStamp());
+        }
+        return async;
+    }
+
+    private boolean executeAsyncCommand(String method, Object params, PendingResponse response, boolean handler){
+        if (method == null) return false;
+        if (handler) {
+            OnServerAsyncEventListener h = asyncHandlers.get(method);
+            return h != null && h.onCommandListener(method, params, response);
+        }
+        for (OnServerAsyncEventListener lis : asyncListener) {
+            if (lis.onCommandListener(method, params, response)) return true;
         }
+        return false;
     }
 
     private JSONObject generateInfo(){
@@ -287,4 +670,27 @@ public class Server extends Thread{
         obj.put("token", tk.toString());
         return obj;
     }
+
+    private static final class Delayed implements Comparable<Delayed> {
+        private final long due;
+        private final long sequence;
+        private final DatagramChannel channel;
+        private final InetSocketAddress client;
+        private final byte[] packet;
+
+        private Delayed(long due, long sequence, DatagramChannel channel, InetSocketAddress client, byte[] packet) {
+            this.due = due;
+            this.sequence = sequence;
+            this.channel = channel;
+            this.client = client;
+            this.packet = packet;
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long diff = due - o.due;
+            if (diff != 0) return diff < 0 ? -1 : 1;
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
 }
@@ -16,9 +16,12 @@
 
 package de.sg_o.app.miio.util;
 
+import java.nio.ByteBuffer;
+
 public class ByteArray {
     public static final int UNSIGNED_FFFFFFFF = -1;
     private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
+    private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
 
     /**
      * Convert a byte array to a hexadecimal string.
@@ -103,4 +106,30 @@ public class ByteArray {
         }
         return out;
     }
+
+    /**
+     * Find the first NUL byte in a part of a array. Eight bytes are tested at once.
+     * @param value The array to search.
+     * @param offset The position to start searching at.
+     * @param length The number of bytes to search.
+     * @return The position of the first NUL byte. offset + length if the part does not contain a NUL byte. -1 if the input is invalid.
+     */
+    public static int indexOfNul(byte[] value, int offset, int length) {
+        if (value == null || offset < 0 || length < 0 || offset > value.length - length) return -1;
+        int end = offset + length;
+        int i = offset;
+        if (length >= 8) {
+            ByteBuffer words = ByteBuffer.wrap(value);
+            for (; i <= end - 8; i += 8) {
+                long v = words.getLong(i);
+                // The high bit of every byte in zeros is set if and only if that byte of v is 0. No carries cross byte borders.
+                long zeros = ~(((v & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | v | LOW_SEVEN_BITS);
+                if (zeros != 0) return i + (Long.numberOfLeadingZeros(zeros) >>> 3);
+            }
+        }
+        for (; i < end; i++) {
+            if (value[i] == 0) return i;
+        }
+        return end;
+    }
 }
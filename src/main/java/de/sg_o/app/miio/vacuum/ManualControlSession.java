@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.vacuum;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drive a vacuum continuously. The latest movement is sent at a fixed rate without waiting for the responses of the device.
+ * Each movement runs for several periods, so single lost packets do not interrupt the movement. If no new input arrives within the stall timeout the vacuum is stopped.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ManualControlSession {
+    private static final int MOVE_PERIODS = 3;
+
+    private final Vacuum vacuum;
+    private final int period;
+    private final int stallTimeout;
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> pump;
+    private boolean starting;
+    private int sequence;
+    private float rotationSpeed;
+    private float speed;
+    private long lastInput;
+    private boolean stalled;
+    private long sent;
+    private long failed;
+
+    /**
+     * Create a new manual control session.
+     * @param vacuum The vacuum to control.
+     * @param period The time between two movement commands in ms. Values less than 20 will be replaced by 20.
+     * @param stallTimeout The time in ms without new input after which the vacuum is stopped automatically. Values less than the period will be replaced by a default value of five periods.
+     */
+    public ManualControlSession(Vacuum vacuum, int period, int stallTimeout) {
+        this.vacuum = vacuum;
+        if (period < 20) period = 20;
+        if (stallTimeout < period) stallTimeout = period * 5;
+        this.period = period;
+        this.stallTimeout = stallTimeout;
+    }
+
+    /**
+     * @return The time between two movement commands in ms.
+     */
+    public int getPeriod() {
+        return period;
+    }
+
+    /**
+     * @return The time in ms without new input after which the vacuum is stopped automatically.
+     */
+    public int getStallTimeout() {
+        return stallTimeout;
+    }
+
+    /**
+     * Enable the remote control mode of the vacuum and start sending movements.
+     * @return True if the command has been received correctly.
+     * @throws CommandExecutionException When there has been a error during the communication or the response was invalid.
+     */
+    public boolean start() throws CommandExecutionException {
+        synchronized (this) {
+            // Concurrent callers wait for the start in progress, so only one of them creates the scheduler.
+            while (starting) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CommandExecutionException(CommandExecutionException.Error.UNKNOWN, e.toString());
+                }
+            }
+            if (isActive()) return true;
+            starting = true;
+        }
+        boolean ok = false;
+        try {
+            ok = vacuum.sendOk("app_rc_start");
+        } finally {
+            if (!ok) {
+                synchronized (this) {
+                    starting = false;
+                    notifyAll();
+                }
+            }
+        }
+        if (!ok) return false;
+        synchronized (this) {
+            starting = false;
+            notifyAll();
+            sequence = 1;
+            rotationSpeed = 0;
+            speed = 0;
+            stalled = false;
+            lastInput = System.nanoTime();
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "miIO-manual-control");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            pump = scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    pump();
+                }
+            }, 0, period, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Set the movement that is sent to the vacuum. This has to be called at least once per stall timeout, otherwise the vacuum is stopped.
+     * @param rotationSpeed The speed of rotation in deg/s.
+     * @param speed The speed of the robot in m/s. Must be greater then -0.3 and less then 0.3.
+     */
+    public synchronized void move(float rotationSpeed, float speed) {
+        this.rotationSpeed = rotationSpeed;
+        this.speed = speed;
+        this.lastInput = System.nanoTime();
+    }
+
+    /**
+     * Stop the vacuum and disable the remote control mode.
+     * @return True if the command has been received correctly.
+     * @throws CommandExecutionException When there has been a error during the communication or the response was invalid.
+     */
+    public boolean stop() throws CommandExecutionException {
+        if (!halt()) return true;
+        return vacuum.sendOk("app_rc_end");
+    }
+
+    /**
+     * @return True if the session is currently sending movements.
+     */
+    public synchronized boolean isActive() {
+        return pump != null;
+    }
+
+    /**
+     * @return True if the session has been stopped because no new input arrived within the stall timeout.
+     */
+    public synchronized boolean isStalled() {
+        return stalled;
+    }
+
+    /**
+     * @return The number of movement commands that have been sent.
+     */
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return The number of movement commands that could not be sent.
+     */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    private boolean halt() {
+        ScheduledExecutorService s;
+        synchronized (this) {
+            if (pump == null) return false;
+            pump.cancel(false);
+            pump = null;
+            s = scheduler;
+            scheduler = null;
+        }
+        s.shutdown();
+        try {
+            s.awaitTermination(period * 2L, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            vacuum.sendWithoutResponse("app_rc_move", Vacuum.manualControlParams(0, 0, period, nextSequence()));
+        } catch (CommandExecutionException ignored) {
+        }
+        return true;
+    }
+
+    private synchronized int nextSequence() {
+        return sequence++;
+    }
+
+    private void pump() {
+        float rotation;
+        float velocity;
+        int seq;
+        boolean stall;
+        synchronized (this) {
+            if (pump == null || stalled) return;
+            stalled = System.nanoTime() - lastInput > TimeUnit.MILLISECONDS.toNanos(stallTimeout);
+            stall = stalled;
+            rotation = rotationSpeed;
+            velocity = speed;
+            seq = sequence++;
+        }
+        if (stall) {
+            // Stopping blocks until the scheduler terminated, so it must not run on the scheduler thread.
+            Thread stopper = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        stop();
+                    } catch (CommandExecutionException ignored) {
+                    }
+                }
+            }, "miIO-manual-control-stop");
+            stopper.setDaemon(true);
+            stopper.start();
+            return;
+        }
+        try {
+            vacuum.sendWithoutResponse("app_rc_move", Vacuum.manualControlParams(rotation, velocity, period * MOVE_PERIODS, seq));
+            synchronized (this) {
+                sent++;
+            }
+        } catch (CommandExecutionException e) {
+            synchronized (this) {
+                failed++;
+            }
+        }
+    }
+}
@@ -25,10 +25,13 @@ import org.json.JSONObject;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.util.TimeZone;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class Vacuum extends Device implements Serializable {
     private static final long serialVersionUID = -1408835747852889939L;
-    private  int manualControlSequence = -1;
+    private static final AtomicIntegerFieldUpdater<Vacuum> MANUAL_CONTROL_SEQUENCE = AtomicIntegerFieldUpdater.newUpdater(Vacuum.class, "manualControlSequence");
+    private volatile int manualControlSequence = -1;
 
     /**
      * Create an object for communicating with the Mi Robot an the Roborock.
@@ -182,6 +185,19 @@ public class Vacuum extends Device implements Serializable {
         return sendOk("set_custom_mode", params);
     }
 
+    /**
+     * Set the vacuums fan speed setting in the background. Values that are superseded by a newer value before they have been sent are dropped.
+     * @param speed The new speed to set.
+     * @return True if the command that was eventually sent has been received correctly.
+     * @throws CommandExecutionException When the speed is out of range.
+     */
+    public Future<Boolean> setFanSpeedCoalesced(int speed) throws CommandExecutionException {
+        if (speed < 0 || speed > 100) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS);
+        JSONArray params = new JSONArray();
+        params.put(speed);
+        return sendOkCoalesced("set_custom_mode", params);
+    }
+
     /**
      * Get all stored scheduled cleanups.
      * @return An array with all timers. Is empty if no timer has been set on the device.
@@ -444,11 +460,24 @@ public class Vacuum extends Device implements Serializable {
      * @throws CommandExecutionException When there has been a error during the communication or the response was invalid.
      */
     public boolean setSoundVolume(int volume) throws CommandExecutionException {
+        return sendOk("change_sound_volume", soundVolumeParams(volume));
+    }
+
+    /**
+     * Set the vacuums volume in the background. Values that are superseded by a newer value before they have been sent are dropped.
+     * @param volume The volume between 0 and 100.
+     * @return True if the command that was eventually sent was received successfully.
+     */
+    public Future<Boolean> setSoundVolumeCoalesced(int volume) {
+        return sendOkCoalesced("change_sound_volume", soundVolumeParams(volume));
+    }
+
+    private JSONArray soundVolumeParams(int volume) {
         if (volume < 0) volume = 0;
         if (volume > 100) volume = 100;
         JSONArray payload = new JSONArray();
         payload.put(volume);
-        return sendOk("change_sound_volume", payload);
+        return payload;
     }
 
     /** Make the vacuum produce a test sound.
@@ -489,6 +518,11 @@ public class Vacuum extends Device implements Serializable {
      */
     public boolean manualControlMove(float rotationSpeed, float speed, int runDuration) throws CommandExecutionException {
         if (manualControlSequence < 1) manualControlStart();
+        JSONArray send = manualControlParams(rotationSpeed, speed, runDuration, MANUAL_CONTROL_SEQUENCE.getAndIncrement(this));
+        return sendOk("app_rc_move", send);
+    }
+
+    static JSONArray manualControlParams(float rotationSpeed, float speed, int runDuration, int sequence) {
         JSONObject payload = new JSONObject();
         if (rotationSpeed > 180.0f) rotationSpeed = 180.0f;
         if (rotationSpeed < -180.0f) rotationSpeed = -180.0f;
@@ -499,11 +533,20 @@ public class Vacuum extends Device implements Serializable {
         payload.put("velocity", speed);
         if (runDuration < 0) runDuration = 1000;
         payload.put("duration", runDuration);
-        payload.put("seqnum", manualControlSequence);
-        manualControlSequence++;
+        payload.put("seqnum", sequence);
         JSONArray send = new JSONArray();
         send.put(payload);
-        return sendOk("app_rc_move", send);
+        return send;
+    }
+
+    /**
+     * Create a session for continuously driving the vacuum, for example with a joystick.
+     * @param period The time between two movement commands in ms.
+     * @param stallTimeout The time in ms without new input after which the vacuum is stopped automatically.
+     * @return A new manual control session. The session has not been started yet.
+     */
+    public ManualControlSession manualControlSession(int period, int stallTimeout) {
+        return new ManualControlSession(this, period, stallTimeout);
     }
 
     /**
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.vacuum;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+
+/**
+ * Receives the changes detected by a {@link VacuumStatusWatcher}. The methods are called from the threads of the watcher and should return quickly.
+ */
+public interface VacuumStatusListener {
+    /**
+     * Called when the state of a vacuum changed. This is also called for the first successful poll with an old state of null.
+     * @param vacuum The vacuum that changed.
+     * @param oldState The previous state.
+     * @param newState The current state.
+     * @param status The complete status that has been received.
+     */
+    void onStateChanged(Vacuum vacuum, VacuumStatus.State oldState, VacuumStatus.State newState, VacuumStatus status);
+
+    /**
+     * Called when the battery level of a vacuum crossed one of the configured thresholds.
+     * @param vacuum The vacuum that changed.
+     * @param threshold The threshold that has been crossed.
+     * @param battery The current battery level.
+     * @param falling True if the battery level dropped below the threshold, false if it rose to or above the threshold.
+     */
+    void onBatteryThreshold(Vacuum vacuum, int threshold, int battery, boolean falling);
+
+    /**
+     * Called when the error code of a vacuum changed.
+     * @param vacuum The vacuum that changed.
+     * @param oldError The previous error.
+     * @param newError The current error.
+     */
+    void onErrorChanged(Vacuum vacuum, VacuumStatus.Error oldError, VacuumStatus.Error newError);
+
+    /**
+     * Called when a status poll failed.
+     * @param vacuum The vacuum that could not be polled.
+     * @param e The reason of the failure.
+     */
+    void onPollFailed(Vacuum vacuum, CommandExecutionException e);
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.vacuum;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Polls the status of many vacuums on a shared scheduler and reports only the fields that changed.
+ * The interval between two polls depends on the last known state: Moving vacuums are polled often, docked or idle vacuums rarely.
+ */
+@SuppressWarnings("WeakerAccess")
+public class VacuumStatusWatcher {
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownScheduler;
+    private final Map<Vacuum, Watch> watches = new ConcurrentHashMap<>();
+    private final Map<VacuumStatus.State, Long> intervals = new EnumMap<>(VacuumStatus.State.class);
+    private volatile long fastInterval;
+    private volatile long slowInterval;
+    private volatile int[] batteryThresholds = new int[]{20, 10};
+
+    /**
+     * Create a new watcher with its own scheduler.
+     * @param threads The number of threads used to poll the vacuums. Values less than 1 will be replaced by 1.
+     * @param fastInterval The time in ms between two polls of a moving vacuum. Values less than 1 will be replaced by a default value of 2000.
+     * @param slowInterval The time in ms between two polls of a idle or charging vacuum. Values less than 1 will be replaced by a default value of 60000.
+     */
+    public VacuumStatusWatcher(int threads, long fastInterval, long slowInterval) {
+        this(Executors.newScheduledThreadPool(threads < 1 ? 1 : threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "miIO-status-watcher-" + THREAD_COUNT.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }), true, fastInterval, slowInterval);
+    }
+
+    /**
+     * Create a new watcher using an existing scheduler. The scheduler is not shut down when the watcher is closed.
+     * @param scheduler The scheduler to run the polls on.
+     * @param fastInterval The time in ms between two polls of a moving vacuum. Values less than 1 will be replaced by a default value of 2000.
+     * @param slowInterval The time in ms between two polls of a idle or charging vacuum. Values less than 1 will be replaced by a default value of 60000.
+     */
+    public VacuumStatusWatcher(ScheduledExecutorService scheduler, long fastInterval, long slowInterval) {
+        this(scheduler, false, fastInterval, slowInterval);
+    }
+
+    private VacuumStatusWatcher(ScheduledExecutorService scheduler, boolean ownScheduler, long fastInterval, long slowInterval) {
+        if (scheduler == null) throw new NullPointerException("scheduler");
+        if (fastInterval < 1) fastInterval = 2000;
+        if (slowInterval < 1) slowInterval = 60000;
+        this.scheduler = scheduler;
+        this.ownScheduler = ownScheduler;
+        this.fastInterval = fastInterval;
+        this.slowInterval = slowInterval;
+    }
+
+    /**
+     * @return The time in ms between two polls of a moving vacuum.
+     */
+    public long getFastInterval() {
+        return fastInterval;
+    }
+
+    /**
+     * @return The time in ms between two polls of a idle or charging vacuum.
+     */
+    public long getSlowInterval() {
+        return slowInterval;
+    }
+
+    /**
+     * Override the poll interval for a single state.
+     * @param state The state to configure.
+     * @param interval The time in ms between two polls while the vacuum is in that state. Values less than 1 restore the default.
+     */
+    public void setInterval(VacuumStatus.State state, long interval) {
+        if (state == null) return;
+        synchronized (intervals) {
+            if (interval < 1) {
+                intervals.remove(state);
+            } else {
+                intervals.put(state, interval);
+            }
+        }
+    }
+
+    /**
+     * Get the time between two polls for a state. Unless configured otherwise a vacuum that is cleaning, moving or docking is polled with the fast interval, every other state with the slow interval.
+     * @param state The state to check. Null if the state is not known yet.
+     * @return The time in ms between two polls.
+     */
+    public long intervalOf(VacuumStatus.State state) {
+        if (state == null) return fastInterval;
+        synchronized (intervals) {
+            Long interval = intervals.get(state);
+            if (interval != null) return interval;
+        }
+        switch (state) {
+            case REMOTE_CONTROL:
+            case CLEANING:
+            case GOING_HOME:
+            case MANUAL:
+            case SPOT_CLEANUP:
+            case DOCKING:
+            case GOING_TO_TARGET:
+            case CLEANING_ZONE:
+                return fastInterval;
+            default:
+                return slowInterval;
+        }
+    }
+
+    /**
+     * @return The battery levels at which the listeners are notified.
+     */
+    public int[] getBatteryThresholds() {
+        return Arrays.copyOf(batteryThresholds, batteryThresholds.length);
+    }
+
+    /**
+     * @param thresholds The battery levels at which the listeners are notified.
+     */
+    public void setBatteryThresholds(int... thresholds) {
+        if (thresholds == null) thresholds = new int[0];
+        this.batteryThresholds = Arrays.copyOf(thresholds, thresholds.length);
+    }
+
+    /**
+     * Start watching a vacuum. The first poll is executed immediately. If the vacuum is already watched only the listener is replaced.
+     * The watcher polls each vacuum one poll at a time, the vacuum should not be used by other threads while it is watched.
+     * @param vacuum The vacuum to watch.
+     * @param listener The listener to notify about changes.
+     * @return True if the vacuum was not watched before.
+     */
+    public boolean watch(Vacuum vacuum, VacuumStatusListener listener) {
+        if (vacuum == null || listener == null) return false;
+        Watch w = new Watch(vacuum, listener);
+        Watch old = watches.put(vacuum, w);
+        if (old != null) old.cancel();
+        w.schedule(0);
+        return old == null;
+    }
+
+    /**
+     * Stop watching a vacuum.
+     * @param vacuum The vacuum to stop watching.
+     * @return True if the vacuum was watched.
+     */
+    public boolean unwatch(Vacuum vacuum) {
+        if (vacuum == null) return false;
+        Watch w = watches.remove(vacuum);
+        if (w == null) return false;
+        w.cancel();
+        return true;
+    }
+
+    /**
+     * @return The number of vacuums currently watched.
+     */
+    public int getWatched() {
+        return watches.size();
+    }
+
+    /**
+     * Get the last status received from a vacuum.
+     * @param vacuum The vacuum to check.
+     * @return The last status or null if the vacuum is not watched or has not been polled successfully yet.
+     */
+    public VacuumStatus getLastStatus(Vacuum vacuum) {
+        if (vacuum == null) return null;
+        Watch w = watches.get(vacuum);
+        if (w == null) return null;
+        return w.last;
+    }
+
+    /**
+     * Stop watching all vacuums. If the watcher created its own scheduler, the scheduler is shut down.
+     */
+    public void close() {
+        for (Vacuum v : watches.keySet()) {
+            unwatch(v);
+        }
+        if (ownScheduler) scheduler.shutdownNow();
+    }
+
+    private void compare(Watch w, VacuumStatus status) {
+        VacuumStatus previous = w.last;
+        w.last = status;
+        VacuumStatusListener l = w.listener;
+        if (previous == null) {
+            l.onStateChanged(w.vacuum, null, status.getState(), status);
+            if (status.getErrorCode() != VacuumStatus.Error.NONE) l.onErrorChanged(w.vacuum, null, status.getErrorCode());
+            return;
+        }
+        if (previous.getState() != status.getState()) l.onStateChanged(w.vacuum, previous.getState(), status.getState(), status);
+        if (previous.getErrorCode() != status.getErrorCode()) l.onErrorChanged(w.vacuum, previous.getErrorCode(), status.getErrorCode());
+        int oldBattery = previous.getBattery();
+        int newBattery = status.getBattery();
+        if (oldBattery == newBattery) return;
+        for (int threshold : batteryThresholds) {
+            if (oldBattery >= threshold && newBattery < threshold) l.onBatteryThreshold(w.vacuum, threshold, newBattery, true);
+            if (oldBattery < threshold && newBattery >= threshold) l.onBatteryThreshold(w.vacuum, threshold, newBattery, false);
+        }
+    }
+
+    private class Watch implements Runnable {
+        private final Vacuum vacuum;
+        private final VacuumStatusListener listener;
+        private volatile VacuumStatus last;
+        private volatile boolean cancelled;
+        private ScheduledFuture<?> next;
+
+        private Watch(Vacuum vacuum, VacuumStatusListener listener) {
+            this.vacuum = vacuum;
+            this.listener = listener;
+        }
+
+        private synchronized void schedule(long delay) {
+            if (cancelled) return;
+            try {
+                next = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                cancelled = true;
+            }
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+            if (next != null) next.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) return;
+            VacuumStatus.State state = last == null ? null : last.getState();
+            try {
+                VacuumStatus status = vacuum.status();
+                if (cancelled) return;
+                compare(this, status);
+                state = status.getState();
+            } catch (CommandExecutionException e) {
+                if (cancelled) return;
+                listener.onPollFailed(vacuum, e);
+            } catch (RuntimeException e) {
+                if (cancelled) return;
+                listener.onPollFailed(vacuum, new CommandExecutionException(CommandExecutionException.Error.UNKNOWN, e.toString()));
+            }
+            schedule(intervalOf(state));
+        }
+    }
+}
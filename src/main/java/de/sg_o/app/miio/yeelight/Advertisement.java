@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.yeelight;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A SSDP style advertisement of a yeelight. Lights send these periodically and as the response to a search.
+ */
+@SuppressWarnings("WeakerAccess")
+public class Advertisement {
+    private final long id;
+    private final InetSocketAddress location;
+    private final String model;
+    private final String firmware;
+    private final Set<String> support;
+    private final int maxAge;
+    private final boolean alive;
+    private final LightSnapshot state;
+
+    private Advertisement(long id, InetSocketAddress location, String model, String firmware, Set<String> support, int maxAge, boolean alive, LightSnapshot state) {
+        this.id = id;
+        this.location = location;
+        this.model = model;
+        this.firmware = firmware;
+        this.support = support;
+        this.maxAge = maxAge;
+        this.alive = alive;
+        this.state = state;
+    }
+
+    /**
+     * Parse a received datagram.
+     * @param data The buffer containing the datagram.
+     * @param offset The position of the first byte of the datagram.
+     * @param length The length of the datagram.
+     * @param source The address the datagram has been received from. Used if the advertisement does not contain a location.
+     * @return The advertisement. Null if the datagram is no advertisement of a light, for example a search request.
+     */
+    public static Advertisement parse(byte[] data, int offset, int length, InetAddress source) {
+        if (data == null) return null;
+        String[] lines = new String(data, offset, length, StandardCharsets.UTF_8).split("\\r?\\n");
+        if (lines.length < 1) return null;
+        String start = lines[0].trim();
+        if (!start.startsWith("NOTIFY") && !start.startsWith("HTTP/1.1 200")) return null;
+        long id = -1;
+        InetSocketAddress location = null;
+        String model = null;
+        String firmware = null;
+        Set<String> support = new HashSet<>();
+        int maxAge = 0;
+        boolean alive = true;
+        LightSnapshot state = new LightSnapshot();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon < 1) continue;
+            String key = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = lines[i].substring(colon + 1).trim();
+            switch (key) {
+                case "id":
+                    id = parseID(value);
+                    break;
+                case "location":
+                    location = parseLocation(value);
+                    break;
+                case "model":
+                    model = value;
+                    break;
+                case "fw_ver":
+                    firmware = value;
+                    break;
+                case "support":
+                    for (String method : value.split(" ")) {
+                        if (!method.isEmpty()) support.add(method);
+                    }
+                    break;
+                case "cache-control":
+                    int eq = value.indexOf("max-age=");
+                    if (eq >= 0) {
+                        try {
+                            maxAge = Integer.parseInt(value.substring(eq + 8).trim());
+                        } catch (NumberFormatException ignored) {
+                        }
+                    }
+                    break;
+                case "nts":
+                    alive = !value.equalsIgnoreCase("ssdp:byebye");
+                    break;
+                default:
+                    state.set(Prop.Names.fromString(key), value);
+                    break;
+            }
+        }
+        if (id < 0) return null;
+        if (location == null && source != null) location = new InetSocketAddress(source, LanConnection.PORT);
+        return new Advertisement(id, location, model, firmware, Collections.unmodifiableSet(support), maxAge, alive, state);
+    }
+
+    private static long parseID(String value) {
+        String hex = value.toLowerCase(Locale.ROOT);
+        if (hex.startsWith("0x")) hex = hex.substring(2);
+        int start = 0;
+        while (start < hex.length() - 1 && hex.charAt(start) == '0') start++;
+        hex = hex.substring(start);
+        // IDs with more than 15 significant hex digits do not fit into a positive long and are treated as missing.
+        if (hex.isEmpty() || hex.length() > 15) return -1;
+        try {
+            return Long.parseLong(hex, 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static InetSocketAddress parseLocation(String value) {
+        try {
+            URI uri = new URI(value);
+            if (uri.getHost() == null) return null;
+            int port = uri.getPort() < 0 ? LanConnection.PORT : uri.getPort();
+            return new InetSocketAddress(InetAddress.getByName(uri.getHost()), port);
+        } catch (URISyntaxException | UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The unique ID of the light.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return The address of the LAN control port of the light. Null if unknown.
+     */
+    public InetSocketAddress getLocation() {
+        return location;
+    }
+
+    /**
+     * @return The model of the light, for example "color" or "mono". Null if not advertised.
+     */
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * @return The firmware version of the light. Null if not advertised.
+     */
+    public String getFirmware() {
+        return firmware;
+    }
+
+    /**
+     * @return The methods the light supports.
+     */
+    public Set<String> getSupport() {
+        return support;
+    }
+
+    /**
+     * @return The time in seconds the advertisement stays valid. 0 if not advertised.
+     */
+    public int getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @return False if the light announced that it is leaving the network.
+     */
+    public boolean isAlive() {
+        return alive;
+    }
+
+    /**
+     * @return A copy of the advertised property values.
+     */
+    public LightSnapshot getState() {
+        return new LightSnapshot(state);
+    }
+
+    @Override
+    public String toString() {
+        return "Advertisement{" +
+                "id=0x" + Long.toHexString(id) +
+                ", location=" + location +
+                ", model='" + model + '\'' +
+                ", state=" + state +
+                '}';
+    }
+}
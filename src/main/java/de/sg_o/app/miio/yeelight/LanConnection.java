@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.yeelight;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent connection to the plain JSON control port of a yeelight.
+ * Every command is written as one line and the responses are matched by their ID, so several threads can have commands in flight at the same time.
+ * Property changes pushed by the light are merged into a cached state and forwarded to the light object that opened the connection.
+ * A connection opened with {@link #open()} is kept open: if it is lost it is reopened in the background until the connection is closed, so pushed changes keep arriving.
+ * Otherwise it is reopened by the next command. Failed connection attempts are retried with an exponentially growing delay.
+ */
+@SuppressWarnings("WeakerAccess")
+public class LanConnection implements Closeable {
+    /**
+     * The port the lights listen on.
+     */
+    public static final int PORT = 55443;
+    private static final long MIN_BACKOFF = 500;
+    private static final long MAX_BACKOFF = 30000;
+    private static final JSONObject LOST = new JSONObject();
+
+    private final InetSocketAddress address;
+    private final int timeout;
+    private final AtomicLong ids = new AtomicLong();
+    private final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<>();
+    private final LightSnapshot state = new LightSnapshot();
+    private final Object connectLock = new Object();
+
+    private volatile Socket socket;
+    private volatile LightStateListener listener;
+    private volatile Light owner;
+    private volatile boolean closed;
+    private boolean persistent;
+    private boolean reconnecting;
+    private long backoff = MIN_BACKOFF;
+    private long nextAttempt;
+    private long connects;
+    private long notifications;
+
+    /**
+     * Create a new connection. The connection is opened by {@link #open()} or when the first command is sent.
+     * @param ip The address of the light.
+     * @param port The control port of the light, usually {@link #PORT}.
+     * @param timeout The timeout for opening the connection and for every command in milliseconds.
+     */
+    public LanConnection(InetAddress ip, int port, int timeout) {
+        if (port < 1 || port > 65535) port = PORT;
+        if (timeout < 1) timeout = 1000;
+        this.address = new InetSocketAddress(ip, port);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Open the connection now and keep it open until the connection is closed. If it can not be opened or is lost later, it is reopened in the background.
+     * @return True if the connection is open.
+     */
+    public boolean open() {
+        synchronized (connectLock) {
+            if (closed) return false;
+            persistent = true;
+        }
+        try {
+            connect();
+            return true;
+        } catch (CommandExecutionException e) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    reconnect();
+                }
+            }, "miIO-yeelight-lan-connect");
+            t.setDaemon(true);
+            t.start();
+            return false;
+        }
+    }
+
+    /**
+     * Send a command and wait for its result.
+     * @param method The method to execute on the light.
+     * @param params The parameters of the method. Must be a JSONArray or JSONObject.
+     * @return The result of the command.
+     * @throws CommandExecutionException When the light could not be reached, did not respond in time or responded with a error.
+     */
+    public Object call(String method, Object params) throws CommandExecutionException {
+        if (method == null) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS);
+        long id = ids.incrementAndGet();
+        JSONObject msg = new JSONObject();
+        msg.put("id", id);
+        msg.put("method", method);
+        msg.put("params", params == null ? new JSONArray() : params);
+        byte[] line = (msg.toString() + "\r\n").getBytes(StandardCharsets.UTF_8);
+        Pending p = new Pending();
+        pending.put(id, p);
+        try {
+            Socket s = connect();
+            p.socket = s;
+            // A disconnect between connecting and assigning the socket did not see this command, so it would wait for the full timeout.
+            if (socket != s) throw new CommandExecutionException(CommandExecutionException.Error.UNKNOWN, "Connection lost");
+            try {
+                OutputStream out = s.getOutputStream();
+                synchronized (out) {
+                    out.write(line);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                disconnect(s);
+                throw new CommandExecutionException(CommandExecutionException.Error.UNKNOWN, e.toString());
+            }
+            JSONObject response = p.await(timeout);
+            if (response == null) throw new CommandExecutionException(CommandExecutionException.Error.TIMEOUT);
+            if (response == LOST) throw new CommandExecutionException(CommandExecutionException.Error.UNKNOWN, "Connection lost");
+            return result(response);
+        } finally {
+            pending.remove(id);
+        }
+    }
+
+    private static Object result(JSONObject response) throws CommandExecutionException {
+        Object result = response.opt("result");
+        if (result != null && result != JSONObject.NULL) return result;
+        JSONObject error = response.optJSONObject("error");
+        if (error == null) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
+        String message = error.optString("message", "");
+        if (message.contains("method not supported") || message.contains("unsupported method")) {
+            throw new CommandExecutionException(CommandExecutionException.Error.UNKNOWN_METHOD, error.toString());
+        }
+        throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE, error.toString());
+    }
+
+    private Socket connect() throws CommandExecutionException {
+        Socket s = socket;
+        if (s != null) return s;
+        synchronized (connectLock) {
+            if (closed) throw new CommandExecutionException(CommandExecutionException.Error.DEVICE_NOT_FOUND, "Connection closed");
+            s = socket;
+            if (s != null) return s;
+            long now = System.nanoTime();
+            if (now - nextAttempt < 0) {
+                throw new CommandExecutionException(CommandExecutionException.Error.DEVICE_NOT_FOUND, "Reconnecting in " + TimeUnit.NANOSECONDS.toMillis(nextAttempt - now) + "ms");
+            }
+            s = new Socket();
+            try {
+                s.setTcpNoDelay(true);
+                s.connect(address, timeout);
+            } catch (IOException e) {
+                try {
+                    s.close();
+                } catch (IOException ignored) {
+                }
+                nextAttempt = now + TimeUnit.MILLISECONDS.toNanos(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                throw new CommandExecutionException(CommandExecutionException.Error.DEVICE_NOT_FOUND, e.toString());
+            }
+            backoff = MIN_BACKOFF;
+            connects++;
+            socket = s;
+            final Socket reading = s;
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read(reading);
+                }
+            }, "miIO-yeelight-lan");
+            reader.setDaemon(true);
+            reader.start();
+            return s;
+        }
+    }
+
+    private void read(Socket s) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                JSONObject msg;
+                try {
+                    msg = new JSONObject(line);
+                } catch (JSONException e) {
+                    continue;
+                }
+                if (msg.has("id")) {
+                    Pending p = pending.get(msg.optLong("id", -1));
+                    if (p != null) p.complete(msg);
+                } else if ("props".equals(msg.optString("method"))) {
+                    push(msg.optJSONObject("params"));
+                }
+            }
+        } catch (IOException ignored) {
+        } finally {
+            disconnect(s);
+        }
+        reconnect();
+    }
+
+    /**
+     * Reopen a persistent connection, waiting for the delay after every failed attempt. Only one thread reconnects at a time.
+     */
+    private void reconnect() {
+        synchronized (connectLock) {
+            if (!persistent || closed || reconnecting || socket != null) return;
+            reconnecting = true;
+        }
+        try {
+            while (true) {
+                synchronized (connectLock) {
+                    while (!closed && socket == null) {
+                        long wait = nextAttempt - System.nanoTime();
+                        if (wait <= 0) break;
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(connectLock, wait);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (closed || socket != null) return;
+                }
+                try {
+                    connect();
+                    return;
+                } catch (CommandExecutionException ignored) {
+                }
+            }
+        } finally {
+            synchronized (connectLock) {
+                reconnecting = false;
+            }
+        }
+    }
+
+    private void push(JSONObject params) {
+        if (params == null) return;
+        LightSnapshot changes = new LightSnapshot();
+        Iterator<String> keys = params.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            changes.set(Prop.Names.fromString(key), params.opt(key));
+        }
+        if (changes.isEmpty()) return;
+        LightSnapshot copy;
+        synchronized (state) {
+            state.merge(changes);
+            notifications++;
+            copy = new LightSnapshot(state);
+        }
+        Light o = owner;
+        if (o != null) o.updateCache(changes);
+        LightStateListener l = listener;
+        if (l != null) l.onStateChanged(changes, copy);
+    }
+
+    private void disconnect(Socket s) {
+        synchronized (connectLock) {
+            if (socket == s) socket = null;
+        }
+        try {
+            s.close();
+        } catch (IOException ignored) {
+        }
+        // Commands sent over this socket will never receive their response.
+        for (Pending p : pending.values()) {
+            if (p.socket == s) p.complete(LOST);
+        }
+    }
+
+    /**
+     * @param owner The light whose cache is updated with the pushed property changes.
+     */
+    void setOwner(Light owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @return A copy of the state built from the pushed property changes.
+     */
+    public LightSnapshot getState() {
+        synchronized (state) {
+            return new LightSnapshot(state);
+        }
+    }
+
+    /**
+     * @param listener The listener to inform about pushed property changes. Null to remove the listener.
+     */
+    public void setStateListener(LightStateListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return The listener informed about pushed property changes.
+     */
+    public LightStateListener getStateListener() {
+        return listener;
+    }
+
+    /**
+     * @return True if the connection is currently open.
+     */
+    public boolean isConnected() {
+        return socket != null;
+    }
+
+    /**
+     * @return The number of times the connection has been opened.
+     */
+    public long getConnects() {
+        synchronized (connectLock) {
+            return connects;
+        }
+    }
+
+    /**
+     * @return The number of property notifications received.
+     */
+    public long getNotifications() {
+        synchronized (state) {
+            return notifications;
+        }
+    }
+
+    /**
+     * @return The address of the light.
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Close the connection. Commands that are waiting for their response fail and no further commands can be sent.
+     */
+    @Override
+    public void close() {
+        Socket s;
+        synchronized (connectLock) {
+            closed = true;
+            s = socket;
+            connectLock.notifyAll();
+        }
+        if (s != null) disconnect(s);
+    }
+
+    private static class Pending {
+        private JSONObject response;
+        private boolean done;
+        private volatile Socket socket;
+
+        private synchronized void complete(JSONObject response) {
+            if (done) return;
+            this.response = response;
+            this.done = true;
+            notifyAll();
+        }
+
+        private synchronized JSONObject await(long timeout) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (!done) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return null;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return response;
+        }
+    }
+}
@@ -19,16 +19,24 @@ package de.sg_o.app.miio.yeelight;
 import de.sg_o.app.miio.base.CommandExecutionException;
 import de.sg_o.app.miio.base.Device;
 import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.base.messages.Response;
 import org.json.JSONArray;
 
 import java.net.InetAddress;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * Baseclass for all yeelight devices.
  */
 @SuppressWarnings("WeakerAccess")
 public abstract class Light extends Device {
+    private static final Prop.Names[] STATE_PROPS = {Prop.Names.POWER, Prop.Names.BRIGHTNESS, Prop.Names.COLOR_MODE,
+            Prop.Names.COLOR_TEMPERATURE, Prop.Names.RGB_COLOR, Prop.Names.HUE, Prop.Names.SATURATION};
+
+    private transient volatile LanConnection lan;
+    private transient volatile LightStateListener stateListener;
+    private transient LightSnapshot cache;
 
     /**
      * @param ip               The IP address of the light to connect to. If the address is null the first light that was found will be chosen.
@@ -41,6 +49,93 @@ public abstract class Light extends Device {
         super(ip, token, acceptableModels, timeout, retries);
     }
 
+    /**
+     * Send all following commands over the plain JSON control port of the light instead of encrypted miIO packets. The LAN control mode has to be enabled on the light.
+     * The connection is opened right away and kept open, so the changes pushed by the light keep the cache current.
+     * @param port The control port of the light, usually {@link LanConnection#PORT}.
+     * @return The connection that is used from now on.
+     * @throws CommandExecutionException When the address of the light is not known.
+     */
+    public synchronized LanConnection enableLan(int port) throws CommandExecutionException {
+        if (lan != null) return lan;
+        if (getIp() == null) throw new CommandExecutionException(CommandExecutionException.Error.IP_OR_TOKEN_UNKNOWN);
+        LanConnection l = new LanConnection(getIp(), port, getTimeout());
+        l.setOwner(this);
+        lan = l;
+        l.open();
+        return l;
+    }
+
+    /**
+     * Close the LAN connection and send all following commands as miIO packets again.
+     */
+    public synchronized void disableLan() {
+        if (lan == null) return;
+        lan.close();
+        lan = null;
+    }
+
+    /**
+     * @return The LAN connection used for commands. Null if commands are sent as miIO packets.
+     */
+    public LanConnection getLanConnection() {
+        return lan;
+    }
+
+    /**
+     * Send a command to the light. If the LAN connection is enabled, the command is sent over it, otherwise it is sent as a miIO packet.
+     * @param method The method to execute on the device.
+     * @param params The command to execute on the device. Must be a JSONArray or JSONObject.
+     * @return The response from the device.
+     * @throws CommandExecutionException When there has been a error during the communication or the response was invalid.
+     */
+    @Override
+    public Response send(String method, Object params) throws CommandExecutionException {
+        LanConnection l = lan;
+        if (l == null) return super.send(method, params);
+        return new Response(getToken(), getDeviceID(), 0, 0, l.call(method, params));
+    }
+
+    /**
+     * Get the last known state of the light without contacting it. The state is built from the values read with {@link #getSnapshot(Prop.Names[])}, the changes pushed over the LAN connection and the advertisements received by an attached {@link SsdpListener}.
+     * @return A copy of the cached property values.
+     */
+    public LightSnapshot getCachedSnapshot() {
+        synchronized (this) {
+            return new LightSnapshot(cache);
+        }
+    }
+
+    /**
+     * @param listener The listener to inform whenever the cached state changes. Null to remove the listener.
+     */
+    public void setStateListener(LightStateListener listener) {
+        this.stateListener = listener;
+    }
+
+    /**
+     * @return The listener informed whenever the cached state changes.
+     */
+    public LightStateListener getStateListener() {
+        return stateListener;
+    }
+
+    /**
+     * Merge property values into the cached state.
+     * @param changes The values to merge.
+     */
+    void updateCache(LightSnapshot changes) {
+        if (changes == null || changes.isEmpty()) return;
+        LightSnapshot copy;
+        synchronized (this) {
+            if (cache == null) cache = new LightSnapshot();
+            cache.merge(changes);
+            copy = new LightSnapshot(cache);
+        }
+        LightStateListener l = stateListener;
+        if (l != null) l.onStateChanged(changes, copy);
+    }
+
     /**
      * Get several property values at once from the device.
      * @param props The properties to get.
@@ -52,6 +147,28 @@ public abstract class Light extends Device {
         return prop.parseResponse(sendToArray("get_prop", prop.getRequestArray()));
     }
 
+    /**
+     * Get several property values at once from the device as a typed snapshot.
+     * @param props The properties to get.
+     * @return The property values.
+     * @throws CommandExecutionException When there has been a error during the communication or the response was invalid.
+     */
+    public LightSnapshot getSnapshot(Prop.Names[] props) throws CommandExecutionException {
+        Prop prop = new Prop(props);
+        LightSnapshot snapshot = prop.parseSnapshot(sendToArray("get_prop", prop.getRequestArray()));
+        updateCache(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Get the power state, brightness, color mode, color temperature, rgb color, hue and saturation from the device as a typed snapshot.
+     * @return The property values.
+     * @throws CommandExecutionException When there has been a error during the communication or the response was invalid.
+     */
+    public LightSnapshot getSnapshot() throws CommandExecutionException {
+        return getSnapshot(STATE_PROPS);
+    }
+
     /**
      * Get a single property value from the device.
      * @param prop The property to get.
@@ -72,13 +189,10 @@ public abstract class Light extends Device {
      * @throws CommandExecutionException When there has been a error during the communication or the response was invalid.
      */
     public int getIntProp(Prop.Names prop) throws CommandExecutionException {
-        String value = getSingleProp(prop);
-        if (value.equals("")) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
-        try {
-            return Integer.valueOf(value);
-        } catch (Exception e){
-            throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
-        }
+        if (prop == null || prop.getType() != Prop.Type.NUMBER) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_PARAMETERS);
+        LightSnapshot value = getSnapshot(new Prop.Names[]{prop});
+        if (!value.contains(prop)) throw new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
+        return value.getInt(prop, -1);
     }
 
     /**
@@ -187,6 +301,21 @@ public abstract class Light extends Device {
      * @throws CommandExecutionException When there has been a error during the communication or the response was invalid.
      */
     public boolean setBrightness(int brightness, boolean smoothChange, int duration) throws CommandExecutionException {
+        return sendOk("set_bright", brightnessParams(brightness, smoothChange, duration));
+    }
+
+    /**
+     * Set the brightness in the background. Values that are superseded by a newer value before they have been sent are dropped. Use this for rapidly changing input like sliders.
+     * @param brightness The brightness to change to.
+     * @param smoothChange Whether to change instantly or smoothly.
+     * @param duration The duration of the smooth change.
+     * @return True if the command that was eventually sent was received successfully.
+     */
+    public Future<Boolean> setBrightnessCoalesced(int brightness, boolean smoothChange, int duration) {
+        return sendOkCoalesced("set_bright", brightnessParams(brightness, smoothChange, duration));
+    }
+
+    private JSONArray brightnessParams(int brightness, boolean smoothChange, int duration) {
         if (brightness < 1) brightness = 1;
         if (brightness > 100) brightness = 100;
         if (duration < 30) duration = 30;
@@ -194,7 +323,7 @@ public abstract class Light extends Device {
         col.put(brightness);
         col.put(smoothChange ? "smooth" : "sudden");
         col.put(duration);
-        return sendOk("set_bright", col);
+        return col;
     }
 
     /**
@@ -233,7 +362,7 @@ public abstract class Light extends Device {
      * @throws CommandExecutionException When there has been a error during the communication or the response was invalid.
      */
     public boolean isOn() throws CommandExecutionException {
-        return getSingleProp(Prop.Names.POWER).equals("on");
+        return getSnapshot(new Prop.Names[]{Prop.Names.POWER}).isOn();
     }
 
     /**
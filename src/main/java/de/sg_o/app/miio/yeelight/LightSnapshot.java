@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.yeelight;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A compact set of property values of a light. The values are stored in a primitive array indexed by the ordinal of the property name.
+ */
+@SuppressWarnings("WeakerAccess")
+public class LightSnapshot implements Serializable {
+    private static final long serialVersionUID = 3167430928650318253L;
+    private static final Prop.Names[] NAMES = Prop.Names.values();
+
+    private final int[] values;
+    private final String[] text;
+    private long present;
+
+    /**
+     * Create a new, empty snapshot.
+     */
+    public LightSnapshot() {
+        this.values = new int[NAMES.length];
+        this.text = new String[NAMES.length];
+        this.present = 0;
+    }
+
+    /**
+     * Create a copy of an existing snapshot.
+     * @param other The snapshot to copy.
+     */
+    public LightSnapshot(LightSnapshot other) {
+        this();
+        if (other == null) return;
+        System.arraycopy(other.values, 0, this.values, 0, this.values.length);
+        System.arraycopy(other.text, 0, this.text, 0, this.text.length);
+        this.present = other.present;
+    }
+
+    /**
+     * Store a value reported by the device.
+     * @param prop The property to set.
+     * @param value The value as returned by the device. Numbers and strings are accepted. Empty or unparsable values are ignored.
+     * @return True if the value has been stored.
+     */
+    boolean set(Prop.Names prop, Object value) {
+        if (prop == null || value == null) return false;
+        int index = prop.ordinal();
+        switch (prop.getType()) {
+            case NUMBER:
+                if (value instanceof Number) {
+                    values[index] = ((Number) value).intValue();
+                } else {
+                    String s = value.toString();
+                    if (!isInteger(s)) return false;
+                    try {
+                        values[index] = Integer.parseInt(s);
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+                break;
+            case SWITCH:
+                String s = value.toString();
+                if (s.equals("on")) {
+                    values[index] = 1;
+                } else if (s.equals("off")) {
+                    values[index] = 0;
+                } else {
+                    return false;
+                }
+                break;
+            default:
+                text[index] = value.toString();
+                break;
+        }
+        present |= 1L << index;
+        return true;
+    }
+
+    /**
+     * Copy all values present in another snapshot into this one.
+     * @param other The snapshot to take the values from.
+     */
+    void merge(LightSnapshot other) {
+        if (other == null) return;
+        for (int i = 0; i < NAMES.length; i++) {
+            if ((other.present & (1L << i)) == 0) continue;
+            values[i] = other.values[i];
+            text[i] = other.text[i];
+        }
+        present |= other.present;
+    }
+
+    private static boolean isInteger(String s) {
+        int length = s.length();
+        if (length == 0 || length > 10) return false;
+        int i = (s.charAt(0) == '-') ? 1 : 0;
+        if (i == length) return false;
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param prop The property to check.
+     * @return True if the snapshot contains a value for this property.
+     */
+    public boolean contains(Prop.Names prop) {
+        if (prop == null) return false;
+        return (present & (1L << prop.ordinal())) != 0;
+    }
+
+    /**
+     * @return True if no property value is present.
+     */
+    public boolean isEmpty() {
+        return present == 0;
+    }
+
+    /**
+     * Get a numeric or switch property. Switch properties are returned as 1 for "on" and 0 for "off".
+     * @param prop The property to get.
+     * @param fallback The value to return if the property is not present or not numeric.
+     * @return The value of the property.
+     */
+    public int getInt(Prop.Names prop, int fallback) {
+        if (!contains(prop)) return fallback;
+        if (prop.getType() == Prop.Type.TEXT) return fallback;
+        return values[prop.ordinal()];
+    }
+
+    /**
+     * Get any property as a string.
+     * @param prop The property to get.
+     * @return The value of the property as it would have been reported by the device. Null if not present.
+     */
+    public String getString(Prop.Names prop) {
+        if (!contains(prop)) return null;
+        switch (prop.getType()) {
+            case NUMBER:
+                return Integer.toString(values[prop.ordinal()]);
+            case SWITCH:
+                return values[prop.ordinal()] == 1 ? "on" : "off";
+            default:
+                return text[prop.ordinal()];
+        }
+    }
+
+    /**
+     * @return True if the light is on. False if it is off or the power state is not present.
+     */
+    public boolean isOn() {
+        return getInt(Prop.Names.POWER, 0) == 1;
+    }
+
+    /**
+     * @return The brightness of the light. -1 if not present.
+     */
+    public int getBrightness() {
+        return getInt(Prop.Names.BRIGHTNESS, -1);
+    }
+
+    /**
+     * @return The color temperature of the light. -1 if not present.
+     */
+    public int getColorTemperature() {
+        return getInt(Prop.Names.COLOR_TEMPERATURE, -1);
+    }
+
+    /**
+     * @return The rgb color of the light. -1 if not present.
+     */
+    public int getRGB() {
+        return getInt(Prop.Names.RGB_COLOR, -1);
+    }
+
+    /**
+     * @return The hue of the light. -1 if not present.
+     */
+    public int getHue() {
+        return getInt(Prop.Names.HUE, -1);
+    }
+
+    /**
+     * @return The saturation of the light. -1 if not present.
+     */
+    public int getSaturation() {
+        return getInt(Prop.Names.SATURATION, -1);
+    }
+
+    /**
+     * @return 1: rgb mode; 2: color temperature mode; 3: Hue Saturation mode; -1 if not present.
+     */
+    public int getColorMode() {
+        return getInt(Prop.Names.COLOR_MODE, -1);
+    }
+
+    /**
+     * @return True if the color flow mode is enabled.
+     */
+    public boolean isFlowing() {
+        return getInt(Prop.Names.COLOR_FLOW_ENABLED, 0) == 1;
+    }
+
+    /**
+     * @return The remaining time of the sleep timer in minutes. -1 if not present.
+     */
+    public int getSleepTimeLeft() {
+        return getInt(Prop.Names.SLEEP_TIME_LEFT, -1);
+    }
+
+    /**
+     * @return True if the music mode is enabled.
+     */
+    public boolean isMusicModeEnabled() {
+        return getInt(Prop.Names.MUSIC_MODE_ENABLED, 0) == 1;
+    }
+
+    /**
+     * @return The name of the light. Null if not present.
+     */
+    public String getName() {
+        return getString(Prop.Names.DEVICE_NAME);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        LightSnapshot that = (LightSnapshot) o;
+        if (present != that.present) return false;
+        for (int i = 0; i < NAMES.length; i++) {
+            if ((present & (1L << i)) == 0) continue;
+            if (values[i] != that.values[i]) return false;
+            if (text[i] == null ? that.text[i] != null : !text[i].equals(that.text[i])) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (present ^ (present >>> 32));
+        result = 31 * result + Arrays.hashCode(values);
+        result = 31 * result + Arrays.hashCode(text);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("LightSnapshot{");
+        boolean first = true;
+        for (Prop.Names n : NAMES) {
+            if (!contains(n)) continue;
+            if (!first) sb.append(", ");
+            sb.append(n.toString()).append('=').append(getString(n));
+            first = false;
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.yeelight;
+
+/**
+ * Receives the property changes of a light, for example the changes it pushes over its LAN connection.
+ */
+public interface LightStateListener {
+    /**
+     * Called on the thread that received the changes whenever the light reported changed properties.
+     * @param changes The properties that have changed.
+     * @param state A copy of the complete state known after the change has been applied.
+     */
+    void onStateChanged(LightSnapshot changes, LightSnapshot state);
+}
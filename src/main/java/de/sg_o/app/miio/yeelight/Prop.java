@@ -26,6 +26,24 @@ import java.util.Map;
  * This class handles the properties of a light.
  */
 public class Prop {
+    /**
+     * The kind of value a property holds.
+     */
+    public enum Type {
+        /**
+         * An integer value.
+         */
+        NUMBER,
+        /**
+         * A power state that is reported as "on" or "off".
+         */
+        SWITCH,
+        /**
+         * A free form string.
+         */
+        TEXT
+    }
+
     /**
      * The retrievable properties. Not all lights implement every property.
      */
@@ -33,102 +51,127 @@ public class Prop {
         /**
          * The power state of the lamp. "on" or "off"
          */
-        POWER("power"),
+        POWER("power", Type.SWITCH),
         /**
          * The brightness of the lamp. 1 to 100 inclusive
          */
-        BRIGHTNESS("bright"),
+        BRIGHTNESS("bright", Type.NUMBER),
         /**
          * Color temperature of the lamp in color temperature mode. 1700 to 6500(k) inclusive
          */
-        COLOR_TEMPERATURE("ct"),
+        COLOR_TEMPERATURE("ct", Type.NUMBER),
         /**
          * The color in rgb mode. 1 to 16777215 inclusive. Bits 0-7 are blue, 8-15 green and 16-23 red.
          */
-        RGB_COLOR("rgb"),
+        RGB_COLOR("rgb", Type.NUMBER),
         /**
          * The hue of the color in hsv mode. 0 to 359 inclusive
          */
-        HUE("hue"),
+        HUE("hue", Type.NUMBER),
         /**
          * The saturation of the color in hsv mode. 0 to 100 inclusive.
          */
-        SATURATION("sat"),
+        SATURATION("sat", Type.NUMBER),
         /**
          * The color mode. 1: rgb mode; 2: color temperature mode; 3: hsv mode
          */
-        COLOR_MODE("color_mode"),
+        COLOR_MODE("color_mode", Type.NUMBER),
         /**
          * The state of the color flow mode. 0: disabled; 1: enabled
          */
-        COLOR_FLOW_ENABLED("flowing"),
+        COLOR_FLOW_ENABLED("flowing", Type.NUMBER),
         /**
          * The remaining time of the sleep timer in minutes. 1 to 60 inclusive.
          */
-        SLEEP_TIME_LEFT("delayoff"),
+        SLEEP_TIME_LEFT("delayoff", Type.NUMBER),
         /**
          * The parameters of the flow mode.
          */
-        FLOW_PARAMETERS("flow_params"),
+        FLOW_PARAMETERS("flow_params", Type.TEXT),
         /**
          * The state of the music mode. 0: disabled; 1: enabled
          */
-        MUSIC_MODE_ENABLED("music_on"),
+        MUSIC_MODE_ENABLED("music_on", Type.NUMBER),
         /**
          * The lights name.
          */
-        DEVICE_NAME("name"),
+        DEVICE_NAME("name", Type.TEXT),
         /**
          * The background power state of the lamp. "on" or "off"
          */
-        BACKGROUND_LIGHT_POWER("bg_power"),
+        BACKGROUND_LIGHT_POWER("bg_power", Type.SWITCH),
         /**
          * The state of the color flow mode in background mode. 0: disabled; 1: enabled
          */
-        BACKGROUND_LIGHT_FLOWING("bg_flowing"),
+        BACKGROUND_LIGHT_FLOWING("bg_flowing", Type.NUMBER),
         /**
          * The parameters of the flow mode in background mode.
          */
-        BACKGROUND_LIGHT_FLOW_PARAMETERS("bg_flow_params"),
+        BACKGROUND_LIGHT_FLOW_PARAMETERS("bg_flow_params", Type.TEXT),
         /**
          * The color in rgb mode in background mode. 1 to 16777215 inclusive
          */
-        BACKGROUND_LIGHT_COLOR_TEMPERATURE("bg_ct"),
+        BACKGROUND_LIGHT_COLOR_TEMPERATURE("bg_ct", Type.NUMBER),
         /**
          * The color mode in background mode. 1: rgb mode; 2: color temperature mode; 3: hsv mode
          */
-        BACKGROUND_LIGHT_COLOR_MODE("bg_lmode"),
+        BACKGROUND_LIGHT_COLOR_MODE("bg_lmode", Type.NUMBER),
         /**
          * The brightness of the lamp in background mode. 1 to 100 inclusive
          */
-        BACKGROUND_LIGHT_BRIGHTNESS("bg_bright"),
+        BACKGROUND_LIGHT_BRIGHTNESS("bg_bright", Type.NUMBER),
         /**
          * The color in rgb mode in background mode. 1 to 16777215 inclusive
          */
-        BACKGROUND_LIGHT_RGB_COLOR("bg_rgb"),
+        BACKGROUND_LIGHT_RGB_COLOR("bg_rgb", Type.NUMBER),
         /**
          * The hue of the color in hsv mode in background mode. 0 to 359 inclusive
          */
-        BACKGROUND_LIGHT_HUE("bg_hue"),
+        BACKGROUND_LIGHT_HUE("bg_hue", Type.NUMBER),
         /**
          * The saturation of the color in hsv mode in background mode. 0 to 100 inclusive.
          */
-        BACKGROUND_LIGHT_SATURATION("bg_sat"),
+        BACKGROUND_LIGHT_SATURATION("bg_sat", Type.NUMBER),
         /**
          * The brightness of the lamp in night mode. 1 to 100 inclusive
          */
-        NIGHT_MODE_BRIGHTNESS("nl_br");
+        NIGHT_MODE_BRIGHTNESS("nl_br", Type.NUMBER);
 
         private final String name;
+        private final Type type;
 
-        Names(String name) {
+        Names(String name, Type type) {
             this.name = name;
+            this.type = type;
+        }
+
+        /**
+         * @return The kind of value the device reports for this property.
+         */
+        public Type getType() {
+            return type;
         }
 
         @Override
         public String toString() {
             return name;
         }
+
+        /**
+         * @param name The name of the property as used by the device.
+         * @return The property with this name. Null if there is no such property.
+         */
+        public static Names fromString(String name) {
+            return BY_NAME.get(name);
+        }
+    }
+
+    private static final Map<String, Names> BY_NAME = new HashMap<>();
+
+    static {
+        for (Names n : Names.values()) {
+            BY_NAME.put(n.toString(), n);
+        }
     }
 
     private Names[] props;
@@ -177,4 +220,20 @@ public class Prop {
         }
         return ret;
     }
+
+    /**
+     * Parse the response from the device directly into a typed snapshot without creating intermediate strings for numeric values.
+     * @param response The response from the device.
+     * @return A snapshot containing the values of the requested properties.
+     * @throws CommandExecutionException When the response does not match the requested properties.
+     */
+    public LightSnapshot parseSnapshot(JSONArray response) throws CommandExecutionException {
+        if (response == null) throw  new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
+        if (response.length() != props.length) throw  new CommandExecutionException(CommandExecutionException.Error.INVALID_RESPONSE);
+        LightSnapshot ret = new LightSnapshot();
+        for (int i = 0; i < props.length; i++){
+            ret.set(props[i], response.opt(i));
+        }
+        return ret;
+    }
 }
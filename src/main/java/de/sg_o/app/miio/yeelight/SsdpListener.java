@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.yeelight;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Listens for the advertisements yeelights multicast periodically and whenever their state changes.
+ * The advertised properties are merged into the cache of every attached {@link Light} with the same address, so their state stays current without polling.
+ * A search asks all lights on the network to advertise themselves at once.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SsdpListener implements Closeable {
+    /**
+     * The multicast group the lights advertise to.
+     */
+    public static final String GROUP = "239.255.255.250";
+    /**
+     * The port the lights advertise to.
+     */
+    public static final int PORT = 1982;
+    private static final int MAX_DATAGRAM = 65507;
+
+    private final InetSocketAddress group;
+    private final int localPort;
+    private final ConcurrentHashMap<Long, Advertisement> devices = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Light> lights = new CopyOnWriteArrayList<>();
+    private volatile AdvertisementListener listener;
+    private NetworkInterface networkInterface;
+    private MulticastSocket socket;
+    private long received;
+
+    /**
+     * Create a listener for the default multicast group and port.
+     */
+    public SsdpListener() {
+        this(new InetSocketAddress(GROUP, PORT), PORT);
+    }
+
+    /**
+     * Create a new listener.
+     * @param group The address searches are sent to. If it is a multicast address the listener joins the group.
+     * @param localPort The port to listen on for advertisements. 0 to choose a free port.
+     */
+    public SsdpListener(InetSocketAddress group, int localPort) {
+        if (group == null) group = new InetSocketAddress(GROUP, PORT);
+        if (localPort < 0 || localPort > 65535) localPort = PORT;
+        this.group = group;
+        this.localPort = localPort;
+    }
+
+    /**
+     * Start listening for advertisements on a background thread.
+     * @throws IOException When the socket could not be opened or the group could not be joined.
+     */
+    public synchronized void start() throws IOException {
+        if (socket != null) return;
+        MulticastSocket s = new MulticastSocket(localPort);
+        try {
+            if (group.getAddress().isMulticastAddress()) s.joinGroup(new InetSocketAddress(group.getAddress(), 0), networkInterface);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        socket = s;
+        final MulticastSocket listening = s;
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listen(listening);
+            }
+        }, "miIO-ssdp");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void listen(DatagramSocket s) {
+        byte[] buf = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!s.isClosed()) {
+            try {
+                packet.setLength(buf.length);
+                s.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+            Advertisement a = Advertisement.parse(buf, packet.getOffset(), packet.getLength(), packet.getAddress());
+            if (a != null) handle(a);
+        }
+    }
+
+    /**
+     * Ask all lights to advertise themselves and collect the responses. The responses are handled like received advertisements as well.
+     * @param timeout The time to wait for responses in milliseconds.
+     * @return The lights that responded, by their ID.
+     * @throws IOException When the search could not be sent.
+     */
+    public Map<Long, Advertisement> search(int timeout) throws IOException {
+        if (timeout < 1) timeout = 1;
+        Map<Long, Advertisement> found = new HashMap<>();
+        String request = "M-SEARCH * HTTP/1.1\r\n" +
+                "HOST: " + GROUP + ":" + PORT + "\r\n" +
+                "MAN: \"ssdp:discover\"\r\n" +
+                "ST: wifi_bulb\r\n";
+        byte[] msg = request.getBytes(StandardCharsets.UTF_8);
+        try (DatagramSocket s = new DatagramSocket()) {
+            s.send(new DatagramPacket(msg, msg.length, group));
+            byte[] buf = new byte[MAX_DATAGRAM];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) break;
+                s.setSoTimeout((int) left);
+                try {
+                    packet.setLength(buf.length);
+                    s.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                Advertisement a = Advertisement.parse(buf, packet.getOffset(), packet.getLength(), packet.getAddress());
+                if (a == null) continue;
+                found.put(a.getId(), a);
+                handle(a);
+            }
+        }
+        return found;
+    }
+
+    private void handle(Advertisement a) {
+        synchronized (this) {
+            received++;
+        }
+        if (a.isAlive()) {
+            devices.put(a.getId(), a);
+        } else {
+            devices.remove(a.getId());
+        }
+        if (a.isAlive() && a.getLocation() != null) {
+            LightSnapshot state = a.getState();
+            for (Light l : lights) {
+                if (a.getLocation().getAddress().equals(l.getIp())) l.updateCache(state);
+            }
+        }
+        AdvertisementListener al = listener;
+        if (al != null) al.onAdvertisement(a);
+    }
+
+    /**
+     * Keep the cached state of a light up to date with its advertisements.
+     * @param light The light to attach. It is matched by its IP address.
+     */
+    public void attach(Light light) {
+        if (light == null) return;
+        lights.addIfAbsent(light);
+    }
+
+    /**
+     * Stop updating the cached state of a light.
+     * @param light The light to detach.
+     * @return True if the light was attached.
+     */
+    public boolean detach(Light light) {
+        return lights.remove(light);
+    }
+
+    /**
+     * @param listener The listener to inform about every advertisement. Null to remove the listener.
+     */
+    public void setAdvertisementListener(AdvertisementListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return The listener informed about every advertisement.
+     */
+    public AdvertisementListener getAdvertisementListener() {
+        return listener;
+    }
+
+    /**
+     * @return The last advertisement of every light that has not announced leaving the network.
+     */
+    public List<Advertisement> getDevices() {
+        return new ArrayList<>(devices.values());
+    }
+
+    /**
+     * @param id The ID of the light.
+     * @return The last advertisement of the light. Null if none has been received.
+     */
+    public Advertisement getDevice(long id) {
+        return devices.get(id);
+    }
+
+    /**
+     * @return The number of advertisements received.
+     */
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    /**
+     * @return The interface the multicast group is joined on. Null for the default interface.
+     */
+    public synchronized NetworkInterface getNetworkInterface() {
+        return networkInterface;
+    }
+
+    /**
+     * @param networkInterface The interface to join the multicast group on. Null for the default interface. Takes effect the next time the listener is started.
+     */
+    public synchronized void setNetworkInterface(NetworkInterface networkInterface) {
+        this.networkInterface = networkInterface;
+    }
+
+    /**
+     * @return The port the listener receives advertisements on. -1 if the listener is not running.
+     */
+    public synchronized int getLocalPort() {
+        if (socket == null) return -1;
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Stop listening.
+     */
+    @Override
+    public synchronized void close() {
+        if (socket == null) return;
+        socket.close();
+        socket = null;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.baseTest;
+
+import de.sg_o.app.miio.base.CommandCoalescer;
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.server.Server;
+import de.sg_o.app.miio.serverTest.ServerVacuumEvents;
+import de.sg_o.app.miio.vacuum.Vacuum;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class CommandCoalescerTest {
+
+    @Test
+    public void coalesceTest() throws Exception {
+        ServerVacuumEvents evCleaner = new ServerVacuumEvents();
+        Token tk = new Token("00112233445566778899AABBCCDDEEFF", 16);
+        Server ts0 = new Server(tk, 4321, "rockrobo.vacuum.v1", "3.3.9_003194", null, null, null, 1000, null);
+        ts0.registerOnServerEventListener(evCleaner);
+        ts0.start();
+
+        Vacuum d0 = new Vacuum(InetAddress.getByName("127.0.0.1"), tk, 0, 2);
+        CommandCoalescer c0 = d0.getCoalescer();
+        assertSame(c0, d0.getCoalescer());
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 1; i <= 50; i++) {
+            results.add(d0.setFanSpeedCoalesced(i));
+            results.add(d0.setSoundVolumeCoalesced(i));
+        }
+        for (Future<Boolean> f : results) {
+            assertTrue(f.get());
+        }
+        assertEquals(50, d0.getFanSpeed());
+        assertEquals(50, d0.getSoundVolume());
+        assertEquals(100, c0.getSubmitted());
+        assertTrue(c0.getDropped() > 0);
+        assertEquals(0, c0.getPending());
+
+        try {
+            d0.setFanSpeedCoalesced(101);
+            fail();
+        } catch (CommandExecutionException e) {
+            assertEquals(CommandExecutionException.Error.INVALID_PARAMETERS, e.getError());
+        }
+        ts0.terminate();
+    }
+}
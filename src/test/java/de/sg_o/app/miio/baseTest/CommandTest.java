@@ -19,9 +19,12 @@ package de.sg_o.app.miio.baseTest;
 import de.sg_o.app.miio.base.Token;
 import de.sg_o.app.miio.base.messages.Command;
 import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.Test;
 import de.sg_o.app.miio.util.ByteArray;
 
+import java.util.Arrays;
+
 import static org.junit.Assert.*;
 
 public class CommandTest {
@@ -119,6 +122,50 @@ public class CommandTest {
         assertEquals(((JSONArray)msg3.getParams()).get(0),((JSONArray)msg5.getParams()).get(0));
     }
 
+    @Test
+    public void payloadTest() {
+        Token tk = new Token("000102030405060708090A0B0C0D0E0F", 16);
+        JSONObject nested = new JSONObject();
+        nested.put("name", "Wohnzimmer \"S\u00fcd\" </script>\n\u20ac \u6771\u4eac \ud83d\ude00 \ud83d");
+        nested.put("values", new JSONArray().put(-42).put(1.5).put(true).put(JSONObject.NULL).put(Long.MAX_VALUE));
+        JSONArray params = new JSONArray().put(nested).put("");
+        Command c0 = new Command(new Command(tk, 1, 2, 3, "set_name", params).create(), tk);
+        assertEquals("set_name", c0.getMethod());
+        assertEquals(3, c0.getPayloadID());
+        assertTrue(params.similar(c0.getParams()));
+
+        byte[] m0 = new Command(tk, 1, 2, 4, "get_status", null).create();
+        String decrypted = Command.decryptPayload(Arrays.copyOfRange(m0, 0x20, m0.length), tk);
+        assertEquals("{\"id\":4,\"method\":\"get_status\",\"params\":[]}", decrypted);
+        byte[] m2 = new Command(tk, 1, 2, 6, "set_name", new JSONArray().put("K\u00fcche \u6771\u4eac")).create();
+        decrypted = Command.decryptPayload(Arrays.copyOfRange(m2, 0x20, m2.length), tk);
+        assertEquals("{\"id\":6,\"method\":\"set_name\",\"params\":[\"K\u00fcche \u6771\u4eac\"]}", decrypted);
+        Command c1 = new Command(new Command(tk, 1, 2, 7, "", null).create("{\"method\":\"set_name\",\"params\":[\"\u6771\u4eac\"],\"id\":7}"), tk);
+        assertEquals("\u6771\u4eac", ((JSONArray) c1.getParams()).getString(0));
+        assertEquals(7, c1.getPayloadID());
+
+        byte[] m1 = new Command(tk, 1, 2, 5, "get_status", new JSONObject()).create();
+        decrypted = Command.decryptPayload(Arrays.copyOfRange(m1, 0x20, m1.length), tk);
+        assertEquals("{\"id\":5,\"method\":\"get_status\"}", decrypted);
+    }
+
+    @Test
+    public void templateTest() {
+        Token tk = new Token("000102030405060708090A0B0C0D0E0F", 16);
+        long[] ids = {0, 9, 10, 123456789, -1};
+        for (long id : ids) {
+            byte[] m0 = new Command(tk, 1, 2, id, "app_start", null).create();
+            byte[] m1 = new Command(tk, 1, 2, id, "app_start", new JSONArray()).create();
+            assertArrayEquals(m0, m1);
+            assertEquals("{\"id\":" + id + ",\"method\":\"app_start\",\"params\":[]}", Command.decryptPayload(Arrays.copyOfRange(m0, 0x20, m0.length), tk));
+        }
+        byte[] m2 = new Command(tk, 1, 2, 8, "get_\"\u6771", null).create();
+        Command c2 = new Command(m2, tk);
+        assertEquals("get_\"\u6771", c2.getMethod());
+        assertEquals(8, c2.getPayloadID());
+        assertEquals(0, ((JSONArray) c2.getParams()).length());
+    }
+
     @Test
     public void invalidMessageTest() {
         Command msg5 = new Command(null, new Token("000102030405060708090A0B0C0D0E0F", 16));
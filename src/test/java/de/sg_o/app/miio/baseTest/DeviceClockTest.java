@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.baseTest;
+
+import de.sg_o.app.miio.base.DeviceClock;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DeviceClockTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void nextTest() {
+        DeviceClock c0 = new DeviceClock();
+        assertFalse(c0.isSynced());
+        assertEquals(-1, c0.next(0));
+        assertEquals(-1, c0.current(0));
+
+        c0.sync(1000, 0);
+        assertTrue(c0.isSynced());
+        assertEquals(1001, c0.next(0));
+        assertEquals(1002, c0.next(SECOND / 2));
+        assertEquals(1000, c0.current(SECOND / 2));
+        assertEquals(1003, c0.next(2 * SECOND));
+        // After a long idle period the stamp follows the time instead of the number of messages.
+        assertEquals(4600, c0.next(3600 * SECOND));
+        assertEquals(4601, c0.next(3600 * SECOND));
+        assertEquals(1, c0.getSyncs());
+
+        c0.reset();
+        assertFalse(c0.isSynced());
+        assertEquals(-1, c0.next(0));
+    }
+
+    @Test
+    public void syncTest() {
+        DeviceClock c0 = new DeviceClock();
+        c0.sync(1000, 0);
+        // A device whose clock runs ahead moves the model forward.
+        c0.sync(1015, 10 * SECOND);
+        assertEquals(1015, c0.current(10 * SECOND));
+        assertEquals(1015, c0.next(10 * SECOND));
+        assertEquals(1016, c0.next(10 * SECOND));
+        assertEquals(2, c0.getSyncs());
+
+        // A delayed response does not move the clock back.
+        c0.sync(1010, 11 * SECOND);
+        assertEquals(1016, c0.current(11 * SECOND));
+        assertEquals(2, c0.getSyncs());
+
+        // A stamp far behind the clock means that the device restarted.
+        c0.sync(5, 20 * SECOND);
+        assertEquals(1, c0.getRestarts());
+        assertEquals(6, c0.next(20 * SECOND));
+
+        DeviceClock c1 = new DeviceClock();
+        c1.sync(0xFFFFFFF0, 0);
+        assertEquals(0xFFFFFFF1, c1.next(0));
+    }
+}
@@ -19,11 +19,16 @@ package de.sg_o.app.miio.baseTest;
 import de.sg_o.app.miio.base.CommandExecutionException;
 import de.sg_o.app.miio.base.Device;
 import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.server.NetworkConditions;
+import de.sg_o.app.miio.server.OnServerAsyncEventListener;
+import de.sg_o.app.miio.server.OnServerEventListener;
+import de.sg_o.app.miio.server.PendingResponse;
 import de.sg_o.app.miio.server.Server;
 import de.sg_o.app.miio.serverTest.ServerGenericEvents;
 import de.sg_o.app.miio.serverTest.ServerVacuumEvents;
 import de.sg_o.app.miio.vacuum.*;
 import org.joda.time.LocalTime;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Test;
 
@@ -32,6 +37,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.TimeZone;
 
 import static de.sg_o.app.miio.base.CommandExecutionException.Error.*;
@@ -343,6 +351,151 @@ public class DeviceTest {
         assertFalse(d0.discover());
     }
 
+    @Test
+    public void concurrentSendTest() throws Exception {
+        Token tk = new Token("00112233445566778899AABBCCDDEEFF", 16);
+        Server ts0 = new Server(tk, 4326, null, null, null, null, null, 1000, null);
+        ts0.registerMethodHandler(new OnServerEventListener() {
+            @Override
+            public Object onCommandListener(String method, Object params) {
+                return params;
+            }
+        }, "echo");
+        NetworkConditions nc = new NetworkConditions(7);
+        nc.setReordering(0.3, 20);
+        ts0.setNetworkConditions(nc);
+        ts0.start();
+        try {
+            final Device d0 = new Device(InetAddress.getByName("127.0.0.1"), tk, null, 2000, 2);
+            assertTrue(d0.discover());
+            final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+            Thread[] threads = new Thread[8];
+            for (int i = 0; i < threads.length; i++) {
+                final int thread = i;
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 25; j++) {
+                            String value = thread + "-" + j;
+                            try {
+                                JSONArray resp = d0.sendToArray("echo", new JSONArray().put(value));
+                                if (!value.equals(resp.optString(0))) errors.add(value + " != " + resp);
+                            } catch (CommandExecutionException e) {
+                                errors.add(value + ": " + e);
+                            }
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread t : threads) {
+                t.join(20000);
+            }
+            assertEquals(Collections.emptyList(), errors);
+            assertTrue(nc.getReordered() > 0);
+            assertTrue(d0.getClock().getSyncs() >= 1);
+        } finally {
+            ts0.terminate();
+        }
+    }
+
+    @Test
+    public void lostResponseTest() throws Exception {
+        Token tk = new Token("00112233445566778899AABBCCDDEEFF", 16);
+        Server ts0 = new Server(tk, 4326, null, null, null, null, null, 1000, null);
+        ts0.registerMethodHandler(new OnServerEventListener() {
+            @Override
+            public Object onCommandListener(String method, Object params) {
+                return params;
+            }
+        }, "echo");
+        // The response to this command is never sent.
+        ts0.registerAsyncMethodHandler(new OnServerAsyncEventListener() {
+            @Override
+            public boolean onCommandListener(String method, Object params, PendingResponse response) {
+                return true;
+            }
+        }, "hang");
+        NetworkConditions nc = new NetworkConditions(3);
+        nc.setSlowdown("echo", 600);
+        ts0.setNetworkConditions(nc);
+        ts0.start();
+        try {
+            final Device d0 = new Device(InetAddress.getByName("127.0.0.1"), tk, null, 1000, 0);
+            assertTrue(d0.discover());
+            final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+            Thread leader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        d0.sendToArray("hang");
+                        errors.add("hang answered");
+                    } catch (CommandExecutionException e) {
+                        if (e.getError() != TIMEOUT) errors.add("hang: " + e);
+                    }
+                }
+            });
+            leader.start();
+            Thread.sleep(500);
+            // The responses arrive after the receiving thread timed out, so one of the waiting threads has to take over.
+            Thread[] followers = new Thread[3];
+            for (int i = 0; i < followers.length; i++) {
+                final String value = "value-" + i;
+                followers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            JSONArray resp = d0.sendToArray("echo", new JSONArray().put(value));
+                            if (!value.equals(resp.optString(0))) errors.add(value + " != " + resp);
+                        } catch (CommandExecutionException e) {
+                            errors.add(value + ": " + e);
+                        }
+                    }
+                });
+                followers[i].start();
+            }
+            leader.join(5000);
+            for (Thread t : followers) {
+                t.join(5000);
+            }
+            assertEquals(Collections.emptyList(), errors);
+        } finally {
+            ts0.terminate();
+        }
+    }
+
+    @Test
+    public void closeTest() throws Exception {
+        Token tk = new Token("00112233445566778899AABBCCDDEEFF", 16);
+        Server ts0 = new Server(tk, 4326, null, null, null, null, null, 1000, null);
+        ts0.registerMethodHandler(new OnServerEventListener() {
+            @Override
+            public Object onCommandListener(String method, Object params) {
+                return params;
+            }
+        }, "echo");
+        ts0.start();
+        try {
+            Device d0 = new Device(InetAddress.getByName("127.0.0.1"), tk, null, 1000, 0);
+            assertTrue(d0.discover());
+            for (int i = 0; i < 20; i++) {
+                d0.sendWithoutResponse("echo", new JSONArray().put(i));
+                Thread.sleep(5);
+            }
+            // The unread responses must not be mistaken for the reply of a normal command.
+            assertEquals("check", d0.sendToArray("echo", new JSONArray().put("check")).optString(0));
+            d0.close();
+            d0.close();
+            try {
+                d0.sendToArray("echo", new JSONArray().put("closed"));
+                fail();
+            } catch (CommandExecutionException ignored) {
+            }
+        } finally {
+            ts0.terminate();
+        }
+    }
+
     @Test
     public void serialisationTest() throws Exception {
         Server ts0 = new Server(null,12345678,null, null, null,null, null, 10000, null);
@@ -367,6 +520,9 @@ public class DeviceTest {
         ois.close();
         in.close();
 
+        assertTrue(serial0.getClock().isSynced());
+        assertEquals(1, serial0.getClock().getSyncs());
+
         assertEquals(ts0.getMacAddress(), serial0.info().optString("mac"));
 
         ts0.terminate();
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.baseTest;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.base.Device;
+import de.sg_o.app.miio.base.RateLimiter;
+import de.sg_o.app.miio.server.Server;
+import de.sg_o.app.miio.serverTest.ServerGenericEvents;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+
+    @Test
+    public void configTest() {
+        RateLimiter r0 = new RateLimiter(5, 2, 100);
+        assertEquals(5, r0.getRate(), 0.0001);
+        assertEquals(2, r0.getBurst());
+        assertEquals(100, r0.getMaxWait());
+        RateLimiter r1 = new RateLimiter(-1, 0, -5);
+        assertEquals(10, r1.getRate(), 0.0001);
+        assertEquals(1, r1.getBurst());
+        assertEquals(-1, r1.getMaxWait());
+    }
+
+    @Test
+    public void laneTest() {
+        RateLimiter r0 = new RateLimiter(5, 2, 100);
+        assertEquals(RateLimiter.Lane.BACKGROUND, r0.laneOf("get_status"));
+        assertEquals(RateLimiter.Lane.BACKGROUND, r0.laneOf("get_prop"));
+        assertEquals(RateLimiter.Lane.BACKGROUND, r0.laneOf("miIO.get_ota_progress"));
+        assertEquals(RateLimiter.Lane.BACKGROUND, r0.laneOf("miIO.info"));
+        assertEquals(RateLimiter.Lane.INTERACTIVE, r0.laneOf("app_charge"));
+        assertEquals(RateLimiter.Lane.INTERACTIVE, r0.laneOf(null));
+        r0.setLane("get_status", RateLimiter.Lane.INTERACTIVE);
+        assertEquals(RateLimiter.Lane.INTERACTIVE, r0.laneOf("get_status"));
+        r0.setLane("get_status", null);
+        assertEquals(RateLimiter.Lane.BACKGROUND, r0.laneOf("get_status"));
+    }
+
+    @Test
+    public void burstTest() throws Exception {
+        RateLimiter r0 = new RateLimiter(10, 2, 50);
+        r0.acquire(RateLimiter.Lane.INTERACTIVE);
+        r0.acquire(RateLimiter.Lane.BACKGROUND);
+        try {
+            r0.acquire(RateLimiter.Lane.BACKGROUND);
+            fail();
+        } catch (CommandExecutionException e) {
+            assertEquals(CommandExecutionException.Error.TIMEOUT, e.getError());
+        }
+        assertEquals(1, r0.getGranted(RateLimiter.Lane.INTERACTIVE));
+        assertEquals(1, r0.getGranted(RateLimiter.Lane.BACKGROUND));
+        assertEquals(1, r0.getRejected(RateLimiter.Lane.BACKGROUND));
+        long start = System.currentTimeMillis();
+        new RateLimiter(10, 1, -1).acquire("get_status");
+        RateLimiter r1 = new RateLimiter(10, 1, -1);
+        r1.acquire("get_status");
+        r1.acquire("get_status");
+        assertTrue(System.currentTimeMillis() - start >= 80);
+        assertEquals(0, r1.getQueueDepth());
+    }
+
+    @Test
+    public void priorityTest() throws Exception {
+        final RateLimiter r0 = new RateLimiter(5, 1, -1);
+        r0.acquire(RateLimiter.Lane.INTERACTIVE);
+        final List<RateLimiter.Lane> order = Collections.synchronizedList(new ArrayList<RateLimiter.Lane>());
+        Thread background = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r0.acquire(RateLimiter.Lane.BACKGROUND);
+                    order.add(RateLimiter.Lane.BACKGROUND);
+                } catch (CommandExecutionException ignored) {
+                }
+            }
+        });
+        Thread interactive = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r0.acquire(RateLimiter.Lane.INTERACTIVE);
+                    order.add(RateLimiter.Lane.INTERACTIVE);
+                } catch (CommandExecutionException ignored) {
+                }
+            }
+        });
+        background.start();
+        while (r0.getQueueDepth(RateLimiter.Lane.BACKGROUND) < 1) Thread.sleep(1);
+        interactive.start();
+        while (r0.getQueueDepth(RateLimiter.Lane.INTERACTIVE) < 1 && order.isEmpty()) Thread.sleep(1);
+        background.join(2000);
+        interactive.join(2000);
+        assertEquals(2, order.size());
+        assertEquals(RateLimiter.Lane.INTERACTIVE, order.get(0));
+        assertEquals(RateLimiter.Lane.BACKGROUND, order.get(1));
+        assertTrue(r0.getAverageWait(RateLimiter.Lane.BACKGROUND) > 0);
+    }
+
+    @Test
+    public void deviceTest() throws Exception {
+        Server ts0 = new Server(null,12345678,null, null, null,null, null, 10000, null);
+        ServerGenericEvents ev = new ServerGenericEvents();
+        ts0.registerOnServerEventListener(ev);
+        ts0.start();
+
+        Device d0 = new Device(InetAddress.getByName("127.0.0.1"), ts0.getTk(), null, 0, 2);
+        RateLimiter r0 = new RateLimiter(100, 5, 1000);
+        assertNull(d0.getRateLimiter());
+        d0.setRateLimiter(r0);
+        assertEquals(r0, d0.getRateLimiter());
+        assertEquals(ts0.getModel(), d0.model());
+        assertTrue(d0.configureRouter("ABC", "123"));
+        assertEquals(1, r0.getGranted(RateLimiter.Lane.BACKGROUND));
+        assertEquals(1, r0.getGranted(RateLimiter.Lane.INTERACTIVE));
+        ts0.terminate();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sg_o.app.miio.baseTest;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.base.messages.Response;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ResponseTest {
+    private Token tk = new Token("000102030405060708090A0B0C0D0E0F", 16);
+    private Response base = new Response(tk, 0x01234567, 0x5b00bfac, 7, new JSONArray());
+
+    private Response read(String payload) throws CommandExecutionException {
+        return new Response(base.create(payload), tk);
+    }
+
+    @Test
+    public void okTest() throws Exception {
+        Response r0 = read("{\"result\":[\"OK\"],\"id\":7}");
+        assertEquals(7, r0.getPayloadID());
+        assertTrue(r0.hasResult());
+        assertTrue(r0.isArray());
+        assertTrue(r0.isOk());
+        assertFalse(r0.isUnknownMethod());
+        assertFalse(r0.isHello());
+        assertEquals("[\"OK\"]", r0.getRawResult());
+        assertEquals("OK", ((JSONArray) r0.getParams()).getString(0));
+
+        Response r1 = read("{ \"id\" : 8 , \"result\" : [ \"\\u006fk\" ] }");
+        assertEquals(8, r1.getPayloadID());
+        assertTrue(r1.isOk());
+        assertFalse(read("{\"result\":[\"error\"],\"id\":7}").isOk());
+        assertFalse(read("{\"result\":[0],\"id\":7}").isOk());
+        assertFalse(read("{\"result\":\"ok\",\"id\":7}").isOk());
+    }
+
+    @Test
+    public void resultTypesTest() throws Exception {
+        Response r0 = read("{\"result\":\"unknown_method\",\"id\":7}");
+        assertTrue(r0.isUnknownMethod());
+        assertFalse(r0.isArray());
+        assertEquals("unknown_method", r0.getParams());
+
+        Response r1 = read("{\"result\":{\"model\":\"rockrobo.vacuum.v1\",\"ap\":{\"rssi\":-40}},\"id\":7}");
+        assertEquals(-40, ((JSONObject) r1.getParams()).getJSONObject("ap").getInt("rssi"));
+        assertFalse(r1.isUnknownMethod());
+
+        assertEquals("42", read("{\"result\":42,\"id\":7}").getParams());
+        assertEquals("true", read("{\"result\":true,\"id\":7}").getParams());
+        assertEquals("a\"b\u00e9", read("{\"result\":\"a\\\"b\\u00e9\",\"id\":7}").getParams());
+        assertEquals("\u6771\u4eac", read("{\"result\":\"\u6771\u4eac\",\"id\":7}").getParams());
+        assertEquals("{\"id\":1}", read("{\"id\":7,\"skip\":{\"result\":[1]},\"result\":{\"id\":1}}").getRawResult());
+
+        Response r2 = new Response(tk, 0x01234567, 0x5b00bfac);
+        assertFalse(r2.hasResult());
+        assertTrue(r2.isHello());
+        assertNull(r2.getParams());
+        assertNull(r2.getRawResult());
+    }
+
+    @Test
+    public void errorTest() {
+        try {
+            read("{\"error\":{\"code\":-5001,\"message\":\"invalid arg\"},\"id\":7}");
+            fail();
+        } catch (CommandExecutionException e) {
+            assertEquals(CommandExecutionException.Error.INVALID_RESPONSE, e.getError());
+            assertTrue(e.toString().contains("-5001"));
+        }
+        try {
+            read("{\"id\":7}");
+            fail();
+        } catch (CommandExecutionException e) {
+            assertEquals(CommandExecutionException.Error.INVALID_RESPONSE, e.getError());
+        }
+        try {
+            read("{\"result\":null,\"id\":7}");
+            fail();
+        } catch (CommandExecutionException e) {
+            assertEquals(CommandExecutionException.Error.INVALID_RESPONSE, e.getError());
+        }
+    }
+}
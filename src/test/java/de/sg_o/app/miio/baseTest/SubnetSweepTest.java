@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.baseTest;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.base.SubnetSweep;
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.server.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SubnetSweepTest {
+    private Server ts0;
+    private Server ts1;
+
+    @Before
+    public void setUp() throws Exception {
+        Token tk = new Token("00112233445566778899AABBCCDDEEFF", 16);
+        ts0 = new Server(tk, 4329, null, null, null, null, null, 1000, null, new InetSocketAddress[]{new InetSocketAddress("127.0.0.2", 54321)});
+        ts1 = new Server(tk, 4330, null, null, null, null, null, 1000, null, new InetSocketAddress[]{new InetSocketAddress("127.0.0.5", 54321)});
+        ts0.start();
+        ts1.start();
+    }
+
+    @After
+    public void tearDown() {
+        ts0.terminate();
+        ts1.terminate();
+    }
+
+    @Test
+    public void addressTest() throws Exception {
+        List<InetAddress> addresses = new SubnetSweep("10.0.1.77/22").getAddresses();
+        assertEquals(1022, addresses.size());
+        assertEquals(InetAddress.getByName("10.0.0.1"), addresses.get(0));
+        assertEquals(InetAddress.getByName("10.0.3.254"), addresses.get(1021));
+        assertEquals(2, new SubnetSweep(InetAddress.getByName("10.0.0.1"), 31).getAddresses().size());
+        assertEquals(InetAddress.getByName("10.0.0.9"), new SubnetSweep("10.0.0.9").getAddresses().get(0));
+
+        String[] invalid = {null, "10.0.0.0/8", "10.0.0.0/33", "10.0.0.0/x", "::1/120"};
+        for (String cidr : invalid) {
+            try {
+                new SubnetSweep(cidr);
+                fail(cidr);
+            } catch (CommandExecutionException e) {
+                assertEquals(CommandExecutionException.Error.INVALID_PARAMETERS, e.getError());
+            }
+        }
+    }
+
+    @Test
+    public void sweepTest() throws Exception {
+        SubnetSweep sweep = new SubnetSweep("127.0.0.0/29");
+        sweep.setTimeout(1000);
+        sweep.setPasses(2);
+        List<SubnetSweep.Result> found = sweep.sweep();
+        assertEquals(2, found.size());
+        SubnetSweep.Result r0 = found.get(0).getDeviceID() == 4329 ? found.get(0) : found.get(1);
+        SubnetSweep.Result r1 = found.get(0).getDeviceID() == 4329 ? found.get(1) : found.get(0);
+        assertEquals(InetAddress.getByName("127.0.0.2"), r0.getAddress());
+        assertEquals(4329, r0.getDeviceID());
+        assertEquals(InetAddress.getByName("127.0.0.5"), r1.getAddress());
+        assertEquals(4330, r1.getDeviceID());
+        assertTrue(Math.abs(System.currentTimeMillis() / 1000L - r0.getTimeStamp()) < 5);
+        assertTrue(r0.isUnprovisioned());
+        // The second pass only repeats the hello to the four silent addresses.
+        assertEquals(10, sweep.getSent());
+    }
+
+    @Test
+    public void rateTest() throws Exception {
+        SubnetSweep sweep = new SubnetSweep("127.0.0.0/22");
+        sweep.setRate(4000);
+        sweep.setTimeout(200);
+        long start = System.nanoTime();
+        List<SubnetSweep.Result> found = sweep.sweep();
+        long duration = System.nanoTime() - start;
+        assertEquals(1022, sweep.getSent());
+        assertEquals(2, found.size());
+        assertTrue(duration >= 200000000L);
+        assertTrue(duration < 2000000000L);
+    }
+}
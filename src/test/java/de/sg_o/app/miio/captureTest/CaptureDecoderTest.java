@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.captureTest;
+
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.base.messages.Command;
+import de.sg_o.app.miio.base.messages.Response;
+import de.sg_o.app.miio.capture.CaptureDecoder;
+import de.sg_o.app.miio.capture.CaptureWriter;
+import de.sg_o.app.miio.capture.CapturedPacket;
+import de.sg_o.app.miio.capture.DecodeListener;
+import de.sg_o.app.miio.capture.DecodedPacket;
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class CaptureDecoderTest {
+    private static final int PACKETS = 3000;
+
+    private Token tk0;
+    private Token tk1;
+    private File file;
+    private ForkJoinPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        tk0 = new Token("00112233445566778899AABBCCDDEEFF", 16);
+        tk1 = new Token("FFEEDDCCBBAA99887766554433221100", 16);
+        file = File.createTempFile("miio", ".cap");
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private void write() throws IOException {
+        InetSocketAddress remote = new InetSocketAddress("127.0.0.1", 54321);
+        try (CaptureWriter writer = new CaptureWriter(file)) {
+            writer.onPacket(true, remote, new Command().create());
+            for (int i = 0; i < PACKETS; i++) {
+                Token tk = (i % 2 == 0) ? tk0 : tk1;
+                int deviceID = (i % 2 == 0) ? 100 : 101;
+                if (i % 3 == 0) {
+                    writer.onPacket(true, remote, new Command(tk, deviceID, i, i, "set_power", new JSONArray().put(i)).create());
+                } else {
+                    writer.onPacket(false, remote, new Response(tk, deviceID, i, i, new JSONArray().put("ok")).create());
+                }
+            }
+            writer.onPacket(false, remote, new Command(tk0, 102, 1, 1, "get_prop", null).create());
+            byte[] forged = new Command(tk0, 100, 1, 1, "get_prop", null).create();
+            forged[forged.length - 1] ^= 1;
+            writer.onPacket(false, remote, forged);
+        }
+    }
+
+    @Test
+    public void decodeTest() throws Exception {
+        write();
+        CaptureDecoder decoder = new CaptureDecoder(pool, 0);
+        decoder.addToken(100, tk0);
+        decoder.addToken(101, tk1);
+        final List<DecodedPacket> decoded = new ArrayList<>();
+        long count = decoder.decode(file, new DecodeListener() {
+            @Override
+            public void onPacket(DecodedPacket packet) {
+                decoded.add(packet);
+            }
+        });
+        assertEquals(PACKETS + 3, count);
+        assertEquals(PACKETS + 3, decoded.size());
+
+        assertEquals(DecodedPacket.Status.HELLO, decoded.get(0).getStatus());
+        long last = -1;
+        for (int i = 0; i < PACKETS; i++) {
+            DecodedPacket p = decoded.get(i + 1);
+            assertEquals(DecodedPacket.Status.OK, p.getStatus());
+            assertEquals(i, p.getPayloadID());
+            assertEquals(i, p.getTimeStamp());
+            assertEquals((i % 2 == 0) ? 100 : 101, p.getDeviceID());
+            assertTrue(p.getTime() >= last);
+            last = p.getTime();
+            if (i % 3 == 0) {
+                assertTrue(p.isOutgoing());
+                assertTrue(p.isCommand());
+                assertEquals("set_power", p.getMethod());
+                assertEquals(i, ((JSONArray) p.getParams()).getInt(0));
+            } else {
+                assertFalse(p.isOutgoing());
+                assertFalse(p.isCommand());
+                assertEquals("ok", ((JSONArray) p.getResult()).getString(0));
+                assertNull(p.getError());
+            }
+        }
+        assertEquals(DecodedPacket.Status.UNKNOWN_DEVICE, decoded.get(PACKETS + 1).getStatus());
+        assertEquals(102, decoded.get(PACKETS + 1).getDeviceID());
+        assertEquals(DecodedPacket.Status.INVALID, decoded.get(PACKETS + 2).getStatus());
+        assertNull(decoded.get(PACKETS + 2).getPayload());
+    }
+
+    @Test
+    public void singlePacketTest() throws Exception {
+        CaptureDecoder decoder = new CaptureDecoder(pool);
+        decoder.addToken(100, tk0);
+        byte[] data = new Command(tk0, 100, 5, 7, "miIO.info", null).create();
+        CapturedPacket packet = new CapturedPacket(0, true, null, data);
+        DecodedPacket p = decoder.decode(packet);
+        assertEquals(DecodedPacket.Status.OK, p.getStatus());
+        assertEquals("miIO.info", p.getMethod());
+        assertEquals(7, p.getPayloadID());
+        assertArrayEquals(new Command(tk0, 100, 5, 7, "miIO.info", null).create(), data);
+
+        decoder.addToken(100, null);
+        assertEquals(DecodedPacket.Status.UNKNOWN_DEVICE, decoder.decode(packet).getStatus());
+        assertEquals(DecodedPacket.Status.INVALID, decoder.decode(new CapturedPacket(0, true, null, new byte[3])).getStatus());
+
+        try {
+            decoder.decode(file, null);
+            fail();
+        } catch (IOException ignored) {
+        }
+    }
+}
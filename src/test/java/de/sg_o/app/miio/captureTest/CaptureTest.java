@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.captureTest;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.base.Device;
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.base.messages.Command;
+import de.sg_o.app.miio.capture.CaptureReader;
+import de.sg_o.app.miio.capture.CaptureWriter;
+import de.sg_o.app.miio.capture.CapturedPacket;
+import de.sg_o.app.miio.capture.Replayer;
+import de.sg_o.app.miio.server.Server;
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CaptureTest {
+    private Token tk;
+    private Server ts0;
+
+    @Before
+    public void setUp() throws Exception {
+        tk = new Token("00112233445566778899AABBCCDDEEFF", 16);
+        ts0 = new Server(tk, 4328, null, null, null, null, null, 1000, null);
+        ts0.start();
+    }
+
+    @After
+    public void tearDown() {
+        ts0.terminate();
+    }
+
+    private static List<CapturedPacket> read(byte[] capture) throws IOException {
+        List<CapturedPacket> packets = new ArrayList<>();
+        try (CaptureReader reader = new CaptureReader(new ByteArrayInputStream(capture))) {
+            CapturedPacket p;
+            while ((p = reader.next()) != null) {
+                packets.add(p);
+            }
+        }
+        return packets;
+    }
+
+    @Test
+    public void recordTest() throws Exception {
+        ByteArrayOutputStream deviceCapture = new ByteArrayOutputStream();
+        ByteArrayOutputStream serverCapture = new ByteArrayOutputStream();
+        CaptureWriter deviceWriter = new CaptureWriter(deviceCapture);
+        CaptureWriter serverWriter = new CaptureWriter(serverCapture);
+        ts0.setPacketObserver(serverWriter);
+        assertSame(serverWriter, ts0.getPacketObserver());
+
+        Device d0 = new Device(InetAddress.getByName("127.0.0.1"), tk, null, 1000, 0);
+        d0.setPacketObserver(deviceWriter);
+        assertTrue(d0.discover());
+        assertEquals("miio.generic", d0.model());
+        try {
+            d0.send("get_status", new JSONArray().put("state"));
+            fail();
+        } catch (CommandExecutionException ignored) {
+        }
+        d0.sendWithoutResponse("app_rc_move", null);
+        Thread.sleep(100);
+        ts0.setPacketObserver(null);
+        deviceWriter.close();
+        serverWriter.close();
+
+        List<CapturedPacket> device = read(deviceCapture.toByteArray());
+        assertEquals(deviceWriter.getPackets(), device.size());
+        // Hello, miIO.info, get_status and the move: four requests, but the response to the move is never read.
+        assertEquals(7, device.size());
+        long time = 0;
+        int outgoing = 0;
+        for (CapturedPacket p : device) {
+            assertTrue(p.getTime() >= time);
+            time = p.getTime();
+            if (p.isOutgoing()) {
+                outgoing++;
+                assertEquals(54321, p.getRemote().getPort());
+            }
+        }
+        assertEquals(4, outgoing);
+
+        List<CapturedPacket> server = read(serverCapture.toByteArray());
+        assertEquals(8, server.size());
+        List<String> methods = new ArrayList<>();
+        for (CapturedPacket p : server) {
+            if (p.isOutgoing()) continue;
+            Command c = new Command(p.getData(), tk);
+            assertTrue(c.isValid());
+            if (!c.isHello()) methods.add(c.getMethod());
+        }
+        assertEquals("[miIO.info, get_status, app_rc_move]", methods.toString());
+
+        // The requests recorded by the device are answered by the server again.
+        Replayer r0 = new Replayer(device);
+        Replayer.Result result = r0.replay(new InetSocketAddress("127.0.0.1", 54321), true, 0, 1000);
+        assertEquals(4, result.getSent());
+        assertEquals(4, result.getReceived());
+        assertTrue(result.getThroughput() > 0);
+    }
+
+    @Test
+    public void fileTest() throws Exception {
+        File file = File.createTempFile("miio", ".cap");
+        file.deleteOnExit();
+        CaptureWriter w0 = new CaptureWriter(file);
+        byte[] req = new Command(tk, 4328, 100, 1, "miIO.info", null).create();
+        InetSocketAddress remote = new InetSocketAddress("127.0.0.1", 54321);
+        w0.onPacket(true, remote, req);
+        Thread.sleep(120);
+        w0.onPacket(true, remote, req);
+        w0.close();
+        w0.onPacket(true, remote, req);
+        assertEquals(2, w0.getPackets());
+
+        List<CapturedPacket> packets = CaptureReader.readAll(file);
+        assertEquals(2, packets.size());
+        assertArrayEquals(req, packets.get(0).getData());
+        assertEquals(remote, packets.get(1).getRemote());
+        long gap = packets.get(1).getTime() - packets.get(0).getTime();
+        assertTrue(gap >= 100000);
+
+        // At the original speed the replay keeps the gap between the packets.
+        Replayer.Result result = new Replayer(packets).replay(remote, true, 1, 1000);
+        assertEquals(2, result.getSent());
+        assertEquals(2, result.getReceived());
+        assertTrue(result.getDuration() >= 100);
+
+        try {
+            new CaptureReader(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+            fail();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.fleetTest;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.base.Device;
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.base.messages.Response;
+import de.sg_o.app.miio.fleet.FleetScheduler;
+import de.sg_o.app.miio.fleet.PollListener;
+import de.sg_o.app.miio.server.Server;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FleetSchedulerTest {
+    private Server ts0;
+    private Token tk;
+    private FleetScheduler fs0;
+    private final Map<Device, AtomicInteger> responses = new ConcurrentHashMap<>();
+    private final Map<Device, AtomicInteger> failures = new ConcurrentHashMap<>();
+
+    private final PollListener listener = new PollListener() {
+        @Override
+        public void onResponse(FleetScheduler.Poll poll, Response response) {
+            assertEquals("miio.generic", ((JSONObject) response.getParams()).getString("model"));
+            count(responses, poll.getDevice());
+        }
+
+        @Override
+        public void onFailure(FleetScheduler.Poll poll, CommandExecutionException e) {
+            count(failures, poll.getDevice());
+        }
+    };
+
+    private static void count(Map<Device, AtomicInteger> map, Device device) {
+        AtomicInteger c = map.get(device);
+        if (c == null) {
+            map.put(device, new AtomicInteger());
+            c = map.get(device);
+        }
+        // The scheduler of these tests has a single worker, so the counters are never created concurrently.
+        c.incrementAndGet();
+    }
+
+    private static int get(Map<Device, AtomicInteger> map, Device device) {
+        AtomicInteger c = map.get(device);
+        return c == null ? 0 : c.get();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        tk = new Token("00112233445566778899AABBCCDDEEFF", 16);
+        ts0 = new Server(tk, 4325, null, null, null, null, null, 1000, null);
+        ts0.start();
+        fs0 = new FleetScheduler(1, 16);
+    }
+
+    @After
+    public void tearDown() {
+        fs0.close();
+        ts0.terminate();
+    }
+
+    @Test
+    public void settingsTest() {
+        fs0.setJitter(2);
+        assertEquals(1.0, fs0.getJitter(), 0.0);
+        fs0.setJitter(-1);
+        assertEquals(0.0, fs0.getJitter(), 0.0);
+        fs0.setMaxBackoff(-5);
+        assertEquals(0, fs0.getMaxBackoff());
+        assertNull(fs0.schedule(null, "miIO.info", null, 100, null));
+        fs0.close();
+        assertTrue(fs0.isClosed());
+        assertNull(fs0.schedule(new Device(null, tk, null, 100, 0), "miIO.info", null, 100, null));
+    }
+
+    @Test
+    public void pollTest() throws Exception {
+        fs0.setJitter(0.2);
+        Device[] devices = new Device[3];
+        FleetScheduler.Poll[] polls = new FleetScheduler.Poll[devices.length];
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = new Device(InetAddress.getByName("127.0.0.1"), tk, null, 500, 1);
+            polls[i] = fs0.schedule(devices[i], "miIO.info", null, 50, listener);
+            assertEquals(50, polls[i].getInterval());
+        }
+        Thread.sleep(700);
+        for (Device d : devices) {
+            assertTrue(get(responses, d) >= 4);
+            assertEquals(0, get(failures, d));
+        }
+        polls[0].cancel();
+        assertTrue(polls[0].isCancelled());
+        Thread.sleep(100);
+        int before = get(responses, devices[0]);
+        Thread.sleep(300);
+        assertEquals(before, get(responses, devices[0]));
+        assertTrue(get(responses, devices[1]) > before);
+        assertEquals(0, fs0.getFailed());
+        assertEquals(0, fs0.getSkipped());
+    }
+
+    @Test
+    public void backoffTest() throws Exception {
+        fs0.setJitter(0);
+        fs0.setMaxBackoff(400);
+        Device bad = new Device(InetAddress.getByName("127.0.0.1"), new Token("FFEEDDCCBBAA99887766554433221100", 16), null, 20, 0);
+        FleetScheduler.Poll poll = fs0.schedule(bad, "miIO.info", null, 20, listener);
+        Thread.sleep(1200);
+        poll.cancel();
+        int failed = get(failures, bad);
+        // Without the backoff the device would have been polled about 30 times.
+        assertTrue(failed >= 3);
+        assertTrue(failed <= 8);
+        assertEquals(failed, poll.getConsecutiveFailures());
+        assertEquals(0, get(responses, bad));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.fleetTest;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.base.Device;
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.fleet.FleetScheduler;
+import de.sg_o.app.miio.fleet.Firmware;
+import de.sg_o.app.miio.fleet.OtaRollout;
+import de.sg_o.app.miio.fleet.RolloutListener;
+import de.sg_o.app.miio.server.Server;
+import de.sg_o.app.miio.serverTest.ServerGenericEvents;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class OtaRolloutTest {
+    private static final int DEVICES = 3;
+
+    private final Server[] servers = new Server[DEVICES];
+    private final ServerGenericEvents[] events = new ServerGenericEvents[DEVICES];
+    private final List<Device> devices = new ArrayList<>();
+    private FleetScheduler fs0;
+    private Firmware fw;
+    private Thread progress;
+    private volatile boolean running = true;
+    private volatile boolean failCanary;
+
+    @Before
+    public void setUp() throws Exception {
+        Token tk = new Token("00112233445566778899AABBCCDDEEFF", 16);
+        for (int i = 0; i < DEVICES; i++) {
+            String ip = "127.0.0." + (i + 2);
+            events[i] = new ServerGenericEvents();
+            servers[i] = new Server(tk, 4331 + i, null, "1.0.0", null, null, null, 1000, null, new InetSocketAddress[]{new InetSocketAddress(ip, 54321)});
+            servers[i].registerOnServerEventListener(events[i]);
+            servers[i].start();
+            devices.add(new Device(InetAddress.getByName(ip), tk, null, 500, 1));
+        }
+        fs0 = new FleetScheduler(2, 16, 5, 64);
+        fs0.setJitter(0);
+        fw = new Firmware("http://127.0.0.1/fw.bin", "0123456789abcdef0123456789abcdef", null);
+        // Simulates the devices installing the firmware in steps of 25%.
+        progress = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    for (int i = 0; i < DEVICES; i++) {
+                        ServerGenericEvents ev = events[i];
+                        if (ev.getUpdateStatus() != ServerGenericEvents.UpdateStatus.DOWNLOADING) continue;
+                        if (i == 0 && failCanary) {
+                            ev.setUpdateProgress(10);
+                            ev.setUpdateStatus(ServerGenericEvents.UpdateStatus.FAILED);
+                            continue;
+                        }
+                        ev.setUpdateProgress(Math.min(100, ev.getUpdateProgress() + 25));
+                    }
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        progress.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        running = false;
+        progress.join();
+        fs0.close();
+        for (Server s : servers) {
+            s.terminate();
+        }
+    }
+
+    @Test
+    public void rolloutTest() throws Exception {
+        OtaRollout rollout = new OtaRollout(fs0, devices, fw);
+        rollout.setConcurrency(2);
+        rollout.setPollInterval(20);
+        final AtomicBoolean canaryFirst = new AtomicBoolean();
+        final AtomicInteger finished = new AtomicInteger();
+        rollout.setListener(new RolloutListener() {
+            @Override
+            public void onProgress(OtaRollout r, OtaRollout.Target target) {
+                if (target.isCanary() && target.getStatus() == OtaRollout.Status.SUCCEEDED) {
+                    canaryFirst.set(events[1].getUpdateStatus() == ServerGenericEvents.UpdateStatus.IDLE && events[2].getUpdateStatus() == ServerGenericEvents.UpdateStatus.IDLE);
+                }
+            }
+
+            @Override
+            public void onFinished(OtaRollout r) {
+                finished.incrementAndGet();
+            }
+        });
+        assertEquals(OtaRollout.State.IDLE, rollout.getState());
+        assertEquals(0.0, rollout.getProgress(), 0.0);
+        assertTrue(rollout.start());
+        assertFalse(rollout.start());
+        assertTrue(rollout.await(10000));
+        assertEquals(OtaRollout.State.COMPLETED, rollout.getState());
+        assertEquals(DEVICES, rollout.getSucceeded());
+        assertEquals(0, rollout.getFailed());
+        assertEquals(100.0, rollout.getProgress(), 0.0);
+        assertTrue(canaryFirst.get());
+        // The listener is informed after the waiting threads have been woken up.
+        for (int i = 0; i < 100 && finished.get() < 1; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, finished.get());
+        for (OtaRollout.Target t : rollout.getTargets()) {
+            assertEquals(OtaRollout.Status.SUCCEEDED, t.getStatus());
+            assertEquals(100, t.getProgress());
+        }
+        assertTrue(rollout.getTargets().get(0).isCanary());
+        assertFalse(rollout.getTargets().get(1).isCanary());
+    }
+
+    @Test
+    public void haltTest() throws Exception {
+        failCanary = true;
+        OtaRollout rollout = new OtaRollout(fs0, devices, fw);
+        rollout.setPollInterval(10);
+        rollout.start();
+        assertTrue(rollout.await(10000));
+        assertEquals(OtaRollout.State.HALTED, rollout.getState());
+        assertEquals(1, rollout.getFailed());
+        assertEquals(2, rollout.getSkipped());
+        OtaRollout.Target canary = rollout.getTargets().get(0);
+        assertEquals(OtaRollout.Status.FAILED, canary.getStatus());
+        assertEquals(10, canary.getProgress());
+        assertNotNull(canary.getError());
+        assertEquals(ServerGenericEvents.UpdateStatus.IDLE, events[1].getUpdateStatus());
+        assertEquals(OtaRollout.Status.SKIPPED, rollout.getTargets().get(2).getStatus());
+    }
+
+    @Test
+    public void sampleTest() throws Exception {
+        failCanary = true;
+        OtaRollout rollout = new OtaRollout(fs0, devices, fw);
+        rollout.setPollInterval(10);
+        rollout.setCanaries(0);
+        rollout.start();
+        assertTrue(rollout.await(10000));
+        // One failure out of three updates is below the minimum sample size, so the rollout is not halted.
+        assertEquals(OtaRollout.State.COMPLETED, rollout.getState());
+        assertEquals(1, rollout.getFailed());
+        assertEquals(DEVICES - 1, rollout.getSucceeded());
+        assertEquals(0, rollout.getSkipped());
+    }
+
+    @Test
+    public void versionTest() throws Exception {
+        OtaRollout rollout = new OtaRollout(fs0, devices.subList(0, 1), new Firmware("http://127.0.0.1/fw.bin", "0123456789abcdef0123456789abcdef", "2.0.0"));
+        rollout.setPollInterval(10);
+        rollout.setCanaries(0);
+        assertEquals(5, rollout.getMinSampleSize());
+        rollout.setMinSampleSize(0);
+        assertEquals(1, rollout.getMinSampleSize());
+        rollout.start();
+        assertTrue(rollout.await(10000));
+        assertEquals(OtaRollout.State.HALTED, rollout.getState());
+        assertEquals(CommandExecutionException.Error.INVALID_RESPONSE, rollout.getTargets().get(0).getError().getError());
+
+        try {
+            new Firmware("http://127.0.0.1/fw.bin", "0123", null);
+            fail();
+        } catch (CommandExecutionException e) {
+            assertEquals(CommandExecutionException.Error.INVALID_PARAMETERS, e.getError());
+        }
+        OtaRollout empty = new OtaRollout(fs0, null, fw);
+        assertTrue(empty.start());
+        assertTrue(empty.isFinished());
+        assertEquals(OtaRollout.State.COMPLETED, empty.getState());
+    }
+}
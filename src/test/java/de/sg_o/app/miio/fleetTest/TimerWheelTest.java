@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.fleetTest;
+
+import de.sg_o.app.miio.fleet.TimerWheel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+    private TimerWheel wheel;
+
+    @Before
+    public void setUp() {
+        wheel = new TimerWheel(5, 3, null);
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void scheduleTest() throws Exception {
+        assertEquals(5, wheel.getTick());
+        assertEquals(4, wheel.getWheelSize());
+        assertNull(wheel.schedule(null, 10));
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(3);
+        final long start = System.nanoTime();
+        final long[] elapsed = new long[1];
+        int[] delays = {120, 0, 45};
+        for (final int delay : delays) {
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(delay);
+                    if (delay == 120) elapsed[0] = System.nanoTime() - start;
+                    done.countDown();
+                }
+            }, delay);
+        }
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(0, (int) order.get(0));
+        assertEquals(45, (int) order.get(1));
+        assertEquals(120, (int) order.get(2));
+        assertTrue(elapsed[0] >= TimeUnit.MILLISECONDS.toNanos(120));
+    }
+
+    @Test
+    public void cancelTest() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        };
+        TimerWheel.Timeout t0 = wheel.schedule(task, 50);
+        assertTrue(t0.cancel());
+        assertTrue(t0.isCancelled());
+        assertFalse(ran.await(150, TimeUnit.MILLISECONDS));
+        assertFalse(t0.isExpired());
+
+        TimerWheel.Timeout t1 = wheel.schedule(task, 10);
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        Thread.sleep(10);
+        assertTrue(t1.isExpired());
+        assertFalse(t1.cancel());
+
+        wheel.stop();
+        assertTrue(wheel.isStopped());
+        assertNull(wheel.schedule(task, 10));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.serverTest;
+
+import de.sg_o.app.miio.server.ContentServer;
+import de.sg_o.app.miio.util.ByteArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ContentServerTest {
+    private ContentServer cs0;
+    private File file;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        data = new byte[3 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(data);
+        file = File.createTempFile("miio firmware", ".bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        cs0 = new ContentServer(new InetSocketAddress("127.0.0.1", 0));
+        cs0.start();
+    }
+
+    @After
+    public void tearDown() {
+        cs0.close();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static HttpURLConnection open(String url, String method, String range) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+        c.setRequestMethod(method);
+        if (range != null) c.setRequestProperty("Range", range);
+        c.setConnectTimeout(2000);
+        c.setReadTimeout(5000);
+        return c;
+    }
+
+    private static byte[] read(HttpURLConnection c) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = c.getInputStream()) {
+            byte[] buf = new byte[65536];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void publishTest() throws Exception {
+        ContentServer.Content content = cs0.publish(file);
+        String md5 = ByteArray.bytesToHex(MessageDigest.getInstance("MD5").digest(data)).toLowerCase();
+        assertEquals(md5, content.getMd5());
+        assertEquals(data.length, content.getLength());
+        assertTrue(content.getUrl().startsWith(cs0.getBaseUrl() + "/" + md5 + "/"));
+        assertTrue(content.getUrl().contains("miio%20firmware"));
+        assertSame(content, cs0.publish(file));
+        assertEquals(1, cs0.getDigestsCalculated());
+
+        HttpURLConnection c = open(content.getUrl(), "GET", null);
+        assertEquals(200, c.getResponseCode());
+        assertEquals("\"" + md5 + "\"", c.getHeaderField("ETag"));
+        assertArrayEquals(data, read(c));
+
+        c = open(content.getUrl(), "HEAD", null);
+        assertEquals(200, c.getResponseCode());
+        assertEquals(data.length, Long.parseLong(c.getHeaderField("Content-Length")));
+
+        assertTrue(cs0.unpublish(content));
+        assertFalse(cs0.unpublish(content));
+        assertEquals(404, open(content.getUrl(), "GET", null).getResponseCode());
+        assertEquals(405, open(cs0.getBaseUrl() + "/", "POST", null).getResponseCode());
+
+        cs0.setHost("192.0.2.1");
+        assertTrue(cs0.publish(file).getUrl().startsWith("http://192.0.2.1:"));
+        assertEquals(1, cs0.getDigestsCalculated());
+    }
+
+    @Test
+    public void rangeTest() throws Exception {
+        ContentServer.Content content = cs0.publish(file);
+        HttpURLConnection c = open(content.getUrl(), "GET", "bytes=100-199");
+        assertEquals(206, c.getResponseCode());
+        assertEquals("bytes 100-199/" + data.length, c.getHeaderField("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(data, 100, 200), read(c));
+
+        c = open(content.getUrl(), "GET", "bytes=-10");
+        assertEquals(206, c.getResponseCode());
+        assertArrayEquals(Arrays.copyOfRange(data, data.length - 10, data.length), read(c));
+
+        c = open(content.getUrl(), "GET", "bytes=" + (data.length - 5) + "-");
+        assertEquals(206, c.getResponseCode());
+        assertArrayEquals(Arrays.copyOfRange(data, data.length - 5, data.length), read(c));
+
+        c = open(content.getUrl(), "GET", "bytes=" + data.length + "-");
+        assertEquals(416, c.getResponseCode());
+        assertEquals("bytes */" + data.length, c.getHeaderField("Content-Range"));
+
+        c = open(content.getUrl(), "GET", "bytes=0-1,5-6");
+        assertEquals(200, c.getResponseCode());
+        assertEquals(data.length, read(c).length);
+    }
+
+    @Test
+    public void concurrentTest() throws Exception {
+        final ContentServer.Content content = cs0.publish(file);
+        final AtomicInteger complete = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (Arrays.equals(data, read(open(content.getUrl(), "GET", null)))) complete.incrementAndGet();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(threads.length, complete.get());
+        assertEquals((long) data.length * threads.length, cs0.getBytesSent());
+        assertEquals(threads.length, cs0.getRequests());
+        for (int i = 0; i < 100 && cs0.getConnections() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, cs0.getConnections());
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.serverTest;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.base.Device;
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.base.messages.Response;
+import de.sg_o.app.miio.server.Gateway;
+import de.sg_o.app.miio.server.NetworkConditions;
+import de.sg_o.app.miio.server.OnServerEventListener;
+import de.sg_o.app.miio.server.Server;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class GatewayTest {
+    private Server ts0;
+    private Gateway gw0;
+    private Token clientToken;
+    private final AtomicInteger statusCalls = new AtomicInteger();
+    private final AtomicInteger startCalls = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        Token tk = new Token("00112233445566778899AABBCCDDEEFF", 16);
+        ts0 = new Server(tk, 4327, "rockrobo.vacuum.v1", null, null, null, null, 1000, null, new InetSocketAddress[]{new InetSocketAddress("127.0.0.1", 54321)});
+        ts0.registerMethodHandler(new OnServerEventListener() {
+            @Override
+            public Object onCommandListener(String method, Object params) {
+                if (method.equals("get_status")) return new JSONArray().put(new JSONObject().put("state", 8).put("call", statusCalls.incrementAndGet()));
+                if (method.equals("get_volume")) return 90;
+                if (method.equals("get_dnd")) return false;
+                if (method.equals("get_name")) return "90";
+                return new JSONArray().put("ok").put(startCalls.incrementAndGet());
+            }
+        }, "get_status", "get_volume", "get_dnd", "get_name", "app_start");
+        NetworkConditions nc = new NetworkConditions(1);
+        nc.setSlowdown("get_status", 300);
+        ts0.setNetworkConditions(nc);
+        assertTrue(ts0.startAsync().get(1, TimeUnit.SECONDS));
+
+        clientToken = new Token("FFEEDDCCBBAA99887766554433221100", 16);
+        Device upstream = new Device(InetAddress.getByName("127.0.0.1"), tk, null, 2000, 1);
+        gw0 = new Gateway(upstream, clientToken, new InetSocketAddress[]{new InetSocketAddress("127.0.0.2", 54321)}, 4);
+        assertTrue(gw0.start().get(1, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        gw0.close();
+        ts0.terminate();
+    }
+
+    private Device client() throws Exception {
+        Device d = new Device(InetAddress.getByName("127.0.0.2"), clientToken, null, 2000, 0);
+        assertTrue(d.discover());
+        assertEquals(4327, d.getDeviceID());
+        return d;
+    }
+
+    @Test
+    public void sharedReadTest() throws Exception {
+        final Device[] clients = new Device[5];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = client();
+        }
+        final CountDownLatch go = new CountDownLatch(1);
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        Thread[] threads = new Thread[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            final Device d = clients[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        results.add(d.sendToArray("get_status").getJSONObject(0).getInt("call"));
+                    } catch (Exception e) {
+                        results.add(e.toString());
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        go.countDown();
+        for (Thread t : threads) {
+            t.join(5000);
+        }
+        assertEquals(Collections.nCopies(clients.length, (Object) 1), results);
+        assertEquals(1, statusCalls.get());
+        assertEquals(1, gw0.getUpstreamCalls());
+        assertEquals(clients.length - 1, gw0.getSharedCalls());
+
+        // A read after the shared one has finished is sent again.
+        assertEquals(2, clients[0].sendToArray("get_status").getJSONObject(0).getInt("call"));
+    }
+
+    @Test
+    public void malformedResponseTest() throws Exception {
+        final AtomicBoolean garbage = new AtomicBoolean(true);
+        Device upstream = new Device(InetAddress.getByName("127.0.0.1"), ts0.getTk(), null, 2000, 1) {
+            @Override
+            public Response send(String method, Object params) throws CommandExecutionException {
+                if (garbage.get()) throw new JSONException("Malformed response");
+                return super.send(method, params);
+            }
+        };
+        assertTrue(upstream.discover());
+        Gateway gw1 = new Gateway(upstream, clientToken, new InetSocketAddress[]{new InetSocketAddress("127.0.0.3", 54321)}, 2);
+        try {
+            assertTrue(gw1.start().get(1, TimeUnit.SECONDS));
+            Device d0 = new Device(InetAddress.getByName("127.0.0.3"), clientToken, null, 1000, 0);
+            assertTrue(d0.discover());
+            try {
+                d0.sendToArray("get_status");
+                fail();
+            } catch (CommandExecutionException ignored) {
+            }
+            // The failed read must not be shared with the next one.
+            garbage.set(false);
+            assertEquals(1, d0.sendToArray("get_status").getJSONObject(0).getInt("call"));
+            assertEquals(2, gw1.getUpstreamCalls());
+            assertEquals(0, gw1.getSharedCalls());
+        } finally {
+            gw1.close();
+        }
+    }
+
+    @Test
+    public void forwardTest() throws Exception {
+        Device d0 = client();
+        Device d1 = client();
+        assertTrue(gw0.isShared("miIO.info"));
+        assertFalse(gw0.isShared("app_start"));
+        gw0.addSharedMethods("app_start");
+        assertTrue(gw0.isShared("app_start"));
+
+        assertEquals("rockrobo.vacuum.v1", d0.model());
+        assertEquals(1, d0.sendToArray("app_start").getInt(1));
+        assertEquals(2, d1.sendToArray("app_start").getInt(1));
+        assertEquals(2, startCalls.get());
+        // Scalar results keep their type.
+        assertEquals("90", d0.send("get_volume", null).getRawResult());
+        assertEquals("false", d0.send("get_dnd", null).getRawResult());
+        assertEquals("\"90\"", d0.send("get_name", null).getRawResult());
+        try {
+            d1.sendToArray("app_unknown");
+            fail();
+        } catch (CommandExecutionException e) {
+            assertEquals(CommandExecutionException.Error.UNKNOWN_METHOD, e.getError());
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.serverTest;
+
+import de.sg_o.app.miio.base.Device;
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.base.messages.Command;
+import de.sg_o.app.miio.base.messages.Response;
+import de.sg_o.app.miio.server.NetworkConditions;
+import de.sg_o.app.miio.server.OnServerAsyncEventListener;
+import de.sg_o.app.miio.server.OnServerEventListener;
+import de.sg_o.app.miio.server.PendingResponse;
+import de.sg_o.app.miio.server.Server;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ServerTest {
+    private Server ts0;
+    private Token tk;
+    private DatagramSocket client;
+    private int executed;
+
+    @Before
+    public void setUp() throws Exception {
+        tk = new Token("00112233445566778899AABBCCDDEEFF", 16);
+        ts0 = new Server(tk, 4323, null, null, null, null, null, 1000, null);
+        ts0.registerOnServerEventListener(new OnServerEventListener() {
+            @Override
+            public Object onCommandListener(String method, Object params) {
+                if (!method.equals("app_start")) return null;
+                executed++;
+                return new JSONArray().put(executed);
+            }
+        });
+        ts0.start();
+        client = new DatagramSocket();
+        client.setSoTimeout(2000);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        ts0.terminate();
+    }
+
+    private byte[] request(byte[] msg) throws Exception {
+        return request(msg, 54321);
+    }
+
+    private byte[] request(byte[] msg, int port) throws Exception {
+        client.send(new DatagramPacket(msg, msg.length, InetAddress.getByName("127.0.0.1"), port));
+        return receive();
+    }
+
+    private byte[] receive() throws Exception {
+        byte[] buf = new byte[65507];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        client.receive(packet);
+        return Arrays.copyOf(buf, packet.getLength());
+    }
+
+    @Test
+    public void responseCacheTest() throws Exception {
+        assertEquals(16, ts0.getResponseCacheSize());
+        byte[] msg = new Command(tk, 4323, 100, 1, "app_start", null).create();
+        byte[] resp0 = request(msg);
+        byte[] resp1 = request(msg);
+        assertArrayEquals(resp0, resp1);
+        assertEquals(1, executed);
+        assertEquals(1, ts0.getResponseCacheHits());
+        assertEquals(1, ((JSONArray) new Response(resp1, tk).getParams()).getInt(0));
+
+        byte[] resp2 = request(new Command(tk, 4323, 101, 2, "app_start", null).create());
+        assertEquals(2, executed);
+        assertEquals(2, ((JSONArray) new Response(resp2, tk).getParams()).getInt(0));
+
+        ts0.setResponseCacheSize(0);
+        request(msg);
+        request(msg);
+        assertEquals(4, executed);
+        assertEquals(1, ts0.getResponseCacheHits());
+    }
+
+    @Test
+    public void dispatchTest() throws Exception {
+        ts0.registerMethodHandler(new OnServerEventListener() {
+            @Override
+            public Object onCommandListener(String method, Object params) {
+                if (method.equals("get_b")) return null;
+                return new JSONArray().put(method);
+            }
+        }, "get_a", "get_b", null);
+        byte[] resp = request(new Command(tk, 4323, 100, 1, "get_a", null).create());
+        assertEquals("get_a", ((JSONArray) new Response(resp, tk).getParams()).getString(0));
+        resp = request(new Command(tk, 4323, 101, 2, "get_b", null).create());
+        assertEquals("unknown_method", new Response(resp, tk).getParams());
+        resp = request(new Command(tk, 4323, 102, 3, "app_start", null).create());
+        assertEquals(1, ((JSONArray) new Response(resp, tk).getParams()).getInt(0));
+        resp = request(new Command(tk, 4323, 103, 4, "miIO.info", null).create());
+        assertEquals("miio.generic", ((JSONObject) new Response(resp, tk).getParams()).getString("model"));
+        assertTrue(ts0.unregisterMethodHandler("get_a"));
+        assertFalse(ts0.unregisterMethodHandler("get_a"));
+        resp = request(new Command(tk, 4323, 104, 5, "get_a", null).create());
+        assertEquals("unknown_method", new Response(resp, tk).getParams());
+    }
+
+    @Test
+    public void lifecycleTest() throws Exception {
+        assertTrue(ts0.startAsync().get(1, TimeUnit.SECONDS));
+        assertTrue(ts0.isRunning());
+        long start = System.nanoTime();
+        assertTrue(ts0.stopAsync().get(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        assertFalse(ts0.isRunning());
+        ts0.terminate();
+
+        InetSocketAddress[] addresses = {new InetSocketAddress("127.0.0.1", 0), new InetSocketAddress("127.0.0.1", 0)};
+        Server ts1 = new Server(tk, 4324, null, null, null, null, null, 1000, null, addresses);
+        ts1.terminate();
+        assertFalse(ts1.isRunning());
+        assertFalse(ts1.startAsync().get(1, TimeUnit.SECONDS));
+        assertTrue(ts1.getLocalAddresses().isEmpty());
+    }
+
+    @Test
+    public void multipleAddressesTest() throws Exception {
+        InetSocketAddress[] addresses = {new InetSocketAddress("127.0.0.1", 0), new InetSocketAddress("127.0.0.1", 0)};
+        Server ts1 = new Server(tk, 4324, null, null, null, null, null, 1000, null, addresses);
+        List<InetSocketAddress> bound = ts1.getLocalAddresses();
+        assertEquals(2, bound.size());
+        assertTrue(ts1.startAsync().get(1, TimeUnit.SECONDS));
+        try {
+            for (InetSocketAddress address : bound) {
+                byte[] resp = request(new Command(tk, 4324, 100, address.getPort(), "miIO.info", null).create(), address.getPort());
+                Response r = new Response(resp, tk);
+                assertEquals(address.getPort(), r.getPayloadID());
+                assertEquals(4324, r.getDeviceID());
+                assertEquals("miio.generic", ((JSONObject) r.getParams()).getString("model"));
+            }
+        } finally {
+            ts1.terminate();
+        }
+    }
+
+    @Test
+    public void handlerPrecedenceTest() throws Exception {
+        ts0.registerOnServerEventListener(new ServerGenericEvents());
+        ts0.registerAsyncMethodHandler(new OnServerAsyncEventListener() {
+            @Override
+            public boolean onCommandListener(String method, Object params, PendingResponse response) {
+                return response.complete(new JSONArray().put("async"));
+            }
+        }, "miIO.ota");
+        // The generic listener answers this command as well, but the handler is registered explicitly.
+        JSONObject ota = Device.updateParams("127.0.0.1", "6cd9eb1aee36e091974f259ea81621fa");
+        Response r = new Response(request(new Command(tk, 4323, 100, 1, "miIO.ota", ota).create()), tk);
+        assertEquals("async", ((JSONArray) r.getParams()).getString(0));
+
+        // A synchronous handler for the same method replaces the asynchronous one.
+        ts0.registerMethodHandler(new OnServerEventListener() {
+            @Override
+            public Object onCommandListener(String method, Object params) {
+                return new JSONArray().put("sync");
+            }
+        }, "miIO.ota");
+        r = new Response(request(new Command(tk, 4323, 101, 2, "miIO.ota", ota).create()), tk);
+        assertEquals("sync", ((JSONArray) r.getParams()).getString(0));
+    }
+
+    @Test
+    public void asyncTest() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        ts0.registerAsyncMethodHandler(new OnServerAsyncEventListener() {
+            @Override
+            public boolean onCommandListener(String method, Object params, final PendingResponse response) {
+                calls.incrementAndGet();
+                if (method.equals("get_lost")) return response.drop();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(300);
+                        } catch (InterruptedException ignored) {
+                        }
+                        response.complete(new JSONArray().put("ok"));
+                    }
+                }).start();
+                return true;
+            }
+        }, "miIO.ota", "get_lost");
+        byte[] ota = new Command(tk, 4323, 100, 1, "miIO.ota", null).create();
+        client.send(new DatagramPacket(ota, ota.length, InetAddress.getByName("127.0.0.1"), 54321));
+        byte[] resp = request(new Command(tk, 4323, 101, 2, "app_start", null).create());
+        assertEquals(2, new Response(resp, tk).getPayloadID());
+        resp = request(ota);
+        Response r = new Response(resp, tk);
+        assertEquals(1, r.getPayloadID());
+        assertEquals("ok", ((JSONArray) r.getParams()).getString(0));
+        assertEquals(1, calls.get());
+        resp = request(ota);
+        assertEquals(1, new Response(resp, tk).getPayloadID());
+        assertEquals(1, calls.get());
+
+        client.setSoTimeout(300);
+        try {
+            request(new Command(tk, 4323, 102, 3, "get_lost", null).create());
+            fail();
+        } catch (SocketTimeoutException ignored) {
+        }
+        assertEquals(2, calls.get());
+    }
+
+    private String lossPattern(long seed) throws Exception {
+        NetworkConditions nc = new NetworkConditions(seed);
+        nc.setRequestLoss(0.5);
+        ts0.setNetworkConditions(nc);
+        StringBuilder pattern = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            try {
+                byte[] resp = request(new Command(tk, 4323, 200 + i, 100 + i, "get_x", null).create());
+                // A slow response to a earlier request must not be counted for this one.
+                while (new Response(resp, tk).getPayloadID() != 100 + i) {
+                    resp = receive();
+                }
+                pattern.append('1');
+            } catch (SocketTimeoutException e) {
+                pattern.append('0');
+            }
+        }
+        assertEquals(nc.getRequestsLost(), pattern.toString().replace("1", "").length());
+        return pattern.toString();
+    }
+
+    @Test
+    public void networkConditionsTest() throws Exception {
+        NetworkConditions nc = new NetworkConditions(1);
+        nc.setRequestLoss(2);
+        assertEquals(1.0, nc.getRequestLoss(), 0.0);
+        nc.setRequestLoss(-1);
+        assertEquals(0.0, nc.getRequestLoss(), 0.0);
+        nc.setDelay(null, -1, 10, -5);
+        assertEquals(NetworkConditions.Distribution.FIXED, nc.getDistribution());
+        assertEquals(0, nc.getMaxDelay());
+        ts0.setNetworkConditions(nc);
+        assertSame(nc, ts0.getNetworkConditions());
+        client.setSoTimeout(300);
+
+        nc.setDuplication(1);
+        byte[] msg = new Command(tk, 4323, 100, 1, "get_x", null).create();
+        byte[] resp0 = request(msg);
+        assertArrayEquals(resp0, receive());
+        assertEquals(1, nc.getDuplicated());
+        nc.setDuplication(0);
+
+        nc.setSlowdown("get_a", 150);
+        assertEquals(150, nc.getSlowdown("get_a"));
+        byte[] a = new Command(tk, 4323, 101, 2, "get_a", null).create();
+        client.send(new DatagramPacket(a, a.length, InetAddress.getByName("127.0.0.1"), 54321));
+        long start = System.nanoTime();
+        byte[] b = request(new Command(tk, 4323, 102, 3, "get_b", null).create());
+        assertEquals(3, new Response(b, tk).getPayloadID());
+        assertEquals(2, new Response(receive(), tk).getPayloadID());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(140));
+        nc.setSlowdown("get_a", 0);
+
+        nc.setResponseLoss(1);
+        try {
+            request(new Command(tk, 4323, 103, 4, "app_start", null).create());
+            fail();
+        } catch (SocketTimeoutException ignored) {
+        }
+        assertEquals(1, executed);
+        assertEquals(1, nc.getResponsesLost());
+        nc.setResponseLoss(0);
+
+        client.setSoTimeout(200);
+        String pattern = lossPattern(42);
+        assertTrue(pattern.contains("0"));
+        assertTrue(pattern.contains("1"));
+        assertEquals(pattern, lossPattern(42));
+        ts0.setNetworkConditions(null);
+    }
+}
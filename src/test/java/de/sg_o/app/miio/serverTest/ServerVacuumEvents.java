@@ -29,6 +29,8 @@ import java.util.TimeZone;
 
 
 public class ServerVacuumEvents implements OnServerEventListener {
+    public static final String[] METHODS = {"get_status", "get_timezone", "set_timezone", "get_consumable", "reset_consumable", "get_custom_mode", "set_custom_mode", "app_start", "app_pause", "app_stop", "app_charge", "app_spot", "find_me", "get_timer", "set_timer", "upd_timer", "del_timer", "get_dnd_timer", "set_dnd_timer", "close_dnd_timer", "app_goto_target", "app_zoned_clean", "get_clean_summary", "get_clean_record", "get_sound_volume", "change_sound_volume", "test_sound_volume", "app_rc_start", "app_rc_end", "app_rc_move", "dnld_install_sound", "get_sound_progress", "get_carpet_mode", "set_carpet_mode", "get_serial_number"};
+
     private VacuumStatus state = new VacuumStatus(null);
     private VacuumConsumableStatus consumables = new VacuumConsumableStatus(null);
     private TimeZone timezone = TimeZone.getDefault();
@@ -39,6 +41,8 @@ public class ServerVacuumEvents implements OnServerEventListener {
     private VacuumSounpackInstallState soundSetupState = new VacuumSounpackInstallState(0, VacuumSounpackInstallState.State.UNKNOWN, VacuumSounpackInstallState.Error.NONE, 0);
     private JSONObject carpedMode = new JSONObject("{\"current_high\":500,\"stall_time\":10,\"current_low\":400,\"enable\":0,\"current_integral\":450}");
     private JSONObject serialNumber = new JSONObject("{\"serial_number\":\"0000000000001\"}");
+    private volatile int manualControlMoves = 0;
+    private volatile JSONObject lastManualControlMove = null;
 
     public ServerVacuumEvents() {
     }
@@ -47,6 +51,18 @@ public class ServerVacuumEvents implements OnServerEventListener {
         return consumables;
     }
 
+    public VacuumStatus getState() {
+        return state;
+    }
+
+    public int getManualControlMoves() {
+        return manualControlMoves;
+    }
+
+    public JSONObject getLastManualControlMove() {
+        return lastManualControlMove;
+    }
+
     @Override
     public Object onCommandListener(String method, Object params) {
         JSONArray paramsArray = null;
@@ -347,6 +363,8 @@ public class ServerVacuumEvents implements OnServerEventListener {
         if (mov == null) return null;
         JSONObject ob = mov.optJSONObject(0);
         if (ob == null) return null;
+        manualControlMoves++;
+        lastManualControlMove = ob;
         return ok();
     }
 
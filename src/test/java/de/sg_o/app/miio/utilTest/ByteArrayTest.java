@@ -116,4 +116,27 @@ public class ByteArrayTest {
             assertEquals(s, (short) fromBytes(o));
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void indexOfNulTest() {
+        Random rd = new Random(1);
+        for (int size = 0; size < 40; size++) {
+            byte[] data = new byte[size];
+            for (int nul = -1; nul < size; nul++) {
+                for (int i = 0; i < size; i++) {
+                    data[i] = (byte) (rd.nextInt(255) + 1);
+                }
+                if (nul >= 0) data[nul] = 0;
+                if (nul >= 0 && nul + 1 < size) data[size - 1] = 0;
+                assertEquals(nul < 0 ? size : nul, indexOfNul(data, 0, size));
+                if (size > 2 && nul > 0) assertEquals(nul, indexOfNul(data, 1, size - 1));
+            }
+        }
+        byte[] high = {-128, -1, 1, 0x7F, -128, 1, 1, 1, 0};
+        assertEquals(8, indexOfNul(high, 0, high.length));
+        assertEquals(4, indexOfNul(high, 0, 4));
+        assertEquals(-1, indexOfNul(null, 0, 0));
+        assertEquals(-1, indexOfNul(high, 5, 5));
+        assertEquals(-1, indexOfNul(high, -1, 2));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.vacuum;
+
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.server.Server;
+import de.sg_o.app.miio.serverTest.ServerVacuumEvents;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+public class ManualControlSessionTest {
+    private Server ts0;
+    private ServerVacuumEvents evCleaner;
+    private Vacuum d0;
+
+    @Before
+    public void setUp() throws Exception {
+        evCleaner = new ServerVacuumEvents();
+        Token tk = new Token("00112233445566778899AABBCCDDEEFF", 16);
+        ts0 = new Server(tk, 4321, "rockrobo.vacuum.v1", "3.3.9_003194", null, null, null, 1000, null);
+        ts0.registerOnServerEventListener(evCleaner);
+        ts0.start();
+        d0 = new Vacuum(InetAddress.getByName("127.0.0.1"), tk, 0, 2);
+        // Make sure the server is running before it might be terminated.
+        assertTrue(d0.discover());
+    }
+
+    @After
+    public void tearDown() {
+        ts0.terminate();
+    }
+
+    @Test
+    public void configTest() {
+        ManualControlSession s0 = d0.manualControlSession(50, 500);
+        assertEquals(50, s0.getPeriod());
+        assertEquals(500, s0.getStallTimeout());
+        ManualControlSession s1 = new ManualControlSession(d0, 5, 10);
+        assertEquals(20, s1.getPeriod());
+        assertEquals(100, s1.getStallTimeout());
+        assertFalse(s1.isActive());
+    }
+
+    private static int pumpThreads() {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("miIO-manual-control") && t.isAlive()) count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void concurrentStartTest() throws Exception {
+        final ManualControlSession s0 = d0.manualControlSession(20, 1000);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        s0.start();
+                    } catch (Exception ignored) {
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(s0.isActive());
+        Thread.sleep(50);
+        assertEquals(1, pumpThreads());
+        assertTrue(s0.stop());
+        for (int i = 0; i < 100 && pumpThreads() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pumpThreads());
+    }
+
+    @Test
+    public void driveTest() throws Exception {
+        ManualControlSession s0 = d0.manualControlSession(20, 1000);
+        assertTrue(s0.start());
+        assertTrue(s0.isActive());
+        assertEquals(VacuumStatus.State.REMOTE_CONTROL, evCleaner.getState().getState());
+        for (int i = 0; i < 10; i++) {
+            s0.move(90.0f, 0.2f);
+            Thread.sleep(20);
+        }
+        assertTrue(s0.getSent() > 0);
+        assertEquals(0, s0.getFailed());
+        assertTrue(evCleaner.getManualControlMoves() > 0);
+        assertEquals(0.2, evCleaner.getLastManualControlMove().optDouble("velocity"), 0.0001);
+        assertEquals(60, evCleaner.getLastManualControlMove().optInt("duration"));
+        assertTrue(s0.stop());
+        assertFalse(s0.isActive());
+        assertFalse(s0.isStalled());
+        assertEquals(VacuumStatus.State.IDLE, d0.status().getState());
+        assertTrue(s0.stop());
+    }
+
+    @Test
+    public void stallTest() throws Exception {
+        ManualControlSession s0 = d0.manualControlSession(20, 100);
+        assertTrue(s0.start());
+        s0.move(0.0f, 0.2f);
+        long start = System.currentTimeMillis();
+        while (s0.isActive() && System.currentTimeMillis() - start < 2000) {
+            Thread.sleep(10);
+        }
+        assertFalse(s0.isActive());
+        assertTrue(s0.isStalled());
+        start = System.currentTimeMillis();
+        while (evCleaner.getState().getState() != VacuumStatus.State.IDLE && System.currentTimeMillis() - start < 2000) {
+            Thread.sleep(10);
+        }
+        assertEquals(VacuumStatus.State.IDLE, d0.status().getState());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.vacuum;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.server.Server;
+import de.sg_o.app.miio.serverTest.ServerVacuumEvents;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VacuumStatusWatcherTest {
+    private Server ts0;
+    private ServerVacuumEvents evCleaner;
+    private Vacuum d0;
+    private Vacuum d1;
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    private final VacuumStatusListener listener = new VacuumStatusListener() {
+        @Override
+        public void onStateChanged(Vacuum vacuum, VacuumStatus.State oldState, VacuumStatus.State newState, VacuumStatus status) {
+            events.add("state:" + oldState + ">" + newState);
+        }
+
+        @Override
+        public void onBatteryThreshold(Vacuum vacuum, int threshold, int battery, boolean falling) {
+            events.add("battery:" + threshold + (falling ? "-" : "+"));
+        }
+
+        @Override
+        public void onErrorChanged(Vacuum vacuum, VacuumStatus.Error oldError, VacuumStatus.Error newError) {
+            events.add("error:" + oldError + ">" + newError);
+        }
+
+        @Override
+        public void onPollFailed(Vacuum vacuum, CommandExecutionException e) {
+            events.add("failed");
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        evCleaner = new ServerVacuumEvents();
+        Token tk = new Token("00112233445566778899AABBCCDDEEFF", 16);
+        ts0 = new Server(tk, 4322, "rockrobo.vacuum.v1", "3.3.9_003194", null, null, null, 1000, null);
+        ts0.registerMethodHandler(evCleaner, ServerVacuumEvents.METHODS);
+        ts0.start();
+        d0 = new Vacuum(InetAddress.getByName("127.0.0.1"), tk, 0, 2);
+        d1 = new Vacuum(InetAddress.getByName("127.0.0.1"), tk, 0, 2);
+        // Make sure the server is running before it might be terminated.
+        assertTrue(d0.discover());
+    }
+
+    @After
+    public void tearDown() {
+        ts0.terminate();
+    }
+
+    private boolean await(String event) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 3000) {
+            if (events.contains(event)) return true;
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    @Test
+    public void intervalTest() {
+        VacuumStatusWatcher w0 = new VacuumStatusWatcher(1, 0, 0);
+        assertEquals(2000, w0.getFastInterval());
+        assertEquals(60000, w0.getSlowInterval());
+        assertEquals(2000, w0.intervalOf(null));
+        assertEquals(2000, w0.intervalOf(VacuumStatus.State.CLEANING));
+        assertEquals(2000, w0.intervalOf(VacuumStatus.State.GOING_HOME));
+        assertEquals(60000, w0.intervalOf(VacuumStatus.State.CHARGING));
+        assertEquals(60000, w0.intervalOf(VacuumStatus.State.IDLE));
+        w0.setInterval(VacuumStatus.State.IDLE, 500);
+        assertEquals(500, w0.intervalOf(VacuumStatus.State.IDLE));
+        w0.setInterval(VacuumStatus.State.IDLE, 0);
+        assertEquals(60000, w0.intervalOf(VacuumStatus.State.IDLE));
+        w0.setBatteryThresholds(50);
+        assertArrayEquals(new int[]{50}, w0.getBatteryThresholds());
+        w0.close();
+    }
+
+    @Test
+    public void watchTest() throws Exception {
+        VacuumStatusWatcher w0 = new VacuumStatusWatcher(1, 20, 20);
+        assertTrue(w0.watch(d1, listener));
+        assertEquals(1, w0.getWatched());
+        assertTrue(await("state:null>UNKNOWN"));
+
+        assertTrue(d0.start());
+        assertTrue(await("state:UNKNOWN>CLEANING"));
+        assertEquals(VacuumStatus.State.CLEANING, w0.getLastStatus(d1).getState());
+
+        evCleaner.getState().setBattery(15);
+        assertTrue(await("battery:20-"));
+        assertFalse(events.contains("battery:10-"));
+        evCleaner.getState().setBattery(100);
+        assertTrue(await("battery:20+"));
+
+        evCleaner.getState().setErrorCode(VacuumStatus.Error.WHEELS);
+        assertTrue(await("error:UNKNOWN>WHEELS"));
+
+        int before = events.size();
+        Thread.sleep(100);
+        assertEquals(before, events.size());
+        assertFalse(events.contains("failed"));
+
+        assertTrue(w0.unwatch(d1));
+        assertFalse(w0.unwatch(d1));
+        assertEquals(0, w0.getWatched());
+        assertNull(w0.getLastStatus(d1));
+        w0.close();
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.yeelightTest;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.yeelight.ColorLight;
+import de.sg_o.app.miio.yeelight.LanConnection;
+import de.sg_o.app.miio.yeelight.LightSnapshot;
+import de.sg_o.app.miio.yeelight.LightStateListener;
+import de.sg_o.app.miio.yeelight.Prop;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LanConnectionTest {
+    private FakeLamp lamp;
+    private ColorLight d0;
+
+    /**
+     * A lamp that speaks the LAN protocol. set_name is answered after 300ms, every change is pushed as a notification.
+     */
+    private static class FakeLamp implements Runnable {
+        private final ServerSocket server;
+        private final Thread acceptor;
+        private final List<Socket> clients = new CopyOnWriteArrayList<>();
+        private final AtomicInteger requests = new AtomicInteger();
+        private volatile int bright = 100;
+        private volatile String power = "off";
+
+        private FakeLamp() throws IOException {
+            server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+            acceptor = new Thread(this);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Socket s;
+                try {
+                    s = server.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                clients.add(s);
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(s);
+                    }
+                });
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+
+        private void serve(final Socket s) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    requests.incrementAndGet();
+                    JSONObject req = new JSONObject(line);
+                    final long id = req.getLong("id");
+                    String method = req.getString("method");
+                    JSONArray params = req.getJSONArray("params");
+                    switch (method) {
+                        case "get_prop":
+                            JSONArray values = new JSONArray();
+                            for (int i = 0; i < params.length(); i++) {
+                                String p = params.getString(i);
+                                if (p.equals("bright")) {
+                                    values.put(Integer.toString(bright));
+                                } else if (p.equals("power")) {
+                                    values.put(power);
+                                } else {
+                                    values.put("");
+                                }
+                            }
+                            write(s, new JSONObject().put("id", id).put("result", values));
+                            break;
+                        case "set_bright":
+                            bright = params.getInt(0);
+                            write(s, new JSONObject().put("id", id).put("result", new JSONArray().put("ok")));
+                            write(s, new JSONObject().put("method", "props").put("params", new JSONObject().put("bright", bright)));
+                            break;
+                        case "set_power":
+                            power = params.getString(0);
+                            write(s, new JSONObject().put("id", id).put("result", new JSONArray().put("ok")));
+                            write(s, new JSONObject().put("method", "props").put("params", new JSONObject().put("power", power)));
+                            break;
+                        case "set_name":
+                            new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    try {
+                                        Thread.sleep(300);
+                                        write(s, new JSONObject().put("id", id).put("result", new JSONArray().put("ok")));
+                                    } catch (InterruptedException | IOException ignored) {
+                                    }
+                                }
+                            }).start();
+                            break;
+                        default:
+                            write(s, new JSONObject().put("id", id).put("error", new JSONObject().put("code", -1).put("message", "method not supported")));
+                            break;
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        private static void write(Socket s, JSONObject msg) throws IOException {
+            OutputStream out = s.getOutputStream();
+            synchronized (out) {
+                out.write((msg.toString() + "\r\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        }
+
+        private void push(JSONObject params) throws IOException {
+            for (Socket s : clients) {
+                write(s, new JSONObject().put("method", "props").put("params", params));
+            }
+        }
+
+        private void drop() throws IOException {
+            for (Socket s : clients) {
+                s.close();
+                clients.remove(s);
+            }
+        }
+
+        private void close() throws IOException, InterruptedException {
+            server.close();
+            // The port is only released once the accepting thread returned, the client must not reconnect before.
+            acceptor.join();
+            drop();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        lamp = new FakeLamp();
+        d0 = new ColorLight(InetAddress.getByName("127.0.0.1"), new Token("00112233445566778899AABBCCDDEEFF", 16), 1000, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        d0.disableLan();
+        lamp.close();
+    }
+
+    private static void awaitDisconnect(LanConnection lan) throws InterruptedException {
+        for (int i = 0; i < 100 && lan.isConnected(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(lan.isConnected());
+    }
+
+    private static void awaitConnects(LanConnection lan, long connects) throws InterruptedException {
+        for (int i = 0; i < 100 && (lan.getConnects() < connects || !lan.isConnected()); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(connects, lan.getConnects());
+        assertTrue(lan.isConnected());
+    }
+
+    @Test
+    public void commandTest() throws Exception {
+        LanConnection lan = d0.enableLan(lamp.server.getLocalPort());
+        assertSame(lan, d0.enableLan(1));
+        assertSame(lan, d0.getLanConnection());
+        // The connection is opened right away, without sending a command.
+        assertTrue(lan.isConnected());
+        assertEquals(0, lamp.requests.get());
+
+        assertEquals(100, d0.getBrightness());
+        assertFalse(d0.isOn());
+        assertTrue(d0.setPower(true, false, 0));
+        assertTrue(d0.isOn());
+        assertTrue(d0.setBrightness(30, false, 0));
+        assertEquals(30, d0.getBrightness());
+        assertEquals(1, lan.getConnects());
+        try {
+            d0.setAsDefault();
+            fail();
+        } catch (CommandExecutionException e) {
+            assertEquals(CommandExecutionException.Error.UNKNOWN_METHOD, e.getError());
+        }
+
+        d0.disableLan();
+        assertNull(d0.getLanConnection());
+        assertFalse(lan.isConnected());
+        assertEquals(30, d0.getCachedSnapshot().getBrightness());
+    }
+
+    @Test
+    public void pushTest() throws Exception {
+        LanConnection lan = d0.enableLan(lamp.server.getLocalPort());
+        final AtomicReference<LightSnapshot> changes = new AtomicReference<>();
+        lan.setStateListener(new LightStateListener() {
+            @Override
+            public void onStateChanged(LightSnapshot c, LightSnapshot state) {
+                changes.set(c);
+            }
+        });
+        d0.getSnapshot(new Prop.Names[]{Prop.Names.POWER});
+        assertFalse(d0.getCachedSnapshot().isOn());
+        assertTrue(d0.setBrightness(42, false, 0));
+        assertTrue(d0.setPower(true, false, 0));
+        for (int i = 0; i < 100 && (changes.get() == null || !changes.get().contains(Prop.Names.POWER)); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, lan.getNotifications());
+        LightSnapshot cached = d0.getCachedSnapshot();
+        assertEquals(42, cached.getBrightness());
+        assertTrue(cached.isOn());
+        assertTrue(changes.get().contains(Prop.Names.POWER));
+        assertFalse(changes.get().contains(Prop.Names.BRIGHTNESS));
+    }
+
+    @Test
+    public void pushAfterDropTest() throws Exception {
+        LanConnection lan = d0.enableLan(lamp.server.getLocalPort());
+        final AtomicReference<LightSnapshot> changes = new AtomicReference<>();
+        lan.setStateListener(new LightStateListener() {
+            @Override
+            public void onStateChanged(LightSnapshot c, LightSnapshot state) {
+                changes.set(c);
+            }
+        });
+        awaitConnects(lan, 1);
+        lamp.drop();
+        awaitConnects(lan, 2);
+        while (lamp.clients.isEmpty()) {
+            Thread.sleep(5);
+        }
+        lamp.push(new JSONObject().put("bright", 7));
+        for (int i = 0; i < 100 && changes.get() == null; i++) {
+            Thread.sleep(10);
+        }
+        assertNotNull(changes.get());
+        assertEquals(7, changes.get().getBrightness());
+        assertEquals(7, d0.getCachedSnapshot().getBrightness());
+        assertEquals(0, lamp.requests.get());
+    }
+
+    @Test
+    public void pipelineTest() throws Exception {
+        d0.enableLan(lamp.server.getLocalPort());
+        final AtomicReference<Boolean> named = new AtomicReference<>();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    named.set(d0.setName("lamp"));
+                } catch (CommandExecutionException e) {
+                    named.set(false);
+                }
+            }
+        });
+        t.start();
+        while (lamp.requests.get() < 1) {
+            Thread.sleep(5);
+        }
+        long start = System.nanoTime();
+        assertEquals(100, d0.getBrightness());
+        assertTrue(System.nanoTime() - start < 250000000L);
+        assertNull(named.get());
+        t.join();
+        assertTrue(named.get());
+        assertEquals(1, d0.getLanConnection().getConnects());
+    }
+
+    @Test
+    public void reconnectTest() throws Exception {
+        LanConnection lan = d0.enableLan(lamp.server.getLocalPort());
+        assertEquals(100, d0.getBrightness());
+        lamp.drop();
+        // The connection is reopened in the background.
+        awaitConnects(lan, 2);
+        assertEquals(100, d0.getBrightness());
+        assertEquals(2, lan.getConnects());
+
+        lamp.close();
+        awaitDisconnect(lan);
+        for (int i = 0; i < 2; i++) {
+            try {
+                d0.getBrightness();
+                fail();
+            } catch (CommandExecutionException e) {
+                assertEquals(CommandExecutionException.Error.DEVICE_NOT_FOUND, e.getError());
+            }
+        }
+        assertEquals(2, lan.getConnects());
+    }
+}
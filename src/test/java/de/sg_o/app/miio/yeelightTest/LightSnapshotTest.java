@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.yeelightTest;
+
+import de.sg_o.app.miio.base.CommandExecutionException;
+import de.sg_o.app.miio.yeelight.LightSnapshot;
+import de.sg_o.app.miio.yeelight.Prop;
+import org.json.JSONArray;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LightSnapshotTest {
+    private Prop.Names[] n0 = {Prop.Names.POWER, Prop.Names.BRIGHTNESS, Prop.Names.COLOR_TEMPERATURE, Prop.Names.RGB_COLOR,
+            Prop.Names.HUE, Prop.Names.SATURATION, Prop.Names.COLOR_MODE, Prop.Names.COLOR_FLOW_ENABLED,
+            Prop.Names.SLEEP_TIME_LEFT, Prop.Names.FLOW_PARAMETERS, Prop.Names.MUSIC_MODE_ENABLED, Prop.Names.DEVICE_NAME};
+    private String[] s0 = {"on", "100", "4000", "16711680", "359", "100", "2", "1", "10", "", "0", "Room 1"};
+    private Prop.Names[] n1 = {Prop.Names.POWER, Prop.Names.BRIGHTNESS, Prop.Names.RGB_COLOR};
+    private Object[] s1 = {"off", 50, "abc"};
+
+    private Prop p0 = new Prop(n0);
+    private Prop p1 = new Prop(n1);
+
+    @Test
+    public void parseTest() throws CommandExecutionException {
+        LightSnapshot snap0 = p0.parseSnapshot(new JSONArray(s0));
+        assertTrue(snap0.isOn());
+        assertEquals(100, snap0.getBrightness());
+        assertEquals(4000, snap0.getColorTemperature());
+        assertEquals(0xFF0000, snap0.getRGB());
+        assertEquals(359, snap0.getHue());
+        assertEquals(100, snap0.getSaturation());
+        assertEquals(2, snap0.getColorMode());
+        assertTrue(snap0.isFlowing());
+        assertEquals(10, snap0.getSleepTimeLeft());
+        assertFalse(snap0.isMusicModeEnabled());
+        assertEquals("Room 1", snap0.getName());
+        assertEquals("", snap0.getString(Prop.Names.FLOW_PARAMETERS));
+        for (int i = 0; i < n0.length; i++) {
+            assertEquals(s0[i], snap0.getString(n0[i]));
+        }
+
+        LightSnapshot snap1 = p1.parseSnapshot(new JSONArray(s1));
+        assertFalse(snap1.isOn());
+        assertTrue(snap1.contains(Prop.Names.POWER));
+        assertEquals(50, snap1.getBrightness());
+        assertFalse(snap1.contains(Prop.Names.RGB_COLOR));
+        assertEquals(-1, snap1.getRGB());
+        assertNull(snap1.getName());
+        assertEquals(-1, snap1.getInt(Prop.Names.DEVICE_NAME, -1));
+    }
+
+    @Test
+    public void parseFailTest() {
+        try {
+            p0.parseSnapshot(null);
+            fail();
+        } catch (CommandExecutionException e) {
+            assertEquals(CommandExecutionException.Error.INVALID_RESPONSE, e.getError());
+        }
+        try {
+            p1.parseSnapshot(new JSONArray(s0));
+            fail();
+        } catch (CommandExecutionException e) {
+            assertEquals(CommandExecutionException.Error.INVALID_RESPONSE, e.getError());
+        }
+    }
+
+    @Test
+    public void equalsTest() throws CommandExecutionException {
+        LightSnapshot snap0 = p0.parseSnapshot(new JSONArray(s0));
+        LightSnapshot snap1 = new LightSnapshot(snap0);
+        LightSnapshot snap2 = p1.parseSnapshot(new JSONArray(s1));
+        assertEquals(snap0, snap1);
+        assertEquals(snap0.hashCode(), snap1.hashCode());
+        assertNotEquals(snap0, snap2);
+        assertTrue(new LightSnapshot().isEmpty());
+        assertFalse(snap0.isEmpty());
+        assertEquals("LightSnapshot{power=off, bright=50}", snap2.toString());
+    }
+}
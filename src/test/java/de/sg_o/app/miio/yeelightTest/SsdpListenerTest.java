@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2018 Joerg Bayer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sg_o.app.miio.yeelightTest;
+
+import de.sg_o.app.miio.base.Token;
+import de.sg_o.app.miio.yeelight.Advertisement;
+import de.sg_o.app.miio.yeelight.AdvertisementListener;
+import de.sg_o.app.miio.yeelight.ColorLight;
+import de.sg_o.app.miio.yeelight.LightSnapshot;
+import de.sg_o.app.miio.yeelight.LightStateListener;
+import de.sg_o.app.miio.yeelight.Prop;
+import de.sg_o.app.miio.yeelight.SsdpListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SsdpListenerTest {
+    private static final String ADVERTISEMENT = "NOTIFY * HTTP/1.1\r\n" +
+            "Host: 239.255.255.250:1982\r\n" +
+            "Cache-Control: max-age=3600\r\n" +
+            "Location: yeelight://127.0.0.1:55443\r\n" +
+            "NTS: ssdp:alive\r\n" +
+            "Server: POSIX, UPnP/1.0 YGLC/1\r\n" +
+            "id: 0x000000000015243f\r\n" +
+            "model: color\r\n" +
+            "fw_ver: 18\r\n" +
+            "support: get_prop set_default set_power toggle set_bright\r\n" +
+            "power: on\r\n" +
+            "bright: 42\r\n" +
+            "color_mode: 2\r\n" +
+            "ct: 4000\r\n" +
+            "rgb: 16711680\r\n" +
+            "hue: 100\r\n" +
+            "sat: 35\r\n" +
+            "name: desk\r\n";
+
+    private SsdpListener listener;
+    private DatagramSocket lamp;
+
+    @Before
+    public void setUp() throws Exception {
+        lamp = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        lamp.setSoTimeout(2000);
+        listener = new SsdpListener(new InetSocketAddress("127.0.0.1", lamp.getLocalPort()), 0);
+    }
+
+    @After
+    public void tearDown() {
+        listener.close();
+        lamp.close();
+    }
+
+    @Test
+    public void parseTest() throws Exception {
+        byte[] data = ADVERTISEMENT.getBytes(StandardCharsets.UTF_8);
+        Advertisement a = Advertisement.parse(data, 0, data.length, null);
+        assertNotNull(a);
+        assertEquals(0x15243f, a.getId());
+        assertEquals(new InetSocketAddress("127.0.0.1", 55443), a.getLocation());
+        assertEquals("color", a.getModel());
+        assertEquals("18", a.getFirmware());
+        assertEquals(3600, a.getMaxAge());
+        assertTrue(a.isAlive());
+        assertTrue(a.getSupport().contains("set_bright"));
+        LightSnapshot state = a.getState();
+        assertTrue(state.isOn());
+        assertEquals(42, state.getBrightness());
+        assertEquals(2, state.getColorMode());
+        assertEquals(4000, state.getColorTemperature());
+        assertEquals(0xFF0000, state.getRGB());
+        assertEquals(100, state.getHue());
+        assertEquals(35, state.getSaturation());
+        assertEquals("desk", state.getName());
+
+        byte[] search = "M-SEARCH * HTTP/1.1\r\nMAN: \"ssdp:discover\"\r\n".getBytes(StandardCharsets.UTF_8);
+        assertNull(Advertisement.parse(search, 0, search.length, null));
+        byte[] noLocation = "HTTP/1.1 200 OK\nid: 0x1\nbright: 5\n".getBytes(StandardCharsets.UTF_8);
+        a = Advertisement.parse(noLocation, 0, noLocation.length, InetAddress.getByName("127.0.0.2"));
+        assertNotNull(a);
+        assertEquals(new InetSocketAddress("127.0.0.2", 55443), a.getLocation());
+        assertEquals(5, a.getState().getBrightness());
+    }
+
+    @Test
+    public void passiveTest() throws Exception {
+        ColorLight d0 = new ColorLight(InetAddress.getByName("127.0.0.1"), new Token("00112233445566778899AABBCCDDEEFF", 16), 1000, 0);
+        final AtomicInteger changes = new AtomicInteger();
+        d0.setStateListener(new LightStateListener() {
+            @Override
+            public void onStateChanged(LightSnapshot c, LightSnapshot state) {
+                changes.incrementAndGet();
+            }
+        });
+        final AtomicInteger adverts = new AtomicInteger();
+        listener.setAdvertisementListener(new AdvertisementListener() {
+            @Override
+            public void onAdvertisement(Advertisement advertisement) {
+                adverts.incrementAndGet();
+            }
+        });
+        listener.attach(d0);
+        assertNull(listener.getNetworkInterface());
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getByName("127.0.0.1"));
+        listener.setNetworkInterface(loopback);
+        assertEquals(loopback, listener.getNetworkInterface());
+        listener.start();
+        byte[] data = ADVERTISEMENT.getBytes(StandardCharsets.UTF_8);
+        lamp.send(new DatagramPacket(data, data.length, InetAddress.getByName("127.0.0.1"), listener.getLocalPort()));
+        for (int i = 0; i < 100 && adverts.get() < 1; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, adverts.get());
+        assertEquals(1, changes.get());
+        assertEquals(1, listener.getReceived());
+        assertEquals(42, d0.getCachedSnapshot().getBrightness());
+        assertEquals(4000, d0.getCachedSnapshot().getInt(Prop.Names.COLOR_TEMPERATURE, -1));
+        assertEquals(1, listener.getDevices().size());
+        assertNotNull(listener.getDevice(0x15243f));
+
+        assertTrue(listener.detach(d0));
+        byte[] bye = ADVERTISEMENT.replace("ssdp:alive", "ssdp:byebye").getBytes(StandardCharsets.UTF_8);
+        lamp.send(new DatagramPacket(bye, bye.length, InetAddress.getByName("127.0.0.1"), listener.getLocalPort()));
+        for (int i = 0; i < 100 && adverts.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(listener.getDevices().isEmpty());
+        assertEquals(1, changes.get());
+    }
+
+    @Test
+    public void searchTest() throws Exception {
+        Thread responder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] buf = new byte[1024];
+                    DatagramPacket request = new DatagramPacket(buf, buf.length);
+                    lamp.receive(request);
+                    String search = new String(buf, 0, request.getLength(), StandardCharsets.UTF_8);
+                    if (!search.startsWith("M-SEARCH") || !search.contains("wifi_bulb")) return;
+                    for (int i = 0; i < 2; i++) {
+                        String response = ADVERTISEMENT.replace("NOTIFY * HTTP/1.1", "HTTP/1.1 200 OK").replace("0x000000000015243f", "0x" + (i + 1));
+                        byte[] data = response.getBytes(StandardCharsets.UTF_8);
+                        lamp.send(new DatagramPacket(data, data.length, request.getSocketAddress()));
+                    }
+                } catch (Exception ignored) {
+                }
+            }
+        });
+        responder.start();
+        Map<Long, Advertisement> found = listener.search(300);
+        responder.join();
+        assertEquals(2, found.size());
+        assertEquals(42, found.get(1L).getState().getBrightness());
+        assertNotNull(found.get(2L));
+        assertEquals(2, listener.getDevices().size());
+    }
+}